@@ -0,0 +1,220 @@
+package com.composegif;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Native GIF writer vs. the ImageIO writer it replaced. Scores are per frame; run with
+ * the gc profiler (enabled in build.gradle) to compare gc.alloc.rate.norm per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GifEncoderBenchmark
+{
+	static final int FRAMES = 64;
+
+	@Param({"32", "128", "512"})
+	public int size;
+
+	private List<FrameLoader.FrameData> frames;
+	private File output;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		frames = createFrames(size, FRAMES);
+		output = Files.createTempFile("bench", ".gif").toFile();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		output.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public long nativeWriter() throws IOException
+	{
+		GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, null);
+		return output.length();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public long nativeWriterParallel() throws IOException
+	{
+		GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100,
+				GifEncoder.Options.DEFAULT.withParallel(true), null);
+		return output.length();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public long nativeWriterDelta() throws IOException
+	{
+		GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100,
+				GifEncoder.Options.DEFAULT.withDeltaFrames(true), null);
+		return output.length();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public long nativeWriterMasked() throws IOException
+	{
+		GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100,
+				GifEncoder.Options.DEFAULT.withMaskUnchanged(true), null);
+		return output.length();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public long imageIoWriter() throws IOException
+	{
+		encodeWithImageIo(frames, output);
+		return output.length();
+	}
+
+	/**
+	 * Composite-like frames: a noisy static background with a moving block, each frame
+	 * carrying its own 64-color palette as quantizeToIndexed output would.
+	 */
+	static List<FrameLoader.FrameData> createFrames(int size, int count)
+	{
+		Random random = new Random(1);
+		byte[] background = new byte[size * size];
+		for (int i = 0; i < background.length; i++)
+		{
+			background[i] = (byte) random.nextInt(48);
+		}
+
+		List<FrameLoader.FrameData> frames = new ArrayList<>();
+		for (int f = 0; f < count; f++)
+		{
+			byte[] r = new byte[64];
+			byte[] g = new byte[64];
+			byte[] b = new byte[64];
+			for (int i = 0; i < 64; i++)
+			{
+				r[i] = (byte) (i * 4);
+				g[i] = (byte) (255 - i * 4);
+				b[i] = (byte) (f + i);
+			}
+			IndexColorModel icm = new IndexColorModel(8, 64, r, g, b);
+			BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_INDEXED, icm);
+			byte[] pixels = background.clone();
+			int block = Math.max(4, size / 8);
+			int x0 = (f * 3) % (size - block);
+			for (int y = 0; y < block; y++)
+			{
+				for (int x = 0; x < block; x++)
+				{
+					pixels[(y + block) * size + x0 + x] = (byte) (48 + (x + y) % 16);
+				}
+			}
+			img.getRaster().setDataElements(0, 0, size, size, pixels);
+			frames.add(new FrameLoader.FrameData(img, -1));
+		}
+		return frames;
+	}
+
+	// The metadata-tree based ImageIO path GifWriter replaced, kept here as the baseline
+	private static void encodeWithImageIo(List<FrameLoader.FrameData> frames, File output) throws IOException
+	{
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+		output.delete();
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(output))
+		{
+			writer.setOutput(ios);
+			BufferedImage first = frames.get(0).image();
+
+			IIOMetadata streamMeta = writer.getDefaultStreamMetadata(null);
+			String streamFormat = streamMeta.getNativeMetadataFormatName();
+			IIOMetadataNode streamRoot = (IIOMetadataNode) streamMeta.getAsTree(streamFormat);
+			IIOMetadataNode lsd = getOrCreateChild(streamRoot, "LogicalScreenDescriptor");
+			lsd.setAttribute("logicalScreenWidth", String.valueOf(first.getWidth()));
+			lsd.setAttribute("logicalScreenHeight", String.valueOf(first.getHeight()));
+			lsd.setAttribute("colorResolution", "8");
+			lsd.setAttribute("pixelAspectRatio", "0");
+			streamMeta.setFromTree(streamFormat, streamRoot);
+			writer.prepareWriteSequence(streamMeta);
+
+			for (int i = 0; i < frames.size(); i++)
+			{
+				BufferedImage frame = frames.get(i).image();
+				int transparentIndex = ((IndexColorModel) frame.getColorModel()).getTransparentPixel();
+				IIOMetadata imageMeta = writer.getDefaultImageMetadata(new ImageTypeSpecifier(frame), null);
+				String imageFormat = imageMeta.getNativeMetadataFormatName();
+				IIOMetadataNode root = (IIOMetadataNode) imageMeta.getAsTree(imageFormat);
+				IIOMetadataNode gce = getOrCreateChild(root, "GraphicControlExtension");
+				gce.setAttribute("disposalMethod", "restoreToBackgroundColor");
+				gce.setAttribute("userInputFlag", "FALSE");
+				gce.setAttribute("delayTime", "10");
+				gce.setAttribute("transparentColorFlag", transparentIndex >= 0 ? "TRUE" : "FALSE");
+				gce.setAttribute("transparentColorIndex", String.valueOf(Math.max(transparentIndex, 0)));
+				if (i == 0)
+				{
+					IIOMetadataNode netscape = new IIOMetadataNode("ApplicationExtension");
+					netscape.setAttribute("applicationID", "NETSCAPE");
+					netscape.setAttribute("authenticationCode", "2.0");
+					netscape.setUserObject(new byte[]{1, 0, 0});
+					getOrCreateChild(root, "ApplicationExtensions").appendChild(netscape);
+				}
+				imageMeta.setFromTree(imageFormat, root);
+				writer.writeToSequence(new IIOImage(frame, null, imageMeta), null);
+			}
+			writer.endWriteSequence();
+		}
+		finally
+		{
+			writer.dispose();
+		}
+	}
+
+	private static IIOMetadataNode getOrCreateChild(IIOMetadataNode parent, String name)
+	{
+		for (int i = 0; i < parent.getLength(); i++)
+		{
+			if (parent.item(i).getNodeName().equals(name))
+			{
+				return (IIOMetadataNode) parent.item(i);
+			}
+		}
+		IIOMetadataNode child = new IIOMetadataNode(name);
+		parent.appendChild(child);
+		return child;
+	}
+}
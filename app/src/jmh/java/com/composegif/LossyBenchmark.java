@@ -0,0 +1,66 @@
+package com.composegif;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.RenderingHints;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size vs. time for lossy LZW on noisy frames. Scores are per frame; the output size
+ * for each setting is printed once the trial ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LossyBenchmark
+{
+	static final int FRAMES = 16;
+
+	@Param({"0", "8", "16", "32", "64"})
+	public int lossy;
+
+	private List<FrameLoader.FrameData> frames;
+	private File output;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		frames = GifEncoderBenchmark.createFrames(256, FRAMES);
+		output = Files.createTempFile("bench", ".gif").toFile();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		System.out.println("lossy=" + lossy + ": " + output.length() + " bytes");
+		output.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public long encode() throws IOException
+	{
+		GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100,
+				GifEncoder.Options.DEFAULT.withLossy(lossy), null);
+		return output.length();
+	}
+}
@@ -0,0 +1,79 @@
+package com.composegif;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.RenderingHints;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Palette reordering on the example assets. Scores are whole-asset encodes; the output
+ * size for each setting is printed once the trial ends, which is the number to compare.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaletteOrderBenchmark
+{
+	@Param({"bg-starfield", "fg-crt"})
+	public String asset;
+
+	@Param({"false", "true"})
+	public boolean reorder;
+
+	private List<FrameLoader.FrameData> frames;
+	private GifEncoder.Options options;
+	private File output;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		frames = loadExample(asset);
+		options = GifEncoder.Options.DEFAULT.withGlobalPalette(true).withReorderPalette(reorder);
+		output = Files.createTempFile("bench", ".gif").toFile();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		System.out.println(asset + " reorder=" + reorder + ": " + output.length() + " bytes");
+		output.delete();
+	}
+
+	@Benchmark
+	public long encode() throws IOException
+	{
+		GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, options,
+				null);
+		return output.length();
+	}
+
+	/** Frames of an {@code examples/} directory; JMH may run from the project root or the app module. */
+	static List<FrameLoader.FrameData> loadExample(String name) throws IOException
+	{
+		File dir = new File("examples", name);
+		if (!dir.isDirectory()) dir = new File("../examples", name);
+		File[] files = dir.listFiles((d, n) -> n.toLowerCase().endsWith(".png"));
+		if (files == null) throw new IOException("Example not found: " + name);
+		Arrays.sort(files, FrameLoader.NATURAL_ORDER);
+		return FrameLoader.load(Arrays.asList(files)).frames();
+	}
+}
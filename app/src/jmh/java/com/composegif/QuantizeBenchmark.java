@@ -0,0 +1,73 @@
+package com.composegif;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Quantizing one composited ARGB frame, the per-frame cost of every truecolor import and
+ * preview tick. 64 colors fit the palette exactly; 4096 force a palette choice and the
+ * nearest-color search, whose cost should stay flat across quantizers and dithering.
+ * Run with the gc profiler to check allocation per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuantizeBenchmark
+{
+	@Param({"128", "512"})
+	public int size;
+
+	@Param({"64", "4096"})
+	public int colors;
+
+	@Param({"POPULARITY", "MEDIAN_CUT", "OCTREE", "WU"})
+	public Quantization.Method method;
+
+	@Param({"NONE", "FLOYD_STEINBERG"})
+	public Quantization.Dither dither;
+
+	private BufferedImage frame;
+
+	@Setup
+	public void setUp()
+	{
+		Random random = new Random(9);
+		int[] palette = new int[colors];
+		for (int i = 0; i < colors; i++)
+		{
+			palette[i] = 0xFF000000 | random.nextInt(1 << 24);
+		}
+		frame = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < size; y++)
+		{
+			for (int x = 0; x < size; x++)
+			{
+				// Horizontal runs of one color with a transparent border, like a sprite canvas
+				boolean border = x < 4 || y < 4;
+				frame.setRGB(x, y, border ? 0 : palette[(x / 8 + y * 31) % colors]);
+			}
+		}
+	}
+
+	@Benchmark
+	public FrameLoader.QuantizeResult quantize()
+	{
+		return FrameLoader.quantizeToIndexed(frame, new Quantization(method, dither));
+	}
+}
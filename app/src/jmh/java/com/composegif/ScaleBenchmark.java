@@ -0,0 +1,46 @@
+package com.composegif;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nearest-neighbour upscaling of one indexed frame, the per-frame cost of a scaled
+ * pixel-art export. 16x of a 128px frame crosses the row-parallel threshold.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScaleBenchmark
+{
+	@Param({"1", "4", "16"})
+	public int scale;
+
+	private BufferedImage frame;
+
+	@Setup
+	public void setUp()
+	{
+		frame = GifEncoderBenchmark.createFrames(128, 1).get(0).image();
+	}
+
+	@Benchmark
+	public BufferedImage nearest()
+	{
+		return GifEncoder.scaleIndexedNearest(frame, scale);
+	}
+}
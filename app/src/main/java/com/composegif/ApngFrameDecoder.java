@@ -0,0 +1,274 @@
+package com.composegif;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the image data of APNG frames to ARGB, for every PNG color type, bit depth
+ * and interlace method, without rebuilding each frame as a PNG for {@code ImageIO}.
+ * <p>
+ * A frame's IDAT or fdAT payloads are inflated from slices of the file's buffer into
+ * one array of filtered rows, which are unfiltered in place and converted straight
+ * into the {@code TYPE_INT_ARGB} raster of the frame. Samples are scaled to 8 bits as
+ * {@code ImageIO} images draw: 16-bit color is rounded, 16-bit gray keeps its high
+ * byte and gray below 8 bits is spread over 0–255. Gray is taken as it is stored,
+ * where {@code ImageIO} treats gray with alpha as linear and lightens it. A tRNS color
+ * makes matching pixels fully transparent.
+ */
+class ApngFrameDecoder
+{
+	private static final int GRAY = 0;
+	private static final int RGB = 2;
+	private static final int PALETTE = 3;
+	private static final int GRAY_ALPHA = 4;
+	private static final int RGBA = 6;
+
+	/** Adam7 passes as first column, first row, column step and row step. */
+	private static final int[][] ADAM7 = {
+		{0, 0, 8, 8}, {4, 0, 8, 8}, {0, 4, 4, 8}, {2, 0, 4, 4}, {0, 2, 2, 4}, {1, 0, 2, 2}, {0, 1, 1, 2}
+	};
+	private static final int[][] PROGRESSIVE = {{0, 0, 1, 1}};
+
+	private final String name;
+	private final int colorType;
+	private final int bitDepth;
+	private final int bitsPerPixel;
+	private final boolean interlaced;
+	/** ARGB of each sample value for palette and gray images of up to 8 bits, else null. */
+	private final int[] lut;
+	/** The tRNS gray or RGB sample values, or null. */
+	private final int[] transparent;
+
+	/**
+	 * Reads the header from the 13 bytes of {@code ihdr}; {@code palette} and
+	 * {@code alpha} are the PLTE and tRNS payloads, or null if absent.
+	 */
+	ApngFrameDecoder(ByteBuffer ihdr, byte[] palette, byte[] alpha, String name) throws IOException
+	{
+		this.name = name;
+		bitDepth = ihdr.get(8);
+		colorType = ihdr.get(9);
+		interlaced = ihdr.get(12) == 1;
+		int channels = switch (colorType)
+		{
+			case GRAY, PALETTE -> 1;
+			case GRAY_ALPHA -> 2;
+			case RGB -> 3;
+			case RGBA -> 4;
+			default -> throw new IOException(name + ": unknown PNG color type " + colorType);
+		};
+		boolean validDepth = switch (colorType)
+		{
+			case GRAY -> Integer.bitCount(bitDepth) == 1 && bitDepth <= 16;
+			case PALETTE -> Integer.bitCount(bitDepth) == 1 && bitDepth <= 8;
+			default -> bitDepth == 8 || bitDepth == 16;
+		};
+		if (!validDepth || ihdr.get(12) > 1)
+		{
+			throw new IOException(name + ": unsupported PNG bit depth " + bitDepth + " or interlace method");
+		}
+		bitsPerPixel = channels * bitDepth;
+
+		if (colorType == PALETTE)
+		{
+			if (palette == null) throw new IOException(name + ": palette PNG without PLTE chunk");
+			// The color model reads both tables from one array
+			byte[] tables = Arrays.copyOf(palette, palette.length + (alpha != null ? alpha.length : 0));
+			if (alpha != null) System.arraycopy(alpha, 0, tables, palette.length, alpha.length);
+			lut = new int[1 << bitDepth];
+			PngDecoder.colorModel(tables, bitDepth, 0, palette.length / 3, alpha != null ? palette.length : -1,
+				alpha != null ? alpha.length : 0).getRGBs(lut);
+			transparent = null;
+			return;
+		}
+
+		if ((colorType == GRAY || colorType == RGB) && alpha != null && alpha.length >= 2 * channels)
+		{
+			transparent = new int[channels];
+			for (int c = 0; c < channels; c++)
+			{
+				transparent[c] = (alpha[2 * c] & 0xFF) << 8 | alpha[2 * c + 1] & 0xFF;
+			}
+		}
+		else
+		{
+			transparent = null;
+		}
+
+		if (colorType == GRAY && bitDepth <= 8)
+		{
+			int max = (1 << bitDepth) - 1;
+			lut = new int[max + 1];
+			for (int v = 0; v <= max; v++)
+			{
+				int gray = v * 255 / max;
+				boolean clear = transparent != null && transparent[0] == v;
+				lut[v] = (clear ? 0 : 0xFF000000) | gray << 16 | gray << 8 | gray;
+			}
+		}
+		else
+		{
+			lut = null;
+		}
+	}
+
+	/**
+	 * Decodes a {@code width} × {@code height} frame from its image data, which the
+	 * inflater consumes. {@code inflater} is reset first, so one can serve every frame.
+	 */
+	BufferedImage decode(int width, int height, List<ByteBuffer> data, Inflater inflater) throws IOException
+	{
+		int[][] passes = interlaced ? ADAM7 : PROGRESSIVE;
+		long total = 0;
+		for (int[] pass : passes)
+		{
+			int columns = span(width, pass[0], pass[2]);
+			int rowCount = span(height, pass[1], pass[3]);
+			if (columns > 0) total += (rowBytes(columns) + 1) * rowCount;
+		}
+		if (total > Integer.MAX_VALUE - 8 || (long) width * height > Integer.MAX_VALUE - 8)
+		{
+			throw new IOException(name + ": APNG frame too large: " + width + "x" + height);
+		}
+		byte[] rows = new byte[(int) total];
+
+		inflater.reset();
+		int filled = 0;
+		try
+		{
+			for (ByteBuffer slice : data)
+			{
+				inflater.setInput(slice);
+				while (filled < rows.length && !inflater.needsInput() && !inflater.finished())
+				{
+					int n = inflater.inflate(rows, filled, rows.length - filled);
+					if (n == 0 && inflater.needsDictionary()) throw new DataFormatException("preset dictionary");
+					filled += n;
+				}
+				if (filled == rows.length || inflater.finished()) break;
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException(name + ": corrupt APNG frame data", e);
+		}
+		if (filled < rows.length)
+		{
+			throw new IOException(name + ": truncated APNG frame data");
+		}
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		int[] argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		int bpp = Math.max(1, bitsPerPixel / 8);
+		int offset = 0;
+		for (int[] pass : passes)
+		{
+			int columns = span(width, pass[0], pass[2]);
+			int rowCount = span(height, pass[1], pass[3]);
+			if (columns == 0 || rowCount == 0) continue;
+			int rowBytes = (int) rowBytes(columns);
+			PngDecoder.unfilter(rows, offset, rowBytes, rowCount, bpp, name);
+			for (int r = 0; r < rowCount; r++)
+			{
+				int y = pass[1] + r * pass[3];
+				toArgb(rows, offset + r * (rowBytes + 1) + 1, columns, argb, y * width + pass[0], pass[2]);
+			}
+			offset += (rowBytes + 1) * rowCount;
+		}
+		return image;
+	}
+
+	private long rowBytes(int columns)
+	{
+		return ((long) columns * bitsPerPixel + 7) / 8;
+	}
+
+	/** Pixels of {@code size} that a pass starting at {@code start} with {@code step} covers. */
+	private static int span(int size, int start, int step)
+	{
+		return size > start ? (size - start + step - 1) / step : 0;
+	}
+
+	/** Writes {@code count} pixels of one unfiltered row to every {@code step}th int of {@code out}. */
+	private void toArgb(byte[] row, int pos, int count, int[] out, int outPos, int step)
+	{
+		int o = outPos;
+		if (lut != null)
+		{
+			if (bitDepth == 8)
+			{
+				for (int i = 0; i < count; i++, o += step)
+				{
+					out[o] = lut[row[pos + i] & 0xFF];
+				}
+				return;
+			}
+			int mask = (1 << bitDepth) - 1;
+			for (int i = 0, bit = 0; i < count; i++, o += step, bit += bitDepth)
+			{
+				out[o] = lut[(row[pos + (bit >> 3)] >> (8 - bitDepth - (bit & 7))) & mask];
+			}
+			return;
+		}
+
+		// 8 or 16 bits per sample; 16-bit gray keeps its high byte, 16-bit color is rounded
+		int bytes = bitDepth / 8;
+		int stride = bitsPerPixel / 8;
+		int end = pos + count * stride;
+		switch (colorType)
+		{
+			case GRAY ->
+			{
+				for (int p = pos; p < end; p += stride, o += step)
+				{
+					int g = row[p] & 0xFF;
+					int a = transparent != null && sample(row, p, bytes) == transparent[0] ? 0 : 0xFF;
+					out[o] = a << 24 | g << 16 | g << 8 | g;
+				}
+			}
+			case GRAY_ALPHA ->
+			{
+				for (int p = pos; p < end; p += stride, o += step)
+				{
+					int g = row[p] & 0xFF;
+					out[o] = (row[p + bytes] & 0xFF) << 24 | g << 16 | g << 8 | g;
+				}
+			}
+			case RGB ->
+			{
+				for (int p = pos; p < end; p += stride, o += step)
+				{
+					int a = transparent != null && sample(row, p, bytes) == transparent[0]
+						&& sample(row, p + bytes, bytes) == transparent[1]
+						&& sample(row, p + 2 * bytes, bytes) == transparent[2] ? 0 : 0xFF;
+					out[o] = a << 24 | to8(row, p, bytes) << 16 | to8(row, p + bytes, bytes) << 8
+						| to8(row, p + 2 * bytes, bytes);
+				}
+			}
+			default ->
+			{
+				for (int p = pos; p < end; p += stride, o += step)
+				{
+					out[o] = to8(row, p + 3 * bytes, bytes) << 24 | to8(row, p, bytes) << 16
+						| to8(row, p + bytes, bytes) << 8 | to8(row, p + 2 * bytes, bytes);
+				}
+			}
+		}
+	}
+
+	private static int to8(byte[] row, int p, int bytes)
+	{
+		return bytes == 1 ? row[p] & 0xFF : (sample(row, p, 2) * 255 + 32767) / 65535;
+	}
+
+	private static int sample(byte[] row, int p, int bytes)
+	{
+		return bytes == 1 ? row[p] & 0xFF : (row[p] & 0xFF) << 8 | row[p + 1] & 0xFF;
+	}
+}
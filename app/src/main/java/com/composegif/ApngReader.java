@@ -1,21 +1,23 @@
 package com.composegif;
 
-import javax.imageio.ImageIO;
 import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
-import java.util.Set;
-import java.util.zip.CRC32;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
 
 public class ApngReader
 {
@@ -30,9 +32,14 @@ public class ApngReader
 		(byte) 0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A
 	};
 
-	private static final Set<String> ANCILLARY_CHUNK_TYPES = Set.of(
-		"PLTE", "tRNS", "cHRM", "gAMA", "iCCP", "sRGB", "sBIT", "bKGD", "pHYs", "sPLT"
-	);
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504C5445;
+	private static final int TRNS = 0x74524E53;
+	private static final int ACTL = 0x6163544C;
+	private static final int FCTL = 0x6663544C;
+	private static final int IDAT = 0x49444154;
+	private static final int FDAT = 0x66644154;
+	private static final int IEND = 0x49454E44;
 
 	public record ApngFrame(BufferedImage image, int delayMs) {}
 
@@ -46,8 +53,6 @@ public class ApngReader
 		byte disposeOp, byte blendOp
 	) {}
 
-	private record Chunk(String type, byte[] data) {}
-
 	/**
 	 * Quick check: does this file have a valid PNG signature and an acTL chunk before IDAT?
 	 */
@@ -93,41 +98,71 @@ public class ApngReader
 	}
 
 	/**
-	 * Parse all APNG frames, composite them, and return ARGB images with timing.
+	 * Parse all APNG frames, composite them, and return ARGB images with timing. The
+	 * file is mapped rather than read, and each frame's image data is inflated from it
+	 * in place by {@link ApngFrameDecoder}.
+	 * <p>
+	 * Decoding a frame does not depend on the frames before it, so frames are decoded
+	 * in parallel, one per thread ahead, while this thread blends and disposes them
+	 * onto the canvas in order.
 	 */
 	public static ApngResult loadApng(File file) throws IOException
 	{
-		List<Chunk> chunks = readAllChunks(file);
+		ByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buf.limit() < PNG_SIGNATURE.length
+			|| !buf.slice(0, PNG_SIGNATURE.length).equals(ByteBuffer.wrap(PNG_SIGNATURE)))
+		{
+			throw new IOException("Not a PNG file: " + file.getName());
+		}
 
-		// Extract IHDR
-		byte[] ihdrData = null;
-		List<byte[]> ancillaryChunks = new ArrayList<>();
-		List<String> ancillaryTypes = new ArrayList<>();
+		ByteBuffer ihdr = null;
+		byte[] palette = null;
+		byte[] alpha = null;
 		int numFrames = -1;
 
 		// Collect chunks by category
 		List<FrameControl> frameControls = new ArrayList<>();
-		List<List<byte[]>> frameImageData = new ArrayList<>();
-		List<byte[]> currentImageData = null;
+		List<List<ByteBuffer>> frameImageData = new ArrayList<>();
+		List<ByteBuffer> currentImageData = null;
 		boolean firstIdatSeen = false;
 		boolean defaultImageIsFirstFrame = false;
 
-		for (Chunk chunk : chunks)
+		int pos = PNG_SIGNATURE.length;
+		while (pos + 8 <= buf.limit())
 		{
-			switch (chunk.type())
+			int length = buf.getInt(pos);
+			int type = buf.getInt(pos + 4);
+			int data = pos + 8;
+			if (length < 0 || length > 100_000_000)
+			{
+				throw new IOException("Invalid chunk length: " + Integer.toUnsignedString(length));
+			}
+			if (length > buf.limit() - data - 4)
+			{
+				throw new IOException(file.getName() + ": truncated PNG chunk");
+			}
+			pos = data + length + 4; // CRC
+
+			switch (type)
 			{
-				case "IHDR" ->
+				case IHDR ->
 				{
-					ihdrData = chunk.data();
+					if (length < 13) throw new IOException("APNG IHDR chunk too short");
+					ihdr = buf.slice(data, length);
 				}
-				case "acTL" ->
+				case ACTL ->
 				{
-					ByteBuffer buf = ByteBuffer.wrap(chunk.data());
-					numFrames = buf.getInt();
+					numFrames = buf.getInt(data);
 				}
-				case "fcTL" ->
+				case FCTL ->
 				{
-					FrameControl fc = parseFcTL(chunk.data());
+					byte[] fcTL = new byte[Math.min(length, 26)];
+					buf.get(data, fcTL);
+					FrameControl fc = parseFcTL(fcTL);
 					frameControls.add(fc);
 
 					// If we see fcTL before any IDAT, the default image is the first frame
@@ -143,33 +178,41 @@ public class ApngReader
 					}
 					currentImageData = new ArrayList<>();
 				}
-				case "IDAT" ->
+				case IDAT ->
 				{
 					firstIdatSeen = true;
 					if (defaultImageIsFirstFrame && currentImageData != null)
 					{
-						currentImageData.add(chunk.data());
+						currentImageData.add(buf.slice(data, length));
 					}
 				}
-				case "fdAT" ->
+				case FDAT ->
 				{
-					if (currentImageData != null)
+					if (currentImageData != null && length >= 4)
 					{
-						// Strip 4-byte sequence number prefix
-						byte[] stripped = new byte[chunk.data().length - 4];
-						System.arraycopy(chunk.data(), 4, stripped, 0, stripped.length);
-						currentImageData.add(stripped);
+						// Skip the 4-byte sequence number prefix
+						currentImageData.add(buf.slice(data + 4, length - 4));
 					}
 				}
-				default ->
+				case PLTE, TRNS ->
 				{
-					if (!firstIdatSeen && ANCILLARY_CHUNK_TYPES.contains(chunk.type()))
+					if (!firstIdatSeen)
 					{
-						ancillaryChunks.add(chunk.data());
-						ancillaryTypes.add(chunk.type());
+						byte[] payload = new byte[length];
+						buf.get(data, payload);
+						if (type == PLTE)
+						{
+							palette = payload;
+						}
+						else
+						{
+							alpha = payload;
+						}
 					}
 				}
+				default -> {}
 			}
+			if (type == IEND) break;
 		}
 
 		// Don't forget the last frame's image data
@@ -178,7 +221,7 @@ public class ApngReader
 			frameImageData.add(currentImageData);
 		}
 
-		if (ihdrData == null)
+		if (ihdr == null)
 		{
 			throw new IOException("APNG missing IHDR chunk");
 		}
@@ -198,96 +241,125 @@ public class ApngReader
 		}
 
 		// Parse canvas dimensions from IHDR
-		ByteBuffer ihdrBuf = ByteBuffer.wrap(ihdrData);
-		int canvasWidth = ihdrBuf.getInt();
-		int canvasHeight = ihdrBuf.getInt();
+		int canvasWidth = ihdr.getInt(0);
+		int canvasHeight = ihdr.getInt(4);
+		ApngFrameDecoder decoder = new ApngFrameDecoder(ihdr, palette, alpha, file.getName());
 
 		// Composite frames
 		BufferedImage canvas = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
 		List<ApngFrame> frames = new ArrayList<>();
 
-		for (int i = 0; i < numFrames; i++)
+		ForkJoinPool pool = GifEncoder.workers();
+		int parallelism = pool.getParallelism();
+		Deque<Future<BufferedImage>> pending = new ArrayDeque<>();
+		try
 		{
-			FrameControl fc = frameControls.get(i);
-			List<byte[]> imageData = frameImageData.get(i);
-
-			// Reconstruct a valid PNG for this frame
-			byte[] framePng = buildFramePng(ihdrData, fc.width(), fc.height(),
-				ancillaryChunks, ancillaryTypes, imageData);
-			BufferedImage frameImage = ImageIO.read(new ByteArrayInputStream(framePng));
-			if (frameImage == null)
+			int submitted = 0;
+			for (int i = 0; i < numFrames; i++)
 			{
-				throw new IOException("Failed to decode APNG frame " + (i + 1));
-			}
+				// Decoded frames are full ARGB canvases, so only one per thread is kept ahead
+				while (submitted < numFrames && pending.size() < parallelism + 1)
+				{
+					FrameControl next = frameControls.get(submitted);
+					List<ByteBuffer> data = frameImageData.get(submitted);
+					int number = ++submitted;
+					pending.add(pool.submit(() -> decodeFrame(decoder, next, data, number)));
+				}
+				BufferedImage frameImage = GifEncoder.await(pending.poll(), FrameLoader.LOAD_INTERRUPTED);
+				FrameControl fc = frameControls.get(i);
 
-			// Save canvas for DISPOSE_OP_PREVIOUS
-			BufferedImage previousCanvas = null;
-			if (fc.disposeOp() == DISPOSE_OP_PREVIOUS)
-			{
-				previousCanvas = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
-				Graphics2D pg = previousCanvas.createGraphics();
-				pg.drawImage(canvas, 0, 0, null);
-				pg.dispose();
-			}
+				// Save canvas for DISPOSE_OP_PREVIOUS
+				BufferedImage previousCanvas = null;
+				if (fc.disposeOp() == DISPOSE_OP_PREVIOUS)
+				{
+					previousCanvas = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
+					Graphics2D pg = previousCanvas.createGraphics();
+					pg.drawImage(canvas, 0, 0, null);
+					pg.dispose();
+				}
 
-			// Draw frame onto canvas
-			Graphics2D g2 = canvas.createGraphics();
-			if (fc.blendOp() == BLEND_OP_SOURCE)
-			{
-				// Clear the frame region, then draw with Src composite
-				g2.setClip(fc.xOffset(), fc.yOffset(), fc.width(), fc.height());
-				g2.setComposite(AlphaComposite.Clear);
-				g2.fillRect(fc.xOffset(), fc.yOffset(), fc.width(), fc.height());
-				g2.setComposite(AlphaComposite.Src);
-				g2.drawImage(frameImage, fc.xOffset(), fc.yOffset(), null);
-			}
-			else
-			{
-				// BLEND_OP_OVER uses default SrcOver
-				g2.drawImage(frameImage, fc.xOffset(), fc.yOffset(), null);
-			}
-			g2.dispose();
+				// Draw frame onto canvas
+				Graphics2D g2 = canvas.createGraphics();
+				if (fc.blendOp() == BLEND_OP_SOURCE)
+				{
+					// Clear the frame region, then draw with Src composite
+					g2.setClip(fc.xOffset(), fc.yOffset(), fc.width(), fc.height());
+					g2.setComposite(AlphaComposite.Clear);
+					g2.fillRect(fc.xOffset(), fc.yOffset(), fc.width(), fc.height());
+					g2.setComposite(AlphaComposite.Src);
+					g2.drawImage(frameImage, fc.xOffset(), fc.yOffset(), null);
+				}
+				else
+				{
+					// BLEND_OP_OVER uses default SrcOver
+					g2.drawImage(frameImage, fc.xOffset(), fc.yOffset(), null);
+				}
+				g2.dispose();
 
-			// Snapshot the composited canvas
-			BufferedImage snapshot = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
-			Graphics2D sg = snapshot.createGraphics();
-			sg.drawImage(canvas, 0, 0, null);
-			sg.dispose();
+				// Snapshot the composited canvas
+				BufferedImage snapshot = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
+				Graphics2D sg = snapshot.createGraphics();
+				sg.drawImage(canvas, 0, 0, null);
+				sg.dispose();
 
-			// Calculate delay
-			int delayMs;
-			if (fc.delayDen() == 0)
-			{
-				delayMs = fc.delayNum() * 1000 / 100;
-			}
-			else
-			{
-				delayMs = fc.delayNum() * 1000 / fc.delayDen();
-			}
-			if (delayMs <= 0) delayMs = 100;
+				// Calculate delay
+				int delayMs;
+				if (fc.delayDen() == 0)
+				{
+					delayMs = fc.delayNum() * 1000 / 100;
+				}
+				else
+				{
+					delayMs = fc.delayNum() * 1000 / fc.delayDen();
+				}
+				if (delayMs <= 0) delayMs = 100;
 
-			frames.add(new ApngFrame(snapshot, delayMs));
+				frames.add(new ApngFrame(snapshot, delayMs));
 
-			// Handle disposal
-			if (fc.disposeOp() == DISPOSE_OP_BACKGROUND)
-			{
-				Graphics2D cg = canvas.createGraphics();
-				cg.setComposite(AlphaComposite.Clear);
-				cg.fillRect(fc.xOffset(), fc.yOffset(), fc.width(), fc.height());
-				cg.dispose();
-			}
-			else if (fc.disposeOp() == DISPOSE_OP_PREVIOUS && previousCanvas != null)
-			{
-				Graphics2D cg = canvas.createGraphics();
-				cg.setComposite(AlphaComposite.Src);
-				cg.drawImage(previousCanvas, 0, 0, null);
-				cg.dispose();
+				// Handle disposal
+				if (fc.disposeOp() == DISPOSE_OP_BACKGROUND)
+				{
+					Graphics2D cg = canvas.createGraphics();
+					cg.setComposite(AlphaComposite.Clear);
+					cg.fillRect(fc.xOffset(), fc.yOffset(), fc.width(), fc.height());
+					cg.dispose();
+				}
+				else if (fc.disposeOp() == DISPOSE_OP_PREVIOUS && previousCanvas != null)
+				{
+					Graphics2D cg = canvas.createGraphics();
+					cg.setComposite(AlphaComposite.Src);
+					cg.drawImage(previousCanvas, 0, 0, null);
+					cg.dispose();
+				}
 			}
 		}
+		finally
+		{
+			GifEncoder.release(pool, pending);
+		}
 
 		return new ApngResult(frames, canvasWidth, canvasHeight);
 	}
 
+	private static BufferedImage decodeFrame(ApngFrameDecoder decoder, FrameControl fc, List<ByteBuffer> data,
+		int number) throws IOException
+	{
+		if (fc.width() <= 0 || fc.height() <= 0)
+		{
+			throw new IOException("Failed to decode APNG frame " + number + ": invalid size "
+				+ fc.width() + "x" + fc.height());
+		}
+		Inflater inflater = new Inflater();
+		try
+		{
+			return decoder.decode(fc.width(), fc.height(), data, inflater);
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
 	static FrameControl parseFcTL(byte[] data)
 	{
 		ByteBuffer buf = ByteBuffer.wrap(data);
@@ -306,103 +378,4 @@ public class ApngReader
 			disposeOp, blendOp
 		);
 	}
-
-	private static List<Chunk> readAllChunks(File file) throws IOException
-	{
-		try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
-		{
-			byte[] sig = new byte[8];
-			in.readFully(sig);
-			if (!Arrays.equals(sig, PNG_SIGNATURE))
-			{
-				throw new IOException("Not a PNG file: " + file.getName());
-			}
-
-			List<Chunk> chunks = new ArrayList<>();
-			while (true)
-			{
-				int length;
-				try
-				{
-					length = in.readInt();
-				}
-				catch (java.io.EOFException e)
-				{
-					break;
-				}
-				if (length < 0 || length > 100_000_000)
-				{
-					throw new IOException("Invalid chunk length: " + Integer.toUnsignedString(length));
-				}
-				byte[] typeBytes = new byte[4];
-				in.readFully(typeBytes);
-				String type = new String(typeBytes, java.nio.charset.StandardCharsets.ISO_8859_1);
-				byte[] data = new byte[length];
-				in.readFully(data);
-				in.readInt(); // CRC
-
-				chunks.add(new Chunk(type, data));
-
-				if ("IEND".equals(type)) break;
-			}
-			return chunks;
-		}
-	}
-
-	private static byte[] buildFramePng(byte[] originalIhdr, int frameWidth, int frameHeight,
-		List<byte[]> ancillaryData, List<String> ancillaryTypes, List<byte[]> imageData)
-		throws IOException
-	{
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		out.write(PNG_SIGNATURE);
-
-		// IHDR with frame dimensions patched in
-		byte[] ihdr = originalIhdr.clone();
-		ByteBuffer ihdrBuf = ByteBuffer.wrap(ihdr);
-		ihdrBuf.putInt(0, frameWidth);
-		ihdrBuf.putInt(4, frameHeight);
-		writeChunk(out, "IHDR", ihdr);
-
-		// Ancillary chunks
-		for (int i = 0; i < ancillaryData.size(); i++)
-		{
-			String type = ancillaryTypes.get(i);
-			writeChunk(out, type, ancillaryData.get(i));
-		}
-
-		// Image data as IDAT chunks
-		for (byte[] data : imageData)
-		{
-			writeChunk(out, "IDAT", data);
-		}
-
-		// IEND
-		writeChunk(out, "IEND", new byte[0]);
-
-		return out.toByteArray();
-	}
-
-	private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data) throws IOException
-	{
-		byte[] typeBytes = type.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
-
-		// Length
-		ByteBuffer lenBuf = ByteBuffer.allocate(4);
-		lenBuf.putInt(data.length);
-		out.write(lenBuf.array());
-
-		// Type
-		out.write(typeBytes);
-
-		// Data
-		out.write(data);
-
-		// CRC (over type + data)
-		CRC32 crc = new CRC32();
-		crc.update(typeBytes);
-		crc.update(data);
-		ByteBuffer crcBuf = ByteBuffer.allocate(4);
-		crcBuf.putInt((int) crc.getValue());
-		out.write(crcBuf.array());
-	}
 }
@@ -0,0 +1,158 @@
+package com.composegif;
+
+/**
+ * Pixel counts of opaque ARGB colors, remembered in order of first appearance, in a
+ * primitive open-addressing table. Each color's slot also holds an int value, its
+ * count while counting, that callers may overwrite afterwards (e.g. with a palette
+ * index).
+ * <p>
+ * One instance is kept per thread and cleared in time proportional to the colors it
+ * held, so quantizing frame after frame does not allocate unless a frame has more
+ * colors than any before it. Tables grown beyond {@link #RETAINED_SLOTS} are dropped
+ * on the next {@link #forThread()} rather than pinned to the thread.
+ */
+class ColorHistogram
+{
+	private static final int INITIAL_BITS = 10;
+	private static final int RETAINED_SLOTS = 1 << 16;
+	private static final ThreadLocal<ColorHistogram> CACHE = ThreadLocal.withInitial(ColorHistogram::new);
+
+	/** Color per slot; 0 marks a free slot since every stored color has alpha 0xFF. */
+	private int[] keys;
+	private int[] values;
+	/** Slot of each color, in order of first appearance. */
+	private int[] slots;
+	private int size;
+	private int shift;
+	private int mask;
+	// The slot found for the previous add, which runs of one color reuse
+	private int lastColor;
+	private int lastSlot;
+
+	private ColorHistogram()
+	{
+		allocate(INITIAL_BITS);
+	}
+
+	/** This thread's histogram, emptied. */
+	static ColorHistogram forThread()
+	{
+		ColorHistogram histogram = CACHE.get();
+		if (histogram.keys.length > RETAINED_SLOTS)
+		{
+			histogram.allocate(INITIAL_BITS);
+		}
+		else
+		{
+			for (int n = 0; n < histogram.size; n++)
+			{
+				histogram.keys[histogram.slots[n]] = 0;
+			}
+			histogram.size = 0;
+			histogram.lastColor = 0;
+		}
+		return histogram;
+	}
+
+	/** Counts one pixel of {@code argb}, which must be opaque. */
+	void add(int argb)
+	{
+		if (argb == lastColor)
+		{
+			values[lastSlot]++;
+			return;
+		}
+		int slot = probe(argb);
+		if (keys[slot] == argb)
+		{
+			values[slot]++;
+		}
+		else
+		{
+			keys[slot] = argb;
+			values[slot] = 1;
+			slots[size++] = slot;
+			if (size * 2 > keys.length)
+			{
+				grow();
+				slot = probe(argb);
+			}
+		}
+		lastColor = argb;
+		lastSlot = slot;
+	}
+
+	/** Number of distinct colors. */
+	int size()
+	{
+		return size;
+	}
+
+	/** Slot of the {@code n}th color to appear. */
+	int slotAt(int n)
+	{
+		return slots[n];
+	}
+
+	/** Slot of a color that has been added. */
+	int slotOf(int argb)
+	{
+		return probe(argb);
+	}
+
+	int color(int slot)
+	{
+		return keys[slot];
+	}
+
+	int value(int slot)
+	{
+		return values[slot];
+	}
+
+	void setValue(int slot, int value)
+	{
+		values[slot] = value;
+	}
+
+	/** Slot holding {@code argb}, or the free slot where it would go. */
+	private int probe(int argb)
+	{
+		int slot = (argb * 0x9E3779B1) >>> shift;
+		int k;
+		while ((k = keys[slot]) != 0 && k != argb)
+		{
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void allocate(int bits)
+	{
+		keys = new int[1 << bits];
+		values = new int[1 << bits];
+		slots = new int[(1 << bits) / 2 + 1];
+		shift = 32 - bits;
+		mask = (1 << bits) - 1;
+		size = 0;
+		lastColor = 0;
+	}
+
+	private void grow()
+	{
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		int[] oldSlots = slots;
+		int count = size;
+		allocate(Integer.numberOfTrailingZeros(oldKeys.length) + 1);
+		for (int n = 0; n < count; n++)
+		{
+			int key = oldKeys[oldSlots[n]];
+			int slot = probe(key);
+			keys[slot] = key;
+			values[slot] = oldValues[oldSlots[n]];
+			slots[n] = slot;
+		}
+		size = count;
+	}
+}
@@ -3,9 +3,13 @@ package com.composegif;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.IntFunction;
 
 public class Compositor
 {
@@ -30,7 +34,103 @@ public class Compositor
 		}
 	}
 
-	public record FlattenResult(List<FrameLoader.FrameData> frames, int width, int height, int delayMs) {}
+	/**
+	 * Flattened animation; {@code delaysMs} holds each frame's display time, in step
+	 * with {@code frames}.
+	 */
+	public record FlattenResult(List<FrameLoader.FrameData> frames, int width, int height, List<Integer> delaysMs)
+	{
+		public FlattenResult(List<FrameLoader.FrameData> frames, int width, int height, int delayMs)
+		{
+			this(frames, width, height, Collections.nCopies(frames.size(), delayMs));
+		}
+
+		/**
+		 * This result with any frames drawn on demand drawn now, if as indexed pixels they
+		 * take at most {@code maxBytes}; otherwise this result unchanged.
+		 */
+		public FlattenResult held(long maxBytes)
+		{
+			if (!(frames instanceof DrawnFrames) || (long) width * height * frames.size() > maxBytes)
+			{
+				return this;
+			}
+			return new FlattenResult(new ArrayList<>(frames), width, height, delaysMs);
+		}
+
+		/**
+		 * This result with any frames drawn on demand drawn once now and kept as a
+		 * {@link PatchedFrames}, for callers that read every frame several times.
+		 */
+		public FlattenResult patched()
+		{
+			if (!(frames instanceof DrawnFrames))
+			{
+				return this;
+			}
+			return new FlattenResult(PatchedFrames.of(frames), width, height, delaysMs);
+		}
+
+		/**
+		 * Export source over the frames. Frames drawn on demand are drawn as the encoder
+		 * pulls them, so it cannot look at every frame for a global palette first.
+		 */
+		public GifEncoder.FrameSource source()
+		{
+			if (!(frames instanceof DrawnFrames))
+			{
+				return GifEncoder.FrameSource.of(frames, delaysMs);
+			}
+			return new GifEncoder.FrameSource()
+			{
+				private int index;
+
+				@Override
+				public int size()
+				{
+					return frames.size();
+				}
+
+				@Override
+				public Entry next()
+				{
+					if (index == frames.size()) return null;
+					Entry entry = new Entry(frames.get(index), delaysMs.get(index));
+					index++;
+					return entry;
+				}
+			};
+		}
+	}
+
+	/** Frames drawn each time they are read, so none of them are kept. */
+	private static final class DrawnFrames extends AbstractList<FrameLoader.FrameData>
+	{
+		private final int size;
+		private final IntFunction<FrameLoader.FrameData> draw;
+
+		DrawnFrames(int size, IntFunction<FrameLoader.FrameData> draw)
+		{
+			this.size = size;
+			this.draw = draw;
+		}
+
+		@Override
+		public FrameLoader.FrameData get(int index)
+		{
+			Objects.checkIndex(index, size);
+			return draw.apply(index);
+		}
+
+		@Override
+		public int size()
+		{
+			return size;
+		}
+	}
+
+	// Cap on distinct composited frames per loop, to keep memory bounded
+	static final int MAX_OUTPUT_FRAMES = 100_000;
 
 	static long gcd(long a, long b)
 	{
@@ -48,10 +148,36 @@ public class Compositor
 	static long lcm(long a, long b)
 	{
 		if (a == 0 || b == 0) return 0;
-		return Math.abs(a / gcd(a, b) * b);
+		return Math.abs(Math.multiplyExact(a / gcd(a, b), b));
 	}
 
 	public static FlattenResult flatten(List<Layer> layers) throws IOException
+	{
+		return flatten(layers, Quantization.DEFAULT);
+	}
+
+	/**
+	 * Flattens the layers into one animation; frames that have to be redrawn are
+	 * reduced back to a palette with {@code quantization}.
+	 */
+	public static FlattenResult flatten(List<Layer> layers, Quantization quantization) throws IOException
+	{
+		return flatten(layers, quantization, false);
+	}
+
+	/**
+	 * Like {@link #flatten(List, Quantization)}, but frames that have to be redrawn are
+	 * drawn each time the result's frame list is read rather than up front, so a long
+	 * composite is never held in memory as a whole. Errors in the layers are still
+	 * reported here.
+	 */
+	public static FlattenResult flattenOnDemand(List<Layer> layers, Quantization quantization) throws IOException
+	{
+		return flatten(layers, quantization, true);
+	}
+
+	private static FlattenResult flatten(List<Layer> layers, Quantization quantization, boolean onDemand)
+			throws IOException
 	{
 		if (layers == null || layers.isEmpty())
 		{
@@ -61,14 +187,29 @@ public class Compositor
 		// Single layer with no offset — passthrough optimization
 		if (layers.size() == 1 && layers.get(0).offsetX() == 0 && layers.get(0).offsetY() == 0)
 		{
-			return singleLayerPassthrough(layers.get(0));
+			return singleLayerPassthrough(layers.get(0), quantization, onDemand);
 		}
 
 		// Multiple layers or offset — composite
-		return compositeMultipleLayers(layers);
+		return compositeMultipleLayers(layers, quantization, onDemand);
 	}
 
-	private static FlattenResult singleLayerPassthrough(Layer layer)
+	private static List<FrameLoader.FrameData> frames(int size, IntFunction<FrameLoader.FrameData> draw,
+													  boolean onDemand)
+	{
+		if (onDemand)
+		{
+			return new DrawnFrames(size, draw);
+		}
+		List<FrameLoader.FrameData> frames = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+		{
+			frames.add(draw.apply(i));
+		}
+		return frames;
+	}
+
+	private static FlattenResult singleLayerPassthrough(Layer layer, Quantization quantization, boolean onDemand)
 	{
 		if (layer.transparentColors().isEmpty())
 		{
@@ -80,7 +221,7 @@ public class Compositor
 			);
 		}
 		// Must render with transparency applied
-		return applyTransparentColors(layer);
+		return applyTransparentColors(layer, quantization, onDemand);
 	}
 
 	static FlattenResult generateTransparentFrames(Layer ref)
@@ -94,17 +235,15 @@ public class Compositor
 		return new FlattenResult(List.of(transparentFrame), w, h, ref.delayMs());
 	}
 
-	private static FlattenResult applyTransparentColors(Layer layer)
+	private static FlattenResult applyTransparentColors(Layer layer, Quantization quantization, boolean onDemand)
 	{
 		int w = layer.width();
 		int h = layer.height();
 		Set<Integer> transparentColors = layer.transparentColors();
-		List<FrameLoader.FrameData> outputFrames = new ArrayList<>();
 
-		for (FrameLoader.FrameData frame : layer.frames())
-		{
+		List<FrameLoader.FrameData> outputFrames = frames(layer.frames().size(), f -> {
 			BufferedImage canvas = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-			BufferedImage src = frame.image();
+			BufferedImage src = layer.frames().get(f).image();
 			for (int y = 0; y < h; y++)
 			{
 				for (int x = 0; x < w; x++)
@@ -121,14 +260,15 @@ public class Compositor
 					}
 				}
 			}
-			FrameLoader.QuantizeResult qr = FrameLoader.quantizeToIndexed(canvas);
-			outputFrames.add(new FrameLoader.FrameData(qr.image(), qr.transparentIndex()));
-		}
+			FrameLoader.QuantizeResult qr = FrameLoader.quantizeToIndexed(canvas, quantization);
+			return new FrameLoader.FrameData(qr.image(), qr.transparentIndex());
+		}, onDemand);
 
 		return new FlattenResult(outputFrames, w, h, layer.delayMs());
 	}
 
-	private static FlattenResult compositeMultipleLayers(List<Layer> layers) throws IOException
+	private static FlattenResult compositeMultipleLayers(List<Layer> layers, Quantization quantization,
+														 boolean onDemand) throws IOException
 	{
 		// Canvas = largest layer dimensions; offset layers get clipped at edges
 		int w = 0, h = 0;
@@ -138,30 +278,47 @@ public class Compositor
 			h = Math.max(h, layer.height());
 		}
 
-		// Compute tick delay as GCD across all layer delays
-		long tickDelay = layers.get(0).delayMs();
-		for (int i = 1; i < layers.size(); i++)
+		// One loop lasts until every animated layer completes a whole number of cycles.
+		// Single-frame layers never change, so they don't stretch the loop; a fully
+		// static composite is one frame shown for the bottom layer's delay.
+		long cycleMs = 1;
+		boolean animated = false;
+		try
 		{
-			tickDelay = gcd(tickDelay, layers.get(i).delayMs());
+			for (Layer layer : layers)
+			{
+				if (layer.frames().size() > 1)
+				{
+					cycleMs = lcm(cycleMs, (long) layer.frames().size() * layer.delayMs());
+					animated = true;
+				}
+			}
 		}
-		int tickDelayInt = (int) tickDelay;
-
-		// Compute steps and total ticks via LCM
-		int[] steps = new int[layers.size()];
-		int[] frameCounts = new int[layers.size()];
-		long totalTicks = 1;
-		for (int i = 0; i < layers.size(); i++)
+		catch (ArithmeticException e)
+		{
+			throw tooLong();
+		}
+		if (!animated)
 		{
-			steps[i] = layers.get(i).delayMs() / tickDelayInt;
-			frameCounts[i] = layers.get(i).frames().size();
-			totalTicks = lcm(totalTicks, (long) frameCounts[i] * steps[i]);
+			cycleMs = layers.get(0).delayMs();
 		}
 
-		if (totalTicks > 100_000)
+		// Output frames start wherever some layer moves to a different frame and last until
+		// the next such change, so no more frames are composited than the layers require
+		List<Long> startsMs = new ArrayList<>();
+		for (long t = 0; t < cycleMs; )
 		{
-			throw new IOException(
-					"Animation cycle too long (" + totalTicks + " frames). "
-					+ "Reduce the number of frames or adjust delays so they share a common factor.");
+			if (startsMs.size() == MAX_OUTPUT_FRAMES) throw tooLong();
+			startsMs.add(t);
+			long next = cycleMs;
+			for (Layer layer : layers)
+			{
+				if (layer.frames().size() > 1)
+				{
+					next = Math.min(next, (t / layer.delayMs() + 1) * layer.delayMs());
+				}
+			}
+			t = next;
 		}
 
 		// Precompute fast-path flags
@@ -171,18 +328,26 @@ public class Compositor
 			fastPath[i] = layers.get(i).transparentColors().isEmpty();
 		}
 
-		List<FrameLoader.FrameData> outputFrames = new ArrayList<>();
-		for (long t = 0; t < totalTicks; t++)
+		List<Integer> delaysMs = new ArrayList<>();
+		for (int f = 0; f < startsMs.size(); f++)
 		{
-			BufferedImage canvas = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+			long end = f + 1 < startsMs.size() ? startsMs.get(f + 1) : cycleMs;
+			delaysMs.add(Math.toIntExact(end - startsMs.get(f)));
+		}
+
+		int canvasW = w;
+		int canvasH = h;
+		List<FrameLoader.FrameData> outputFrames = frames(startsMs.size(), f -> {
+			long t = startsMs.get(f);
+			BufferedImage canvas = new BufferedImage(canvasW, canvasH, BufferedImage.TYPE_INT_ARGB);
 			Graphics2D g2d = canvas.createGraphics();
 			try
 			{
 				// Draw layers bottom to top
 				for (int i = 0; i < layers.size(); i++)
 				{
-					int frameIdx = (int) ((t / steps[i]) % frameCounts[i]);
 					Layer layer = layers.get(i);
+					int frameIdx = (int) ((t / layer.delayMs()) % layer.frames().size());
 					if (fastPath[i])
 					{
 						g2d.drawImage(layer.frames().get(frameIdx).image(),
@@ -200,11 +365,18 @@ public class Compositor
 				g2d.dispose();
 			}
 
-			FrameLoader.QuantizeResult qr = FrameLoader.quantizeToIndexed(canvas);
-			outputFrames.add(new FrameLoader.FrameData(qr.image(), qr.transparentIndex()));
-		}
+			FrameLoader.QuantizeResult qr = FrameLoader.quantizeToIndexed(canvas, quantization);
+			return new FrameLoader.FrameData(qr.image(), qr.transparentIndex());
+		}, onDemand);
+
+		return new FlattenResult(outputFrames, w, h, delaysMs);
+	}
 
-		return new FlattenResult(outputFrames, w, h, tickDelayInt);
+	private static IOException tooLong()
+	{
+		return new IOException(
+				"Animation cycle too long (over " + MAX_OUTPUT_FRAMES + " frames). "
+				+ "Reduce the number of frames or adjust delays so they share a common factor.");
 	}
 
 	private static void drawLayerFrame(BufferedImage canvas, BufferedImage src,
@@ -0,0 +1,62 @@
+package com.composegif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Discards everything written to it, counting the bytes, so an encode can be measured
+ * without keeping its output. A write that passes {@code limit} or comes after
+ * {@code stop} turns true fails with {@link Abandoned}, ending the encode early.
+ */
+class CountingChannel implements WritableByteChannel
+{
+	/** The encode was ended by the channel, not by an I/O problem. */
+	static final class Abandoned extends IOException
+	{
+		Abandoned()
+		{
+			super("Encode abandoned");
+		}
+	}
+
+	private final long limit;
+	private final BooleanSupplier stop;
+	private long count;
+
+	CountingChannel(long limit, BooleanSupplier stop)
+	{
+		this.limit = limit;
+		this.stop = stop;
+	}
+
+	long count()
+	{
+		return count;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException
+	{
+		int length = src.remaining();
+		count += length;
+		if (count > limit || stop.getAsBoolean())
+		{
+			throw new Abandoned();
+		}
+		src.position(src.limit());
+		return length;
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return true;
+	}
+
+	@Override
+	public void close()
+	{
+	}
+}
@@ -0,0 +1,238 @@
+package com.composegif;
+
+import java.awt.image.IndexColorModel;
+
+/**
+ * Chooses the sub-rectangle each frame must repaint and how it is disposed, so that
+ * the decoded canvas always equals the full source frame.
+ * <p>
+ * Frames arrive in display order as 8-bit indices plus a 256-entry ARGB lookup in
+ * which the transparent entry is 0. A frame's placement is final only once the next
+ * frame is known, since its disposal decides what the next frame draws over. Two
+ * candidates are measured for each transition:
+ * <ul>
+ *   <li>keep the previous frame ({@link GifWriter#DISPOSE_NONE}): repaint the bounding
+ *       box of changed pixels. Not usable when a pixel turns transparent, since drawing
+ *       the transparent index cannot clear it.</li>
+ *   <li>clear the previous frame's rectangle ({@link GifWriter#DISPOSE_BACKGROUND}),
+ *       first growing it over any pixel that turns transparent, then repaint changes
+ *       outside it plus every opaque pixel inside it.</li>
+ * </ul>
+ * The smaller repaint wins. Restore-to-previous is not considered; it needs a second
+ * canvas snapshot and is unevenly supported by decoders.
+ */
+class DeltaPlanner
+{
+	/** Where a frame is drawn and how it is disposed before the next one. */
+	record Placement(int x, int y, int width, int height, int disposal) {}
+
+	private int width;
+	private int height;
+	private byte[] previousPixels;
+	private int[] previousColors;
+	// Rectangle of the frame awaiting its disposal, as [minX, minY, maxX, maxY]
+	private int[] previousBox;
+
+	/**
+	 * Adds the next frame. The arrays are kept until the following call, so callers
+	 * must not modify them afterwards.
+	 *
+	 * @return the final placement of the frame added before this one, or null for the first frame
+	 */
+	Placement add(int width, int height, byte[] pixels, int[] colors)
+	{
+		if (previousPixels == null)
+		{
+			this.width = width;
+			this.height = height;
+			previousPixels = pixels;
+			previousColors = colors;
+			previousBox = new int[]{0, 0, width - 1, height - 1};
+			return null;
+		}
+
+		// Bounding boxes as [minX, minY, maxX, maxY], empty while minX > maxX
+		int[] keep = empty();
+		int[] vanished = empty();
+		int[] clear = empty();
+		scan(pixels, colors, previousBox, keep, vanished, clear);
+
+		int[] cleared = previousBox;
+		if (!isEmpty(vanished) && !contains(previousBox, vanished))
+		{
+			cleared = previousBox.clone();
+			include(cleared, vanished[0], vanished[1]);
+			include(cleared, vanished[2], vanished[3]);
+			clear = empty();
+			scan(pixels, colors, cleared, empty(), empty(), clear);
+		}
+
+		long keepArea = isEmpty(vanished) ? area(keep) : Long.MAX_VALUE;
+		Placement previous;
+		int[] box;
+		if (keepArea <= area(clear))
+		{
+			previous = placement(previousBox, GifWriter.DISPOSE_NONE);
+			box = keep;
+		}
+		else
+		{
+			previous = placement(cleared, GifWriter.DISPOSE_BACKGROUND);
+			box = clear;
+		}
+
+		// Nothing to repaint, but a GIF frame needs at least one pixel; any pixel
+		// already matches the canvas under the chosen disposal
+		previousBox = isEmpty(box) ? new int[]{0, 0, 0, 0} : box;
+		previousPixels = pixels;
+		previousColors = colors;
+		return previous;
+	}
+
+	/**
+	 * Placement of the last frame added. Decoders restart from a cleared canvas when
+	 * looping, so it is left in place.
+	 */
+	Placement finish()
+	{
+		return placement(previousBox, GifWriter.DISPOSE_NONE);
+	}
+
+	/**
+	 * Builds the ARGB lookup {@link #add} expects: opaque palette colors, 0 for the
+	 * transparent index, and indices beyond the palette mapped like entry 0 (the GIF
+	 * color table pads with the first color).
+	 */
+	static int[] colors(IndexColorModel icm)
+	{
+		int mapSize = icm.getMapSize();
+		int transparent = icm.getTransparentPixel();
+		int[] colors = new int[256];
+		for (int i = 0; i < colors.length; i++)
+		{
+			colors[i] = i == transparent ? 0 : icm.getRGB(i < mapSize ? i : 0) | 0xFF000000;
+		}
+		return colors;
+	}
+
+	/**
+	 * Copies a frame's placed rectangle into {@code out}, row-packed, replacing every pixel
+	 * the canvas already shows with a transparent index so LZW sees long runs. The canvas
+	 * is the previous frame as left by its disposal. The frame's own transparent index is
+	 * used if it has one, otherwise the lowest index that no repainted pixel uses.
+	 *
+	 * @return the transparent index written, or -1 if all 256 indices are in use, in which
+	 *         case {@code out} is left untouched
+	 */
+	static int maskUnchanged(int width, byte[] pixels, int[] colors, int transparentIndex, Placement placement,
+							 byte[] previousPixels, int[] previousColors, Placement previous, byte[] out)
+	{
+		int mask = transparentIndex;
+		if (mask < 0)
+		{
+			boolean[] used = new boolean[256];
+			for (int y = placement.y(); y < placement.y() + placement.height(); y++)
+			{
+				for (int x = placement.x(); x < placement.x() + placement.width(); x++)
+				{
+					int i = y * width + x;
+					if (!isShown(x, y, colors[pixels[i] & 0xFF], previousColors[previousPixels[i] & 0xFF], previous))
+					{
+						used[pixels[i] & 0xFF] = true;
+					}
+				}
+			}
+			mask = 0;
+			while (mask < 256 && used[mask]) mask++;
+			if (mask == 256) return -1;
+		}
+
+		int o = 0;
+		for (int y = placement.y(); y < placement.y() + placement.height(); y++)
+		{
+			for (int x = placement.x(); x < placement.x() + placement.width(); x++)
+			{
+				int i = y * width + x;
+				boolean shown = isShown(x, y, colors[pixels[i] & 0xFF], previousColors[previousPixels[i] & 0xFF],
+						previous);
+				out[o++] = shown ? (byte) mask : pixels[i];
+			}
+		}
+		return mask;
+	}
+
+	/** Whether the canvas left by {@code previous} already shows {@code color} at (x, y). */
+	private static boolean isShown(int x, int y, int color, int previousColor, Placement previous)
+	{
+		if (previous.disposal() == GifWriter.DISPOSE_BACKGROUND
+				&& x >= previous.x() && x < previous.x() + previous.width()
+				&& y >= previous.y() && y < previous.y() + previous.height())
+		{
+			return color == 0;
+		}
+		return color == previousColor;
+	}
+
+	/**
+	 * One pass over the frame: {@code keep} collects changed pixels, {@code vanished}
+	 * pixels that turned transparent, and {@code clear} what must be repainted once
+	 * {@code cleared} has been disposed to the background.
+	 */
+	private void scan(byte[] pixels, int[] colors, int[] cleared, int[] keep, int[] vanished, int[] clear)
+	{
+		for (int y = 0; y < height; y++)
+		{
+			boolean rowCleared = y >= cleared[1] && y <= cleared[3];
+			int row = y * width;
+			for (int x = 0; x < width; x++)
+			{
+				int cur = colors[pixels[row + x] & 0xFF];
+				boolean changed = cur != previousColors[previousPixels[row + x] & 0xFF];
+				if (changed)
+				{
+					include(keep, x, y);
+					if (cur == 0) include(vanished, x, y);
+				}
+				boolean inCleared = rowCleared && x >= cleared[0] && x <= cleared[2];
+				if (inCleared ? cur != 0 : changed)
+				{
+					include(clear, x, y);
+				}
+			}
+		}
+	}
+
+	private static Placement placement(int[] box, int disposal)
+	{
+		return new Placement(box[0], box[1], box[2] - box[0] + 1, box[3] - box[1] + 1, disposal);
+	}
+
+	private int[] empty()
+	{
+		return new int[]{width, height, -1, -1};
+	}
+
+	private static boolean isEmpty(int[] box)
+	{
+		return box[0] > box[2];
+	}
+
+	private static boolean contains(int[] outer, int[] inner)
+	{
+		return inner[0] >= outer[0] && inner[1] >= outer[1] && inner[2] <= outer[2] && inner[3] <= outer[3];
+	}
+
+	private static void include(int[] box, int x, int y)
+	{
+		if (x < box[0]) box[0] = x;
+		if (y < box[1]) box[1] = y;
+		if (x > box[2]) box[2] = x;
+		if (y > box[3]) box[3] = y;
+	}
+
+	private static long area(int[] box)
+	{
+		if (isEmpty(box)) return 0;
+		return (long) (box[2] - box[0] + 1) * (box[3] - box[1] + 1);
+	}
+}
@@ -0,0 +1,134 @@
+package com.composegif;
+
+import java.util.Arrays;
+
+/**
+ * Maps truecolor pixels to a reduced palette with dithering. Pixels under half alpha
+ * become the transparent index and neither take nor pass on any error. Every pixel
+ * costs one {@link InverseColormap} lookup, so the work grows only with the frame's
+ * size.
+ */
+class Dithering
+{
+	/** 8×8 Bayer matrix, thresholds 0-63. */
+	private static final int[] BAYER = {
+			0, 32, 8, 40, 2, 34, 10, 42,
+			48, 16, 56, 24, 50, 18, 58, 26,
+			12, 44, 4, 36, 14, 46, 6, 38,
+			60, 28, 52, 20, 62, 30, 54, 22,
+			3, 35, 11, 43, 1, 33, 9, 41,
+			51, 19, 59, 27, 49, 17, 57, 25,
+			15, 47, 7, 39, 13, 45, 5, 37,
+			63, 31, 55, 23, 61, 29, 53, 21
+	};
+
+	/**
+	 * Offsets each pixel by its Bayer threshold before the lookup. The offsets span
+	 * the mean distance between neighbouring palette colors, so dense palettes get
+	 * fine patterns.
+	 */
+	static void ordered(int[] argb, byte[] out, int w, int h, InverseColormap colormap, int[] paletteRgb,
+						int transparentIndex)
+	{
+		int spread = (int) Math.round(spacing(paletteRgb, transparentIndex));
+		int[] offsets = new int[BAYER.length];
+		for (int i = 0; i < BAYER.length; i++)
+		{
+			offsets[i] = (2 * BAYER[i] - 63) * spread / 128;
+		}
+		for (int y = 0; y < h; y++)
+		{
+			int row = (y & 7) << 3;
+			for (int x = 0, i = y * w; x < w; x++, i++)
+			{
+				int pixel = argb[i];
+				if ((pixel >>> 24) < 128)
+				{
+					out[i] = (byte) transparentIndex;
+					continue;
+				}
+				int offset = offsets[row | (x & 7)];
+				int r = clamp(((pixel >> 16) & 0xFF) + offset);
+				int g = clamp(((pixel >> 8) & 0xFF) + offset);
+				int b = clamp((pixel & 0xFF) + offset);
+				out[i] = (byte) colormap.nearest(r << 16 | g << 8 | b);
+			}
+		}
+	}
+
+	/**
+	 * Floyd–Steinberg error diffusion, left to right on every row. Errors are carried
+	 * in sixteenths in two row buffers.
+	 */
+	static void floydSteinberg(int[] argb, byte[] out, int w, int h, InverseColormap colormap, int[] paletteRgb,
+							   int transparentIndex)
+	{
+		// Three channels per pixel, with a pixel of padding at each end
+		int[] current = new int[(w + 2) * 3];
+		int[] below = new int[(w + 2) * 3];
+		for (int y = 0; y < h; y++)
+		{
+			for (int x = 0, i = y * w; x < w; x++, i++)
+			{
+				int pixel = argb[i];
+				if ((pixel >>> 24) < 128)
+				{
+					out[i] = (byte) transparentIndex;
+					continue;
+				}
+				int e = (x + 1) * 3;
+				int r = clamp(((pixel >> 16) & 0xFF) + (current[e] + 8 >> 4));
+				int g = clamp(((pixel >> 8) & 0xFF) + (current[e + 1] + 8 >> 4));
+				int b = clamp((pixel & 0xFF) + (current[e + 2] + 8 >> 4));
+				int index = colormap.nearest(r << 16 | g << 8 | b);
+				out[i] = (byte) index;
+
+				int chosen = paletteRgb[index];
+				diffuse(current, below, e, r - ((chosen >> 16) & 0xFF));
+				diffuse(current, below, e + 1, g - ((chosen >> 8) & 0xFF));
+				diffuse(current, below, e + 2, b - (chosen & 0xFF));
+			}
+			int[] swap = current;
+			current = below;
+			below = swap;
+			Arrays.fill(below, 0);
+		}
+	}
+
+	/** Mean RGB distance from each palette color to its nearest other color. */
+	private static double spacing(int[] paletteRgb, int skipIndex)
+	{
+		double total = 0;
+		int count = 0;
+		for (int i = 0; i < paletteRgb.length; i++)
+		{
+			if (i == skipIndex) continue;
+			int nearest = Integer.MAX_VALUE;
+			for (int j = 0; j < paletteRgb.length; j++)
+			{
+				if (j == i || j == skipIndex) continue;
+				int dr = ((paletteRgb[i] >> 16) & 0xFF) - ((paletteRgb[j] >> 16) & 0xFF);
+				int dg = ((paletteRgb[i] >> 8) & 0xFF) - ((paletteRgb[j] >> 8) & 0xFF);
+				int db = (paletteRgb[i] & 0xFF) - (paletteRgb[j] & 0xFF);
+				nearest = Math.min(nearest, dr * dr + dg * dg + db * db);
+			}
+			if (nearest == Integer.MAX_VALUE) continue;
+			total += Math.sqrt(nearest);
+			count++;
+		}
+		return count > 0 ? total / count : 0;
+	}
+
+	private static void diffuse(int[] current, int[] below, int e, int error)
+	{
+		current[e + 3] += error * 7;
+		below[e - 3] += error * 3;
+		below[e] += error * 5;
+		below[e + 3] += error;
+	}
+
+	private static int clamp(int v)
+	{
+		return v < 0 ? 0 : v > 255 ? 255 : v;
+	}
+}
@@ -9,7 +9,9 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -38,7 +40,9 @@ public class FrameBrowserPanel extends JPanel
 	private static final Color BTN_DELETE = new Color(200, 60, 60);
 	private static final Color BTN_DUPLICATE = new Color(60, 140, 180);
 
-	private final ArrayList<FrameLoader.FrameData> frames = new ArrayList<>();
+	private List<FrameLoader.FrameData> source = List.of();
+	// Positions in source of the frames shown, in ribbon order
+	private final ArrayList<Integer> frames = new ArrayList<>();
 	private final HashSet<Integer> hiddenIndices = new HashSet<>();
 	private Runnable onChange;
 
@@ -284,8 +288,13 @@ public class FrameBrowserPanel extends JPanel
 
 	public void setFrames(List<FrameLoader.FrameData> newFrames)
 	{
+		// Patched frames are rebuilt on access, so they are kept as they are rather than copied out
+		source = newFrames instanceof PatchedFrames ? newFrames : List.copyOf(newFrames);
 		frames.clear();
-		frames.addAll(newFrames);
+		for (int i = 0; i < source.size(); i++)
+		{
+			frames.add(i);
+		}
 		hiddenIndices.clear();
 		selectedIndices.clear();
 		anchorIndex = -1;
@@ -301,13 +310,35 @@ public class FrameBrowserPanel extends JPanel
 
 	public List<FrameLoader.FrameData> getFrames()
 	{
-		if (hiddenIndices.isEmpty()) return List.copyOf(frames);
-		ArrayList<FrameLoader.FrameData> visible = new ArrayList<>(frames.size());
+		int[] visible = new int[frames.size()];
+		int count = 0;
+		boolean inOrder = true;
 		for (int i = 0; i < frames.size(); i++)
 		{
-			if (!hiddenIndices.contains(i)) visible.add(frames.get(i));
+			if (hiddenIndices.contains(i)) continue;
+			visible[count] = frames.get(i);
+			inOrder &= visible[count] == count;
+			count++;
 		}
-		return List.copyOf(visible);
+		if (inOrder && count == source.size()) return source;
+
+		// A view rather than a copy, so patched frames are still only rebuilt when used
+		List<FrameLoader.FrameData> shown = source;
+		int[] positions = Arrays.copyOf(visible, count);
+		return new AbstractList<>()
+		{
+			@Override
+			public FrameLoader.FrameData get(int index)
+			{
+				return shown.get(positions[index]);
+			}
+
+			@Override
+			public int size()
+			{
+				return positions.length;
+			}
+		};
 	}
 
 	public int getFrameCount()
@@ -318,7 +349,7 @@ public class FrameBrowserPanel extends JPanel
 	public FrameLoader.FrameData getFrame(int index)
 	{
 		if (index < 0 || index >= frames.size()) return null;
-		return frames.get(index);
+		return source.get(frames.get(index));
 	}
 
 	public boolean isHidden(int index)
@@ -410,7 +441,7 @@ public class FrameBrowserPanel extends JPanel
 		selectedIndices.addAll(remappedSel);
 		if (srcWasSelected) selectedIndices.add(dstIdx);
 
-		FrameLoader.FrameData moving = frames.remove(srcIdx);
+		int moving = frames.remove(srcIdx);
 		frames.add(dstIdx, moving);
 		anchorIndex = dstIdx;
 		revalidate();
@@ -649,11 +680,16 @@ public class FrameBrowserPanel extends JPanel
 		}
 
 		int ts = thumbSize();
+		int cw = cellWidth();
+		Rectangle clip = g2.getClipBounds();
 
 		for (int i = 0; i < frames.size(); i++)
 		{
+			// Cells scrolled out of view are skipped before their frame is fetched
+			if (clip != null && (i * cw + cw <= clip.x || i * cw >= clip.x + clip.width)) continue;
+
 			Rectangle r = thumbRect(i);
-			BufferedImage img = frames.get(i).image();
+			BufferedImage img = source.get(frames.get(i)).image();
 			int imgW = img.getWidth();
 			int imgH = img.getHeight();
 
@@ -1,33 +1,34 @@
 package com.composegif;
 
-import org.apache.commons.imaging.Imaging;
-import org.apache.commons.imaging.ImageInfo;
-
 import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.metadata.IIOMetadataNode;
-import javax.imageio.stream.ImageInputStream;
-import java.awt.Graphics2D;
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 public class FrameLoader
 {
 
+	static final String LOAD_INTERRUPTED = "Loading interrupted";
+
 	private static final Pattern FRAME_PATTERN = Pattern.compile("^(\\d+)\\.png$", Pattern.CASE_INSENSITIVE);
 
 	public record FrameData(BufferedImage image, int transparentIndex) {}
@@ -132,6 +133,38 @@ public class FrameLoader
 	}
 
 	public static LoadResult load(List<File> files) throws IOException
+	{
+		return load(files, Quantization.DEFAULT, false, null);
+	}
+
+	/**
+	 * Loads frames, reducing truecolor ones with {@code quantization}. With
+	 * {@code sharedPalette} every frame is instead mapped to one palette chosen across
+	 * all of them, see {@link #quantizeShared}; truecolor frames are then held until
+	 * all files are read.
+	 * <p>
+	 * Files are decoded and quantized concurrently, one pool thread per core and a few
+	 * files per thread ahead of the merge, and merged in natural-sort order, so frames,
+	 * warnings, dimension errors and the first failure are the same as for a sequential
+	 * load. {@code listener}, if not null, is told on the calling thread as each file is
+	 * merged.
+	 */
+	public static LoadResult load(List<File> files, Quantization quantization, boolean sharedPalette,
+								  GifEncoder.ProgressListener listener) throws IOException
+	{
+		return load(files, quantization, sharedPalette, false, listener);
+	}
+
+	/**
+	 * Loads frames as {@link #load(List, Quantization, boolean, GifEncoder.ProgressListener)}
+	 * does. With {@code patchedFrames} the frames are returned as a {@link PatchedFrames},
+	 * holding only what changes from frame to frame. GIF frames are reduced to patches as
+	 * they are decoded, so a long GIF never has all its frames in memory at once unless
+	 * {@code sharedPalette} needs them together; the frames of an APNG are given one
+	 * palette for the file, as patches need consecutive frames to share one.
+	 */
+	public static LoadResult load(List<File> files, Quantization quantization, boolean sharedPalette,
+								  boolean patchedFrames, GifEncoder.ProgressListener listener) throws IOException
 	{
 		if (files.isEmpty())
 		{
@@ -142,153 +175,99 @@ public class FrameLoader
 		sorted.sort(NATURAL_ORDER);
 
 		List<FrameData> frames = new ArrayList<>();
+		// Patches are only built here when no shared palette will replace the frames afterwards
+		PatchedFrames.Builder patches = patchedFrames && !sharedPalette ? new PatchedFrames.Builder() : null;
 		List<String> warnings = new ArrayList<>();
 		int expectedWidth = -1;
 		int expectedHeight = -1;
 		List<String> dimensionErrors = new ArrayList<>();
 		int extractedDelayMs = -1;
+		// Frames merged so far, counted apart from the patches, which stop at a size mismatch
+		int merged = 0;
 
-		for (int i = 0; i < sorted.size(); i++)
+		// Animations decoded here fan their frames out to the same pool
+		ForkJoinPool pool = GifEncoder.workers();
+		Deque<Future<Decoded>> decoding = new ArrayDeque<>();
+		try
 		{
-			File file = sorted.get(i);
-			String nameLower = file.getName().toLowerCase();
-
-			// Check for APNG before regular PNG handling
-			if ((nameLower.endsWith(".apng") || nameLower.endsWith(".png")) && ApngReader.isApng(file))
+			int submitted = 0;
+			for (int i = 0; i < sorted.size(); i++)
 			{
-				ApngReader.ApngResult apngResult = ApngReader.loadApng(file);
+				// Decoded files wait here until merged, so only a few are started ahead
+				while (submitted < sorted.size() && decoding.size() < 2 * pool.getParallelism())
+				{
+					File next = sorted.get(submitted++);
+					decoding.add(pool.submit(() -> decode(next, quantization, sharedPalette, patches != null)));
+				}
+				File file = sorted.get(i);
+				Decoded decoded = GifEncoder.await(decoding.poll(), LOAD_INTERRUPTED);
 
-				// Use timing from the first animated file only
-				if (extractedDelayMs < 0 && !apngResult.frames().isEmpty())
+				if (decoded.animated())
 				{
-					// Use most common delay
-					Map<Integer, Integer> delayCounts = new LinkedHashMap<>();
-					for (ApngReader.ApngFrame af : apngResult.frames())
+					// Use timing from the first animated file only
+					if (extractedDelayMs < 0 && decoded.delayMs() >= 0)
 					{
-						delayCounts.merge(af.delayMs(), 1, Integer::sum);
+						extractedDelayMs = decoded.delayMs();
+						if (decoded.delayWarning() != null) warnings.add(decoded.delayWarning());
 					}
-					extractedDelayMs = delayCounts.entrySet().stream()
-						.max(Map.Entry.comparingByValue())
-						.map(Map.Entry::getKey)
-						.orElse(100);
-					if (delayCounts.size() > 1)
+
+					// Check dimensions once for the whole file
+					if (expectedWidth < 0)
 					{
-						warnings.add("APNG has inconsistent frame delays " + delayCounts.keySet()
-							+ " — using most common: " + extractedDelayMs + "ms");
+						expectedWidth = decoded.width();
+						expectedHeight = decoded.height();
+					}
+					else if (decoded.width() != expectedWidth || decoded.height() != expectedHeight)
+					{
+						dimensionErrors.add(String.format(
+								"%s: %dx%d (expected %dx%d)", file.getName(),
+								decoded.width(), decoded.height(), expectedWidth, expectedHeight));
 					}
-				}
 
-				// Check dimensions
-				if (expectedWidth < 0)
-				{
-					expectedWidth = apngResult.width();
-					expectedHeight = apngResult.height();
-				}
-				else if (apngResult.width() != expectedWidth || apngResult.height() != expectedHeight)
-				{
-					dimensionErrors.add(String.format(
-						"%s: %dx%d (expected %dx%d)", file.getName(),
-						apngResult.width(), apngResult.height(), expectedWidth, expectedHeight));
+					merge(decoded.frames(), frames, patches, dimensionErrors.isEmpty());
+					merged += decoded.frames().size();
+					warnings.addAll(decoded.warnings());
 				}
-
-				// Quantize and add all frames
-				for (ApngReader.ApngFrame af : apngResult.frames())
+				else
 				{
-					QuantizeResult qr = quantizeToIndexed(af.image());
-					frames.add(new FrameData(qr.image(), qr.transparentIndex()));
-				}
-				warnings.add(file.getName() + ": loaded " + apngResult.frames().size()
-					+ " APNG frames — quantizing to 256 colors for GIF compatibility");
-				continue;
-			}
-
-			if (nameLower.endsWith(".gif"))
-			{
-				// Extract all frames from this GIF
-				LoadResult gifResult = loadGif(file);
+					int displayIndex = merged + 1;
+					if (decoded.frames().isEmpty())
+					{
+						throw new IOException("Failed to load frame " + displayIndex + " (" + file.getName()
+								+ "): ImageIO returned null");
+					}
 
-				// Use timing from the first GIF only
-				if (extractedDelayMs < 0)
-				{
-					extractedDelayMs = gifResult.extractedDelayMs();
-				}
+					if (expectedWidth < 0)
+					{
+						expectedWidth = decoded.width();
+						expectedHeight = decoded.height();
+					}
+					else if (decoded.width() != expectedWidth || decoded.height() != expectedHeight)
+					{
+						dimensionErrors.add(String.format(
+								"Frame %d (%s): %dx%d (expected %dx%d)",
+								displayIndex, file.getName(),
+								decoded.width(), decoded.height(),
+								expectedWidth, expectedHeight
+						));
+					}
 
-				// Check dimensions once for the whole GIF
-				if (expectedWidth < 0)
-				{
-					expectedWidth = gifResult.width();
-					expectedHeight = gifResult.height();
-				}
-				else if (gifResult.width() != expectedWidth || gifResult.height() != expectedHeight)
-				{
-					dimensionErrors.add(String.format(
-							"%s: %dx%d (expected %dx%d)", file.getName(),
-							gifResult.width(), gifResult.height(), expectedWidth, expectedHeight));
+					if (decoded.truecolorDetail() != null)
+					{
+						warnings.add("Frame " + displayIndex + " (" + file.getName()
+								+ "): truecolor" + decoded.truecolorDetail()
+								+ " — quantizing to 256 colors for GIF compatibility");
+					}
+					merge(decoded.frames(), frames, patches, dimensionErrors.isEmpty());
+					merged += decoded.frames().size();
 				}
 
-				frames.addAll(gifResult.frames());
-				warnings.addAll(gifResult.warnings());
-				continue;
-			}
-
-			int displayIndex = frames.size() + 1;
-
-			BufferedImage image = ImageIO.read(file);
-			if (image == null)
-			{
-				throw new IOException("Failed to load frame " + displayIndex + " (" + file.getName() + "): ImageIO returned null");
-			}
-
-			// Use Commons Imaging for metadata detection
-			ImageInfo imageInfo = null;
-			try
-			{
-				imageInfo = Imaging.getImageInfo(file);
-			}
-			catch (IOException e)
-			{
-				// Fall back gracefully — metadata enrichment will be skipped
-			}
-
-			if (expectedWidth < 0)
-			{
-				expectedWidth = image.getWidth();
-				expectedHeight = image.getHeight();
+				if (listener != null) listener.onProgress(i + 1, sorted.size());
 			}
-			else if (image.getWidth() != expectedWidth || image.getHeight() != expectedHeight)
-			{
-				dimensionErrors.add(String.format(
-						"Frame %d (%s): %dx%d (expected %dx%d)",
-						displayIndex, file.getName(),
-						image.getWidth(), image.getHeight(),
-						expectedWidth, expectedHeight
-				));
-			}
-
-			int transparentIndex = -1;
-			if (image.getColorModel() instanceof IndexColorModel icm)
-			{
-				transparentIndex = icm.getTransparentPixel();
-				image = ensureByteIndexed(image, icm);
-			}
-			else
-			{
-				String detail = "";
-				if (imageInfo != null)
-				{
-					boolean hasTransparency = imageInfo.isTransparent();
-					detail = " (" + imageInfo.getBitsPerPixel() + " bpp"
-							+ (hasTransparency ? ", transparent" : "") + ")";
-				}
-				warnings.add("Frame " + displayIndex + " (" + file.getName()
-						+ "): truecolor" + detail
-						+ " — quantizing to 256 colors for GIF compatibility");
-				QuantizeResult qr = quantizeToIndexed(image);
-				image = qr.image;
-				transparentIndex = qr.transparentIndex;
-			}
-
-			frames.add(new FrameData(image, transparentIndex));
+		}
+		finally
+		{
+			GifEncoder.release(pool, decoding);
 		}
 
 		if (!dimensionErrors.isEmpty())
@@ -302,178 +281,224 @@ public class FrameLoader
 			throw new IOException(sb.toString());
 		}
 
+		if (sharedPalette)
+		{
+			List<BufferedImage> images = frames.stream().map(FrameData::image).toList();
+			frames.clear();
+			for (QuantizeResult qr : quantizeShared(images, quantization))
+			{
+				frames.add(new FrameData(qr.image(), qr.transparentIndex()));
+			}
+			if (patchedFrames)
+			{
+				frames = PatchedFrames.of(frames);
+			}
+		}
+		else if (patches != null)
+		{
+			frames = patches.build();
+		}
+
 		return new LoadResult(frames, expectedWidth, expectedHeight, warnings, extractedDelayMs);
 	}
 
-	private static LoadResult loadGif(File file) throws IOException
+	/**
+	 * Appends one file's frames, to {@code patches} if frames are kept as patches. A
+	 * file of the wrong size is not added there, as the load is going to fail anyway.
+	 */
+	private static void merge(List<FrameData> decoded, List<FrameData> frames, PatchedFrames.Builder patches,
+							  boolean sizesMatch)
 	{
-		ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
-		ImageInputStream iis = ImageIO.createImageInputStream(file);
-		if (iis == null)
+		if (patches == null)
 		{
-			throw new IOException("Cannot open image stream: " + file.getName());
+			frames.addAll(decoded);
 		}
-		try
+		else if (sizesMatch)
 		{
-			reader.setInput(iis, false);
-			int numFrames = reader.getNumImages(true);
-			if (numFrames == 0)
-			{
-				throw new IOException("GIF contains no frames: " + file.getName());
-			}
-			List<FrameData> frames = new ArrayList<>();
-			List<String> warnings = new ArrayList<>();
-			Map<Integer, Integer> delayCounts = new LinkedHashMap<>();
+			patches.addAll(decoded);
+		}
+	}
+
+	/**
+	 * One file's frames, decoded off the loading thread, with what {@link #load} needs
+	 * to merge it in order. A still image has one frame, or none if ImageIO could not
+	 * read it, and {@code truecolorDetail} is set when it had to be quantized. An
+	 * animated file carries its most common delay, or -1, and {@code delayWarning} is
+	 * only reported if that delay is the one used.
+	 */
+	private record Decoded(List<FrameData> frames, int width, int height, boolean animated, int delayMs,
+						   String delayWarning, List<String> warnings, String truecolorDetail) {}
+
+	private static Decoded decode(File file, Quantization quantization, boolean sharedPalette, boolean patchedFrames)
+		throws IOException
+	{
+		String nameLower = file.getName().toLowerCase();
 
-			// Get logical screen size from stream metadata
-			IIOMetadata streamMeta = reader.getStreamMetadata();
-			int gifW = -1, gifH = -1;
-			if (streamMeta != null)
+		// Check for APNG before regular PNG handling
+		if ((nameLower.endsWith(".apng") || nameLower.endsWith(".png")) && ApngReader.isApng(file))
+		{
+			ApngReader.ApngResult apngResult = ApngReader.loadApng(file);
+
+			int delayMs = -1;
+			String delayWarning = null;
+			if (!apngResult.frames().isEmpty())
 			{
-				IIOMetadataNode streamRoot = (IIOMetadataNode) streamMeta.getAsTree("javax_imageio_gif_stream_1.0");
-				IIOMetadataNode lsd = findChild(streamRoot, "LogicalScreenDescriptor");
-				if (lsd != null)
+				// Use most common delay
+				Map<Integer, Integer> delayCounts = new LinkedHashMap<>();
+				for (ApngReader.ApngFrame af : apngResult.frames())
 				{
-					gifW = Integer.parseInt(lsd.getAttribute("logicalScreenWidth"));
-					gifH = Integer.parseInt(lsd.getAttribute("logicalScreenHeight"));
+					delayCounts.merge(af.delayMs(), 1, Integer::sum);
+				}
+				delayMs = delayCounts.entrySet().stream()
+					.max(Map.Entry.comparingByValue())
+					.map(Map.Entry::getKey)
+					.orElse(100);
+				if (delayCounts.size() > 1)
+				{
+					delayWarning = "APNG has inconsistent frame delays " + delayCounts.keySet()
+						+ " — using most common: " + delayMs + "ms";
 				}
 			}
-			// Fallback: use first frame dimensions
-			if (gifW <= 0 || gifH <= 0)
-			{
-				BufferedImage first = reader.read(0);
-				gifW = first.getWidth();
-				gifH = first.getHeight();
-			}
-			BufferedImage canvas = new BufferedImage(gifW, gifH, BufferedImage.TYPE_INT_ARGB);
 
-			for (int i = 0; i < numFrames; i++)
+			// Quantize all frames
+			List<FrameData> frames = new ArrayList<>();
+			if (patchedFrames)
 			{
-				BufferedImage raw = reader.read(i);
-
-				// Get frame metadata for position and delay
-				IIOMetadata meta = reader.getImageMetadata(i);
-				IIOMetadataNode root = (IIOMetadataNode) meta.getAsTree("javax_imageio_gif_image_1.0");
-
-				int frameX = 0, frameY = 0;
-				IIOMetadataNode desc = findChild(root, "ImageDescriptor");
-				if (desc != null)
+				// One palette for the file, so consecutive frames differ only where their pixels do
+				List<BufferedImage> images = apngResult.frames().stream().map(ApngReader.ApngFrame::image).toList();
+				PatchedFrames.Builder patches = new PatchedFrames.Builder();
+				for (QuantizeResult qr : quantizeShared(images, quantization))
 				{
-					frameX = Integer.parseInt(desc.getAttribute("imageLeftPosition"));
-					frameY = Integer.parseInt(desc.getAttribute("imageTopPosition"));
+					patches.add(new FrameData(qr.image(), qr.transparentIndex()));
 				}
-
-				// Extract delay
-				int delayCenti = 10; // default 100ms
-				IIOMetadataNode gce = findChild(root, "GraphicControlExtension");
-				if (gce != null)
+				frames = patches.build();
+			}
+			else
+			{
+				for (ApngReader.ApngFrame af : apngResult.frames())
 				{
-					String delayStr = gce.getAttribute("delayTime");
-					if (delayStr != null && !delayStr.isEmpty())
+					if (sharedPalette)
 					{
-						delayCenti = Integer.parseInt(delayStr);
-						if (delayCenti <= 0) delayCenti = 10;
+						frames.add(new FrameData(af.image(), -1));
+						continue;
 					}
-				}
-				int delayMs = delayCenti * 10;
-				delayCounts.merge(delayMs, 1, Integer::sum);
-
-				// Determine disposal method
-				String disposal = "none";
-				if (gce != null)
-				{
-					String d = gce.getAttribute("disposalMethod");
-					if (d != null) disposal = d;
-				}
-
-				// Save canvas state for restoreToPrevious
-				BufferedImage previousCanvas = null;
-				if ("restoreToPrevious".equals(disposal))
-				{
-					previousCanvas = new BufferedImage(gifW, gifH, BufferedImage.TYPE_INT_ARGB);
-					Graphics2D pg = previousCanvas.createGraphics();
-					pg.drawImage(canvas, 0, 0, null);
-					pg.dispose();
-				}
-
-				// Composite frame onto canvas
-				Graphics2D g2 = canvas.createGraphics();
-				g2.drawImage(raw, frameX, frameY, null);
-				g2.dispose();
-
-				// Snapshot the composited canvas for this frame
-				BufferedImage snapshot = new BufferedImage(gifW, gifH, BufferedImage.TYPE_INT_ARGB);
-				Graphics2D sg = snapshot.createGraphics();
-				sg.drawImage(canvas, 0, 0, null);
-				sg.dispose();
-
-				// Quantize to indexed
-				QuantizeResult qr = quantizeToIndexed(snapshot);
-				frames.add(new FrameData(qr.image(), qr.transparentIndex()));
-
-				// Handle disposal
-				if ("restoreToBackgroundColor".equals(disposal))
-				{
-					Graphics2D cg = canvas.createGraphics();
-					cg.setComposite(java.awt.AlphaComposite.Clear);
-					cg.fillRect(frameX, frameY, raw.getWidth(), raw.getHeight());
-					cg.dispose();
-				}
-				else if ("restoreToPrevious".equals(disposal) && previousCanvas != null)
-				{
-					Graphics2D cg = canvas.createGraphics();
-					cg.setComposite(java.awt.AlphaComposite.Src);
-					cg.drawImage(previousCanvas, 0, 0, null);
-					cg.dispose();
+					QuantizeResult qr = quantizeToIndexed(af.image(), quantization);
+					frames.add(new FrameData(qr.image(), qr.transparentIndex()));
 				}
 			}
+			List<String> warnings = List.of(file.getName() + ": loaded " + apngResult.frames().size()
+				+ " APNG frames — quantizing to 256 colors for GIF compatibility");
+			return new Decoded(frames, apngResult.width(), apngResult.height(), true, delayMs, delayWarning,
+					warnings, null);
+		}
 
-			// Use the most common delay
-			int extractedDelayMs = delayCounts.entrySet().stream()
-					.max(Map.Entry.comparingByValue())
-					.map(Map.Entry::getKey)
-					.orElse(100);
+		if (nameLower.endsWith(".gif"))
+		{
+			// Extract all frames from this GIF
+			LoadResult gifResult = loadGif(file, quantization, patchedFrames);
+			return new Decoded(gifResult.frames(), gifResult.width(), gifResult.height(), true,
+					gifResult.extractedDelayMs(), null, gifResult.warnings(), null);
+		}
 
-			if (delayCounts.size() > 1)
-			{
-				warnings.add("GIF has inconsistent frame delays " + delayCounts.keySet()
-						+ " — using most common: " + extractedDelayMs + "ms");
-			}
+		BufferedImage image = nameLower.endsWith(".png") ? PngDecoder.readIndexed(file) : null;
+		if (image == null)
+		{
+			image = ImageIO.read(file);
+		}
+		if (image == null)
+		{
+			return new Decoded(List.of(), -1, -1, false, -1, null, List.of(), null);
+		}
 
-			return new LoadResult(frames, gifW, gifH, warnings, extractedDelayMs);
+		int transparentIndex = -1;
+		String truecolorDetail = null;
+		if (image.getColorModel() instanceof IndexColorModel icm)
+		{
+			transparentIndex = icm.getTransparentPixel();
+			image = ensureByteIndexed(image, icm);
 		}
-		finally
+		else
 		{
-			iis.close();
-			reader.dispose();
+			// Described from the decoded color model rather than by reading the file again
+			ColorModel cm = image.getColorModel();
+			truecolorDetail = " (" + cm.getPixelSize() + " bpp"
+					+ (cm.getTransparency() != Transparency.OPAQUE ? ", transparent" : "") + ")";
+			if (!sharedPalette)
+			{
+				QuantizeResult qr = quantizeToIndexed(image, quantization);
+				image = qr.image;
+				transparentIndex = qr.transparentIndex;
+			}
 		}
+
+		return new Decoded(List.of(new FrameData(image, transparentIndex)), image.getWidth(), image.getHeight(),
+				false, -1, null, List.of(), truecolorDetail);
 	}
 
-	private static IIOMetadataNode findChild(IIOMetadataNode parent, String name)
+	private static LoadResult loadGif(File file, Quantization quantization, boolean patchedFrames) throws IOException
 	{
-		for (int i = 0; i < parent.getLength(); i++)
+		GifDecoder.Result gif = GifDecoder.read(file, quantization, patchedFrames);
+		Map<Integer, Integer> delayCounts = new LinkedHashMap<>();
+		for (int delayMs : gif.delaysMs())
 		{
-			if (parent.item(i) instanceof IIOMetadataNode node && name.equals(node.getNodeName()))
-			{
-				return node;
-			}
+			delayCounts.merge(delayMs, 1, Integer::sum);
 		}
-		return null;
+
+		// Use the most common delay
+		int extractedDelayMs = delayCounts.entrySet().stream()
+				.max(Map.Entry.comparingByValue())
+				.map(Map.Entry::getKey)
+				.orElse(100);
+
+		List<String> warnings = new ArrayList<>();
+		if (delayCounts.size() > 1)
+		{
+			warnings.add("GIF has inconsistent frame delays " + delayCounts.keySet()
+					+ " — using most common: " + extractedDelayMs + "ms");
+		}
+
+		return new LoadResult(gif.frames(), gif.width(), gif.height(), warnings, extractedDelayMs);
 	}
 
-	private static BufferedImage ensureByteIndexed(BufferedImage src, IndexColorModel icm)
+	/**
+	 * Copies an indexed image of another layout to {@code TYPE_BYTE_INDEXED}. Packed
+	 * 1/2/4-bit rasters are unpacked a row at a time straight from their bytes; other
+	 * layouts are read a row of samples at a time.
+	 */
+	static BufferedImage ensureByteIndexed(BufferedImage src, IndexColorModel icm)
 	{
 		if (src.getType() == BufferedImage.TYPE_BYTE_INDEXED) return src;
 		int w = src.getWidth();
 		int h = src.getHeight();
 		BufferedImage dst = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
+		byte[] out = ((DataBufferByte) dst.getRaster().getDataBuffer()).getData();
 		WritableRaster srcRaster = src.getRaster();
-		WritableRaster dstRaster = dst.getRaster();
+		if (srcRaster.getSampleModel() instanceof MultiPixelPackedSampleModel packed
+			&& srcRaster.getDataBuffer() instanceof DataBufferByte buffer)
+		{
+			int bits = packed.getPixelBitStride();
+			int scanline = packed.getScanlineStride();
+			// Bit position of pixel (0, 0), allowing for a raster that is a sub-image
+			long origin = 8L * buffer.getOffset() + packed.getDataBitOffset()
+				- (long) srcRaster.getSampleModelTranslateX() * bits
+				- 8L * srcRaster.getSampleModelTranslateY() * scanline;
+			if (origin % 8 == 0)
+			{
+				byte[] data = buffer.getData();
+				for (int y = 0; y < h; y++)
+				{
+					PackedPixels.unpack(data, (int) (origin / 8) + y * scanline, bits, out, y * w, w);
+				}
+				return dst;
+			}
+		}
+		int[] row = new int[w];
 		for (int y = 0; y < h; y++)
 		{
+			srcRaster.getSamples(0, y, w, 1, 0, row);
 			for (int x = 0; x < w; x++)
 			{
-				dstRaster.setSample(x, y, 0, srcRaster.getSample(x, y, 0));
+				out[y * w + x] = (byte) row[x];
 			}
 		}
 		return dst;
@@ -481,146 +506,254 @@ public class FrameLoader
 
 	record QuantizeResult(BufferedImage image, int transparentIndex) {}
 
+	/** Pixels sampled across all frames when choosing a shared palette. */
+	static final int SHARED_SAMPLE_PIXELS = 1 << 20;
+
+	/** Converts an image to an 8-bit indexed one with {@link Quantization#DEFAULT}. */
 	static QuantizeResult quantizeToIndexed(BufferedImage src)
+	{
+		return quantizeToIndexed(src, Quantization.DEFAULT);
+	}
+
+	/**
+	 * Converts an image to an 8-bit indexed one. Pixels under half alpha become a
+	 * transparent entry placed after the colors. Up to 256 colors (255 with
+	 * transparency) are kept exactly, in order of first appearance; beyond that the
+	 * quantizer of {@code quantization} picks the palette and each pixel maps to the
+	 * nearest entry, dithered as requested.
+	 */
+	static QuantizeResult quantizeToIndexed(BufferedImage src, Quantization quantization)
+	{
+		int[] argb = pixels(src);
+		ColorHistogram histogram = ColorHistogram.forThread();
+		boolean hasTransparency = count(argb, 1, histogram);
+		int[] paletteRgb = choosePalette(histogram, hasTransparency, quantization);
+		int transparentIndex = hasTransparency ? paletteRgb.length - 1 : -1;
+		IndexColorModel icm = colorModel(paletteRgb, transparentIndex);
+		return new QuantizeResult(map(argb, src.getWidth(), src.getHeight(), histogram, icm, paletteRgb,
+				transparentIndex, null, fits(histogram, hasTransparency) ? null : quantization.dither()),
+				transparentIndex);
+	}
+
+	/**
+	 * Converts images to 8-bit indexed ones that all share one palette and one
+	 * {@link IndexColorModel}. The palette is chosen as by
+	 * {@link #quantizeToIndexed(BufferedImage, Quantization)} from a histogram of at
+	 * most {@link #SHARED_SAMPLE_PIXELS} pixels spread evenly over all the images, so
+	 * colors stay exact only when every pixel was sampled. The images are then mapped
+	 * to it in parallel.
+	 */
+	static List<QuantizeResult> quantizeShared(List<BufferedImage> images, Quantization quantization)
+			throws IOException
+	{
+		long total = 0;
+		for (BufferedImage image : images)
+		{
+			total += (long) image.getWidth() * image.getHeight();
+		}
+		int stride = (int) Math.max((total + SHARED_SAMPLE_PIXELS - 1) / SHARED_SAMPLE_PIXELS, 1);
+
+		ColorHistogram histogram = ColorHistogram.forThread();
+		boolean hasTransparency = false;
+		for (BufferedImage image : images)
+		{
+			hasTransparency |= count(pixels(image), stride, histogram);
+		}
+		int[] paletteRgb = choosePalette(histogram, hasTransparency, quantization);
+		int transparentIndex = hasTransparency ? paletteRgb.length - 1 : -1;
+		IndexColorModel icm = colorModel(paletteRgb, transparentIndex);
+		Quantization.Dither dither = stride == 1 && fits(histogram, hasTransparency) ? null : quantization.dither();
+
+		// Colormaps fill their lookup lazily and are not thread-safe, so each thread builds its own
+		ThreadLocal<InverseColormap> colormaps =
+				ThreadLocal.withInitial(() -> new InverseColormap(paletteRgb, transparentIndex));
+		ForkJoinPool pool = GifEncoder.workers();
+		List<Future<BufferedImage>> mapped = new ArrayList<>();
+		try
+		{
+			for (BufferedImage image : images)
+			{
+				mapped.add(pool.submit(() -> {
+					int[] argb = pixels(image);
+					ColorHistogram frameColors = ColorHistogram.forThread();
+					count(argb, 1, frameColors);
+					for (int n = 0; n < frameColors.size(); n++)
+					{
+						frameColors.setValue(frameColors.slotAt(n), -1);
+					}
+					return map(argb, image.getWidth(), image.getHeight(), frameColors, icm, paletteRgb,
+							transparentIndex, colormaps.get(), dither);
+				}));
+			}
+			List<QuantizeResult> results = new ArrayList<>();
+			for (Future<BufferedImage> future : mapped)
+			{
+				results.add(new QuantizeResult(GifEncoder.await(future, LOAD_INTERRUPTED), transparentIndex));
+			}
+			return results;
+		}
+		finally
+		{
+			GifEncoder.release(pool, mapped);
+		}
+	}
+
+	private static int[] pixels(BufferedImage src)
 	{
 		int w = src.getWidth();
 		int h = src.getHeight();
+		return src.getType() == BufferedImage.TYPE_INT_ARGB
+				? (int[]) src.getRaster().getDataElements(0, 0, w, h, new int[w * h])
+				: src.getRGB(0, 0, w, h, new int[w * h], 0, w);
+	}
 
-		Map<Integer, Integer> colorCounts = new LinkedHashMap<>();
+	/**
+	 * Adds every {@code stride}th opaque pixel to {@code histogram}, and returns whether
+	 * any pixel at all is transparent.
+	 */
+	private static boolean count(int[] argb, int stride, ColorHistogram histogram)
+	{
 		boolean hasTransparency = false;
-
-		for (int y = 0; y < h; y++)
+		for (int i = 0; i < argb.length; i++)
 		{
-			for (int x = 0; x < w; x++)
+			int pixel = argb[i];
+			if ((pixel >>> 24) < 128)
 			{
-				int argb = src.getRGB(x, y);
-				int alpha = (argb >> 24) & 0xFF;
-				if (alpha < 128)
-				{
-					hasTransparency = true;
-				}
-				else
-				{
-					int rgb = argb | 0xFF000000;
-					colorCounts.merge(rgb, 1, Integer::sum);
-				}
+				hasTransparency = true;
+			}
+			else if (stride == 1 || i % stride == 0)
+			{
+				histogram.add(pixel | 0xFF000000);
 			}
 		}
+		return hasTransparency;
+	}
 
+	/**
+	 * Palette colors for the counted histogram, followed by a transparent entry when
+	 * needed. Afterwards the slot value of each color is its palette index if kept
+	 * exactly, otherwise -1.
+	 */
+	private static int[] choosePalette(ColorHistogram histogram, boolean hasTransparency, Quantization quantization)
+	{
 		int maxPaletteColors = hasTransparency ? 255 : 256;
-
-		List<Integer> palette;
-		if (colorCounts.size() <= maxPaletteColors)
+		int distinct = histogram.size();
+		boolean exact = distinct <= maxPaletteColors;
+		int[] chosen;
+		if (exact)
 		{
-			palette = new ArrayList<>(colorCounts.keySet());
+			chosen = new int[distinct];
+			for (int n = 0; n < distinct; n++)
+			{
+				chosen[n] = histogram.color(histogram.slotAt(n));
+			}
 		}
 		else
 		{
-			palette = colorCounts.entrySet().stream()
-					.sorted(Map.Entry.<Integer, Integer>comparingByValue().reversed())
-					.limit(maxPaletteColors)
-					.map(Map.Entry::getKey)
-					.collect(Collectors.toCollection(ArrayList::new));
+			int[] colors = new int[distinct];
+			int[] counts = new int[distinct];
+			for (int n = 0; n < distinct; n++)
+			{
+				int slot = histogram.slotAt(n);
+				colors[n] = histogram.color(slot);
+				counts[n] = histogram.value(slot);
+			}
+			chosen = quantization.method().quantizer().palette(colors, counts, distinct, maxPaletteColors);
 		}
-
-		int transparentIndex = -1;
-		if (hasTransparency)
+		for (int n = 0; n < distinct; n++)
 		{
-			transparentIndex = palette.size();
-			palette.add(0x00000000);
+			histogram.setValue(histogram.slotAt(n), exact ? n : -1);
 		}
 
-		int size = palette.size();
-		if (size == 0)
+		int colors = chosen.length;
+		int[] paletteRgb = Arrays.copyOf(chosen, Math.max(hasTransparency ? colors + 1 : colors, 1));
+		if (colors == 0 && !hasTransparency)
 		{
-			size = 1;
-			palette.add(0xFF000000);
+			paletteRgb[0] = 0xFF000000;
 		}
+		return paletteRgb;
+	}
+
+	/** Whether the counted colors all fit in a palette and are kept exactly. */
+	private static boolean fits(ColorHistogram histogram, boolean hasTransparency)
+	{
+		return histogram.size() <= (hasTransparency ? 255 : 256);
+	}
 
+	static IndexColorModel colorModel(int[] paletteRgb, int transparentIndex)
+	{
+		int size = paletteRgb.length;
 		byte[] r = new byte[size];
 		byte[] g = new byte[size];
 		byte[] b = new byte[size];
 		for (int i = 0; i < size; i++)
 		{
-			int c = palette.get(i);
+			int c = paletteRgb[i];
 			r[i] = (byte) ((c >> 16) & 0xFF);
 			g[i] = (byte) ((c >> 8) & 0xFF);
 			b[i] = (byte) (c & 0xFF);
 		}
+		return transparentIndex >= 0
+				? new IndexColorModel(8, size, r, g, b, transparentIndex)
+				: new IndexColorModel(8, size, r, g, b);
+	}
 
-		IndexColorModel icm;
-		if (transparentIndex >= 0)
-		{
-			icm = new IndexColorModel(8, size, r, g, b, transparentIndex);
-		}
-		else
-		{
-			icm = new IndexColorModel(8, size, r, g, b);
-		}
-
+	/**
+	 * Maps pixels to the palette. Without dithering, or with a null {@code dither} for
+	 * exact palettes, each color's palette index comes from its histogram slot value,
+	 * looked up and cached for slots still holding -1; with dithering every pixel is
+	 * looked up. {@code colormap} is built on demand when null.
+	 */
+	private static BufferedImage map(int[] argb, int w, int h, ColorHistogram histogram, IndexColorModel icm,
+									 int[] paletteRgb, int transparentIndex, InverseColormap colormap,
+									 Quantization.Dither dither)
+	{
 		BufferedImage indexed = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
-		WritableRaster raster = indexed.getRaster();
-
-		Map<Integer, Integer> colorToIndex = new HashMap<>();
-		for (int i = 0; i < palette.size(); i++)
+		byte[] out = ((DataBufferByte) indexed.getRaster().getDataBuffer()).getData();
+		if (colormap == null && (dither != null || !fits(histogram, transparentIndex >= 0)))
 		{
-			colorToIndex.put(palette.get(i), i);
+			colormap = new InverseColormap(paletteRgb, transparentIndex);
 		}
 
-		for (int y = 0; y < h; y++)
+		switch (dither != null ? dither : Quantization.Dither.NONE)
 		{
-			for (int x = 0; x < w; x++)
-			{
-				int argb = src.getRGB(x, y);
-				int alpha = (argb >> 24) & 0xFF;
-				int index;
-				if (alpha < 128 && transparentIndex >= 0)
-				{
-					index = transparentIndex;
-				}
-				else
-				{
-					int rgb = argb | 0xFF000000;
-					Integer exact = colorToIndex.get(rgb);
-					if (exact != null)
-					{
-						index = exact;
-					}
-					else
-					{
-						index = findNearestColor(rgb, palette, transparentIndex);
-					}
-				}
-				raster.setSample(x, y, 0, index);
-			}
+			case NONE -> mapPixels(argb, out, histogram, colormap, transparentIndex);
+			case ORDERED -> Dithering.ordered(argb, out, w, h, colormap, paletteRgb, transparentIndex);
+			case FLOYD_STEINBERG -> Dithering.floydSteinberg(argb, out, w, h, colormap, paletteRgb, transparentIndex);
 		}
-
-		return new QuantizeResult(indexed, transparentIndex);
+		return indexed;
 	}
 
-	private static int findNearestColor(int targetRgb, List<Integer> palette, int transparentIndex)
+	/**
+	 * Writes each pixel's palette index from its histogram slot value, looking up and
+	 * caching the nearest color for slots still holding -1.
+	 */
+	private static void mapPixels(int[] argb, byte[] out, ColorHistogram histogram, InverseColormap colormap,
+								  int transparentIndex)
 	{
-		int tr = (targetRgb >> 16) & 0xFF;
-		int tg = (targetRgb >> 8) & 0xFF;
-		int tb = targetRgb & 0xFF;
-
-		int bestIndex = 0;
-		int bestDist = Integer.MAX_VALUE;
-
-		for (int i = 0; i < palette.size(); i++)
-		{
-			if (i == transparentIndex) continue;
-			int c = palette.get(i);
-			int dr = tr - ((c >> 16) & 0xFF);
-			int dg = tg - ((c >> 8) & 0xFF);
-			int db = tb - (c & 0xFF);
-			int dist = dr * dr + dg * dg + db * db;
-			if (dist < bestDist)
+		int previous = 0;
+		int index = 0;
+		for (int i = 0; i < argb.length; i++)
+		{
+			int pixel = argb[i];
+			if ((pixel >>> 24) < 128)
 			{
-				bestDist = dist;
-				bestIndex = i;
+				out[i] = (byte) transparentIndex;
+				continue;
+			}
+			int rgb = pixel | 0xFF000000;
+			if (rgb != previous)
+			{
+				int slot = histogram.slotOf(rgb);
+				index = histogram.value(slot);
+				if (index < 0)
+				{
+					index = colormap.nearest(rgb);
+					histogram.setValue(slot, index);
+				}
+				previous = rgb;
 			}
+			out[i] = (byte) index;
 		}
-		return bestIndex;
 	}
 }
\ No newline at end of file
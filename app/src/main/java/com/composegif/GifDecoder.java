@@ -0,0 +1,643 @@
+package com.composegif;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reads every frame of an animated GIF as it appears on the logical screen.
+ * <p>
+ * The file is scanned once for its image blocks, whose LZW data is then decoded in
+ * parallel, a bounded number of frames ahead. Frames are composited in order on one
+ * reused canvas of palette indices, applying each frame's disposal there, and every
+ * frame is emitted already indexed. When the color tables hold at most 256 colors in
+ * all, counting a transparent entry if the canvas can show through, every frame is a
+ * copy of a byte canvas sharing one {@link IndexColorModel}; otherwise each frame gets
+ * a palette of just the colors it shows, and only a frame showing more than 256
+ * colors is quantized.
+ */
+class GifDecoder
+{
+	/** Frames composited onto the logical screen, with each frame's delay. */
+	record Result(List<FrameLoader.FrameData> frames, List<Integer> delaysMs, int width, int height) {}
+
+	/** An image block: where it is drawn, where its color table and LZW data start, and its GCE. */
+	private record Block(int x, int y, int width, int height, int tableOffset, int tableSize, boolean interlaced,
+						 int minCodeSize, int dataOffset, int disposal, int delayCenti, int transparentIndex) {}
+
+	private static final int MAX_CODES = 4096;
+
+	/** LZW string table, kept per thread rather than allocated for every block. */
+	private static final ThreadLocal<short[]> PREFIX = ThreadLocal.withInitial(() -> new short[MAX_CODES]);
+	private static final ThreadLocal<byte[]> SUFFIX = ThreadLocal.withInitial(() -> new byte[MAX_CODES * 2]);
+	private static final ThreadLocal<short[]> LENGTH = ThreadLocal.withInitial(() -> new short[MAX_CODES]);
+
+	/**
+	 * Decodes all frames of a GIF. {@code quantization} is used only for frames that show
+	 * more than 256 colors. With {@code patchedFrames} the frames are kept as a
+	 * {@link PatchedFrames} as they are composited, so only the changed parts of each are
+	 * held.
+	 */
+	static Result read(File file, Quantization quantization, boolean patchedFrames) throws IOException
+	{
+		byte[] data = Files.readAllBytes(file.toPath());
+		if (data.length < 13 || data[0] != 'G' || data[1] != 'I' || data[2] != 'F')
+		{
+			throw new IOException("Not a GIF file: " + file.getName());
+		}
+		int screenWidth = u16(data, 6);
+		int screenHeight = u16(data, 8);
+		int screenFlags = data[10] & 0xFF;
+		int globalTable = -1;
+		int globalSize = 0;
+		int pos = 13;
+		if ((screenFlags & 0x80) != 0)
+		{
+			globalTable = pos;
+			globalSize = 2 << (screenFlags & 7);
+			pos += 3 * globalSize;
+		}
+
+		List<Block> blocks = scan(data, pos, globalTable, globalSize, file);
+		if (blocks.isEmpty())
+		{
+			throw new IOException("GIF contains no frames: " + file.getName());
+		}
+		// Fallback: use first frame dimensions
+		if (screenWidth <= 0 || screenHeight <= 0)
+		{
+			screenWidth = blocks.get(0).width();
+			screenHeight = blocks.get(0).height();
+		}
+		// The sizes are u16 fields, so a corrupt header can ask for more pixels than an array holds
+		checkSize(screenWidth, screenHeight, file);
+		for (Block block : blocks)
+		{
+			checkSize(block.width(), block.height(), file);
+		}
+
+		ForkJoinPool pool = GifEncoder.workers();
+		int parallelism = pool.getParallelism();
+		Deque<Future<byte[]>> pending = new ArrayDeque<>();
+		try
+		{
+			int submitted = 0;
+			Canvas canvas = Canvas.create(data, blocks, screenWidth, screenHeight, quantization);
+			List<FrameLoader.FrameData> frames = patchedFrames ? null : new ArrayList<>(blocks.size());
+			PatchedFrames.Builder patches = patchedFrames ? new PatchedFrames.Builder() : null;
+			List<Integer> delays = new ArrayList<>(blocks.size());
+			for (Block block : blocks)
+			{
+				// Keep a few frames per thread decoding ahead of the composite
+				while (submitted < blocks.size() && pending.size() < 4 * parallelism)
+				{
+					Block next = blocks.get(submitted++);
+					pending.add(pool.submit(() -> decodeLzw(data, next)));
+				}
+				byte[] pixels = GifEncoder.await(pending.poll(), FrameLoader.LOAD_INTERRUPTED);
+				FrameLoader.FrameData frame = canvas.draw(block, pixels);
+				if (patchedFrames)
+				{
+					patches.add(frame);
+				}
+				else
+				{
+					frames.add(frame);
+				}
+				delays.add((block.delayCenti() > 0 ? block.delayCenti() : 10) * 10);
+			}
+			return new Result(patchedFrames ? patches.build() : frames, delays, screenWidth, screenHeight);
+		}
+		finally
+		{
+			GifEncoder.release(pool, pending);
+		}
+	}
+
+	/**
+	 * Finds the image blocks after the header and global color table, each with the
+	 * graphic control extension before it. Parsing stops at the trailer or at the
+	 * first byte that starts no known block, keeping the frames found so far.
+	 */
+	private static List<Block> scan(byte[] data, int pos, int globalTable, int globalSize, File file)
+		throws IOException
+	{
+		List<Block> blocks = new ArrayList<>();
+		int disposal = 0;
+		int delayCenti = 0;
+		int transparentIndex = -1;
+		try
+		{
+			while (pos < data.length)
+			{
+				int introducer = data[pos++] & 0xFF;
+				if (introducer == 0x21)
+				{
+					int label = data[pos++] & 0xFF;
+					if (label == 0xF9 && (data[pos] & 0xFF) >= 4)
+					{
+						int flags = data[pos + 1] & 0xFF;
+						disposal = (flags >> 2) & 7;
+						delayCenti = u16(data, pos + 2);
+						transparentIndex = (flags & 1) != 0 ? data[pos + 4] & 0xFF : -1;
+					}
+					pos = skipSubBlocks(data, pos);
+				}
+				else if (introducer == 0x2C)
+				{
+					int x = u16(data, pos);
+					int y = u16(data, pos + 2);
+					int width = u16(data, pos + 4);
+					int height = u16(data, pos + 6);
+					int flags = data[pos + 8] & 0xFF;
+					pos += 9;
+					int table = globalTable;
+					int tableSize = globalSize;
+					if ((flags & 0x80) != 0)
+					{
+						table = pos;
+						tableSize = 2 << (flags & 7);
+						pos += 3 * tableSize;
+					}
+					if (table < 0)
+					{
+						throw new IOException("GIF frame " + (blocks.size() + 1) + " has no color table: "
+							+ file.getName());
+					}
+					int minCodeSize = data[pos++] & 0xFF;
+					if (minCodeSize < 1 || minCodeSize > 8)
+					{
+						throw new IOException("Corrupt GIF image data: " + file.getName());
+					}
+					blocks.add(new Block(x, y, width, height, table, tableSize, (flags & 0x40) != 0, minCodeSize, pos,
+						disposal, delayCenti, transparentIndex));
+					pos = skipSubBlocks(data, pos);
+					// A graphic control extension applies to the next image only
+					disposal = 0;
+					delayCenti = 0;
+					transparentIndex = -1;
+				}
+				else
+				{
+					break;
+				}
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+			// Truncated file: the last block may be cut short, which its decode tolerates
+		}
+		if (!blocks.isEmpty())
+		{
+			Block last = blocks.get(blocks.size() - 1);
+			if (last.tableOffset() + 3 * last.tableSize() > data.length || last.dataOffset() > data.length)
+			{
+				blocks.remove(blocks.size() - 1);
+			}
+		}
+		return blocks;
+	}
+
+	private static void checkSize(int width, int height, File file) throws IOException
+	{
+		if ((long) width * height > Integer.MAX_VALUE - 8)
+		{
+			throw new IOException(file.getName() + ": GIF frame too large: " + width + "x" + height);
+		}
+	}
+
+	private static int skipSubBlocks(byte[] data, int pos)
+	{
+		int length;
+		while ((length = data[pos++] & 0xFF) != 0)
+		{
+			pos += length;
+		}
+		return pos;
+	}
+
+	private static int u16(byte[] data, int pos)
+	{
+		return (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8;
+	}
+
+	/**
+	 * Decodes a block's LZW data to one palette index per pixel, rows in display order.
+	 * Pixels left over when the data ends early or turns invalid stay 0.
+	 */
+	private static byte[] decodeLzw(byte[] data, Block block)
+	{
+		int count = block.width() * block.height();
+		byte[] out = new byte[count];
+		short[] prefix = PREFIX.get();
+		byte[] suffix = SUFFIX.get();
+		short[] length = LENGTH.get();
+		// suffix holds each code's last byte, and suffix[MAX_CODES + code] its first
+		int clear = 1 << block.minCodeSize();
+		for (int code = 0; code < clear; code++)
+		{
+			suffix[code] = (byte) code;
+			suffix[MAX_CODES + code] = (byte) code;
+			length[code] = 1;
+		}
+
+		int codeSize = block.minCodeSize() + 1;
+		int next = clear + 2;
+		int previous = -1;
+		int bits = 0;
+		int buffer = 0;
+		int pos = block.dataOffset();
+		int blockEnd = pos;
+		int o = 0;
+		decode:
+		while (o < count)
+		{
+			while (bits < codeSize)
+			{
+				if (pos == blockEnd)
+				{
+					if (pos >= data.length || data[pos] == 0) break decode;
+					blockEnd = pos + 1 + (data[pos] & 0xFF);
+					pos++;
+					if (blockEnd > data.length) blockEnd = data.length;
+					if (pos == blockEnd) break decode;
+				}
+				buffer |= (data[pos++] & 0xFF) << bits;
+				bits += 8;
+			}
+			int code = buffer & ((1 << codeSize) - 1);
+			buffer >>>= codeSize;
+			bits -= codeSize;
+
+			if (code == clear)
+			{
+				codeSize = block.minCodeSize() + 1;
+				next = clear + 2;
+				previous = -1;
+				continue;
+			}
+			if (code == clear + 1)
+			{
+				break;
+			}
+			if (previous < 0)
+			{
+				if (code > clear) break;
+				out[o++] = (byte) code;
+				previous = code;
+				continue;
+			}
+			if (code > next || (code == next && next == MAX_CODES))
+			{
+				break;
+			}
+
+			// A code not yet in the table is the previous string plus its own first byte
+			int written = code < next ? code : previous;
+			int end = o + length[written];
+			int c = written;
+			// Strings are stored last byte first, so they are written back to front
+			for (int p = end - 1; p >= count; p--)
+			{
+				c = prefix[c];
+			}
+			for (int p = Math.min(end, count) - 1; p >= o; p--)
+			{
+				out[p] = suffix[c];
+				c = prefix[c];
+			}
+			o = Math.min(end, count);
+			byte first = suffix[MAX_CODES + written];
+			if (code == next && o < count)
+			{
+				out[o++] = first;
+			}
+
+			if (next < MAX_CODES)
+			{
+				prefix[next] = (short) previous;
+				suffix[next] = first;
+				suffix[MAX_CODES + next] = suffix[MAX_CODES + previous];
+				length[next] = (short) (length[previous] + 1);
+				next++;
+				if (next == 1 << codeSize && codeSize < 12)
+				{
+					codeSize++;
+				}
+			}
+			previous = code;
+		}
+		return block.interlaced() ? deinterlace(out, block.width(), block.height()) : out;
+	}
+
+	/** Reorders rows stored in the four interlace passes into display order. */
+	private static byte[] deinterlace(byte[] rows, int width, int height)
+	{
+		byte[] out = new byte[rows.length];
+		int source = 0;
+		int[][] passes = {{0, 8}, {4, 8}, {2, 4}, {1, 2}};
+		for (int[] pass : passes)
+		{
+			for (int y = pass[0]; y < height; y += pass[1])
+			{
+				System.arraycopy(rows, source, out, y * width, width);
+				source += width;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * The logical screen, drawn on in frame order. Each frame's pixels are mapped from
+	 * its color table to an index into the union of all colors, with its transparent
+	 * index skipped.
+	 */
+	private abstract static class Canvas
+	{
+		final int width;
+		final int height;
+		final int[] unionRgb;
+		private final List<int[]> maps;
+		private int frame;
+
+		Canvas(int width, int height, int[] unionRgb, List<int[]> maps)
+		{
+			this.width = width;
+			this.height = height;
+			this.unionRgb = unionRgb;
+			this.maps = maps;
+		}
+
+		static Canvas create(byte[] data, List<Block> blocks, int width, int height, Quantization quantization)
+		{
+			// Union index of every color a frame can draw, in order of first appearance
+			Map<Integer, Integer> union = new HashMap<>();
+			List<int[]> maps = new ArrayList<>(blocks.size());
+			Map<Long, int[]> mapsByTable = new HashMap<>();
+			for (Block block : blocks)
+			{
+				long key = (long) block.tableOffset() << 9 | (block.transparentIndex() + 1);
+				int[] map = mapsByTable.get(key);
+				if (map == null)
+				{
+					map = new int[256];
+					for (int i = 0; i < 256; i++)
+					{
+						int entry = i < block.tableSize() ? i : 0;
+						int pos = block.tableOffset() + 3 * entry;
+						int rgb = 0xFF000000 | (data[pos] & 0xFF) << 16 | (data[pos + 1] & 0xFF) << 8
+							| (data[pos + 2] & 0xFF);
+						map[i] = i == block.transparentIndex() ? -1 : union.computeIfAbsent(rgb, k -> union.size());
+					}
+					mapsByTable.put(key, map);
+				}
+				maps.add(map);
+			}
+			int[] unionRgb = new int[union.size()];
+			union.forEach((rgb, index) -> unionRgb[index] = rgb);
+
+			// The canvas shows through where the first frame leaves it uncovered or clears its own
+			// pixels, and where any frame's area is cleared
+			Block first = blocks.get(0);
+			boolean transparent = first.transparentIndex() >= 0
+				|| first.disposal() == GifWriter.DISPOSE_PREVIOUS
+				|| first.x() > 0 || first.y() > 0
+				|| first.x() + first.width() < width || first.y() + first.height() < height;
+			for (int i = 0; i < blocks.size() - 1; i++)
+			{
+				transparent |= blocks.get(i).disposal() == GifWriter.DISPOSE_BACKGROUND;
+			}
+
+			if (unionRgb.length + (transparent ? 1 : 0) <= 256)
+			{
+				return new ByteCanvas(width, height, unionRgb, maps, transparent);
+			}
+			return new IntCanvas(width, height, unionRgb, maps, quantization);
+		}
+
+		/** Draws a block with its decoded pixels and returns the frame shown, then disposes it. */
+		FrameLoader.FrameData draw(Block block, byte[] pixels)
+		{
+			int[] map = maps.get(frame++);
+			int x0 = Math.min(block.x(), width);
+			int y0 = Math.min(block.y(), height);
+			int x1 = Math.min(block.x() + block.width(), width);
+			int y1 = Math.min(block.y() + block.height(), height);
+			Runnable restore = block.disposal() == GifWriter.DISPOSE_PREVIOUS ? save(x0, y0, x1, y1) : null;
+			for (int y = y0; y < y1; y++)
+			{
+				paint(map, pixels, (y - block.y()) * block.width() - block.x(), y * width, x0, x1);
+			}
+			FrameLoader.FrameData shown = snapshot();
+			if (block.disposal() == GifWriter.DISPOSE_BACKGROUND)
+			{
+				for (int y = y0; y < y1; y++)
+				{
+					clear(y * width + x0, y * width + x1);
+				}
+			}
+			else if (restore != null)
+			{
+				restore.run();
+			}
+			return shown;
+		}
+
+		/** Paints one row of a frame, {@code src} and {@code dst} being the offsets of x = 0. */
+		abstract void paint(int[] map, byte[] pixels, int src, int dst, int x0, int x1);
+
+		abstract FrameLoader.FrameData snapshot();
+
+		abstract void clear(int from, int to);
+
+		/** Copies a rectangle of the canvas, returning what puts it back. */
+		abstract Runnable save(int x0, int y0, int x1, int y1);
+	}
+
+	/**
+	 * Canvas of indices into a union of at most 256 colors, transparency included. All
+	 * frames share its color model and need no quantizing.
+	 */
+	private static class ByteCanvas extends Canvas
+	{
+		private final IndexColorModel icm;
+		private final int transparentIndex;
+		private final byte[] canvas;
+
+		ByteCanvas(int width, int height, int[] unionRgb, List<int[]> maps, boolean transparent)
+		{
+			super(width, height, unionRgb, maps);
+			transparentIndex = transparent ? unionRgb.length : -1;
+			icm = FrameLoader.colorModel(Arrays.copyOf(unionRgb, unionRgb.length + (transparent ? 1 : 0)),
+				transparentIndex);
+			canvas = new byte[width * height];
+			if (transparent)
+			{
+				Arrays.fill(canvas, (byte) transparentIndex);
+			}
+		}
+
+		@Override
+		void paint(int[] map, byte[] pixels, int src, int dst, int x0, int x1)
+		{
+			for (int x = x0; x < x1; x++)
+			{
+				int index = map[pixels[src + x] & 0xFF];
+				if (index >= 0) canvas[dst + x] = (byte) index;
+			}
+		}
+
+		@Override
+		FrameLoader.FrameData snapshot()
+		{
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, icm);
+			System.arraycopy(canvas, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData(), 0,
+				canvas.length);
+			return new FrameLoader.FrameData(image, transparentIndex);
+		}
+
+		@Override
+		void clear(int from, int to)
+		{
+			Arrays.fill(canvas, from, to, (byte) transparentIndex);
+		}
+
+		@Override
+		Runnable save(int x0, int y0, int x1, int y1)
+		{
+			byte[] saved = new byte[(x1 - x0) * (y1 - y0)];
+			for (int y = y0; y < y1; y++)
+			{
+				System.arraycopy(canvas, y * width + x0, saved, (y - y0) * (x1 - x0), x1 - x0);
+			}
+			return () -> {
+				for (int y = y0; y < y1; y++)
+				{
+					System.arraycopy(saved, (y - y0) * (x1 - x0), canvas, y * width + x0, x1 - x0);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Canvas of indices into a union of more than 256 colors, as with a local color
+	 * table per frame. Each frame gets its own palette of the colors it shows, in order
+	 * of first appearance with the transparent entry after them; only a frame showing
+	 * more than 256 colors is quantized.
+	 */
+	private static class IntCanvas extends Canvas
+	{
+		private static final int TRANSPARENT = -1;
+
+		private final Quantization quantization;
+		private final int[] canvas;
+		// Frame palette index of each union index, valid where its stamp is the current frame's
+		private final int[] frameIndex;
+		private final int[] stamp;
+		// Colors of the current frame in order of first appearance, as far as a palette can hold
+		private final int[] shown = new int[256];
+		private int frames;
+
+		IntCanvas(int width, int height, int[] unionRgb, List<int[]> maps, Quantization quantization)
+		{
+			super(width, height, unionRgb, maps);
+			this.quantization = quantization;
+			canvas = new int[width * height];
+			Arrays.fill(canvas, TRANSPARENT);
+			frameIndex = new int[unionRgb.length];
+			stamp = new int[unionRgb.length];
+		}
+
+		@Override
+		void paint(int[] map, byte[] pixels, int src, int dst, int x0, int x1)
+		{
+			for (int x = x0; x < x1; x++)
+			{
+				int index = map[pixels[src + x] & 0xFF];
+				if (index >= 0) canvas[dst + x] = index;
+			}
+		}
+
+		@Override
+		FrameLoader.FrameData snapshot()
+		{
+			int current = ++frames;
+			int colors = 0;
+			boolean hasTransparency = false;
+			for (int index : canvas)
+			{
+				if (index == TRANSPARENT)
+				{
+					hasTransparency = true;
+				}
+				else if (stamp[index] != current)
+				{
+					stamp[index] = current;
+					if (colors < shown.length) shown[colors] = unionRgb[index];
+					frameIndex[index] = colors++;
+				}
+			}
+
+			int size = colors + (hasTransparency ? 1 : 0);
+			if (size > 256)
+			{
+				BufferedImage argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+				int[] out = ((DataBufferInt) argb.getRaster().getDataBuffer()).getData();
+				for (int i = 0; i < canvas.length; i++)
+				{
+					out[i] = canvas[i] == TRANSPARENT ? 0 : unionRgb[canvas[i]];
+				}
+				FrameLoader.QuantizeResult qr = FrameLoader.quantizeToIndexed(argb, quantization);
+				return new FrameLoader.FrameData(qr.image(), qr.transparentIndex());
+			}
+
+			int transparentIndex = hasTransparency ? colors : -1;
+			int[] paletteRgb = Arrays.copyOf(shown, Math.max(size, 1));
+			if (hasTransparency) paletteRgb[transparentIndex] = 0;
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED,
+				FrameLoader.colorModel(paletteRgb, transparentIndex));
+			byte[] out = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+			for (int i = 0; i < canvas.length; i++)
+			{
+				int index = canvas[i];
+				out[i] = (byte) (index == TRANSPARENT ? transparentIndex : frameIndex[index]);
+			}
+			return new FrameLoader.FrameData(image, transparentIndex);
+		}
+
+		@Override
+		void clear(int from, int to)
+		{
+			Arrays.fill(canvas, from, to, TRANSPARENT);
+		}
+
+		@Override
+		Runnable save(int x0, int y0, int x1, int y1)
+		{
+			int[] saved = new int[(x1 - x0) * (y1 - y0)];
+			for (int y = y0; y < y1; y++)
+			{
+				System.arraycopy(canvas, y * width + x0, saved, (y - y0) * (x1 - x0), x1 - x0);
+			}
+			return () -> {
+				for (int y = y0; y < y1; y++)
+				{
+					System.arraycopy(saved, (y - y0) * (x1 - x0), canvas, y * width + x0, x1 - x0);
+				}
+			};
+		}
+	}
+}
@@ -1,35 +1,220 @@
 package com.composegif;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageTypeSpecifier;
-import javax.imageio.ImageWriter;
-import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.metadata.IIOMetadataNode;
-import javax.imageio.stream.ImageOutputStream;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.IndexColorModel;
-import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
 
 public class GifEncoder
 {
 
 	public interface ProgressListener
 	{
+		/** {@code total} is -1 when the frame source does not know its size. */
 		void onProgress(int current, int total);
 	}
 
+	/**
+	 * Frames pulled one at a time, in display order, so an export only holds the frames
+	 * it is working on. Frames must all have the same size.
+	 */
+	public interface FrameSource
+	{
+		int UNKNOWN_SIZE = -1;
+
+		/** A frame and how long it is shown. */
+		record Entry(FrameLoader.FrameData frame, int delayMs) {}
+
+		/** Number of frames, or {@link #UNKNOWN_SIZE} if not known in advance. */
+		int size();
+
+		/** The next frame, or null once all frames have been returned. */
+		Entry next() throws IOException;
+
+		/**
+		 * Source over materialized frames; {@code delaysMs} must match {@code frames} in
+		 * length. Since every frame is known up front, exports from it can use a shared or
+		 * {@linkplain Options#globalPalette synthesized} global color table.
+		 */
+		static FrameSource of(List<FrameLoader.FrameData> frames, List<Integer> delaysMs)
+		{
+			if (delaysMs.size() != frames.size())
+			{
+				throw new IllegalArgumentException(delaysMs.size() + " delays for " + frames.size() + " frames");
+			}
+			return new ListSource(frames, delaysMs);
+		}
+	}
+
+	/**
+	 * Export settings beyond scale and timing. Start from {@link #DEFAULT} and derive
+	 * variants with the {@code with*} methods.
+	 *
+	 * @param parallel        compress frames concurrently; the output bytes are identical either way
+	 * @param deltaFrames     write only the rectangle that changed since the previous frame,
+	 *                        choosing each frame's disposal to keep that rectangle small
+	 * @param maskUnchanged   within each written rectangle, replace pixels the viewer already
+	 *                        shows with the transparent index; implies {@code deltaFrames}
+	 * @param mergeDuplicates write runs of identical consecutive frames as one frame with
+	 *                        their delays summed
+	 * @param globalPalette   when all frames together use at most 256 colors, remap them to one
+	 *                        synthesized palette written once as the global color table
+	 * @param lossy           largest RGB distance a pixel's color may be shifted by to lengthen
+	 *                        LZW matches; 0 keeps the image exact
+	 * @param maxColors       reduce each frame to its most used colors, at most this many
+	 *                        besides transparency; 0 keeps every color. Reduced frames do not
+	 *                        get a synthesized global palette.
+	 * @param reorderPalette  compact the palette to the colors in use, most used first, and
+	 *                        write LZW codes no wider than the smaller color table needs. A
+	 *                        global palette is ordered once for all frames; otherwise each
+	 *                        frame's palette is ordered on its own.
+	 */
+	public record Options(boolean parallel, boolean deltaFrames, boolean maskUnchanged, boolean mergeDuplicates,
+						  boolean globalPalette, int lossy, int maxColors, boolean reorderPalette)
+	{
+		public static final Options DEFAULT = new Options(false, false, false, false, false, 0, 0, false);
+
+		public Options withParallel(boolean parallel)
+		{
+			return new Options(parallel, deltaFrames, maskUnchanged, mergeDuplicates, globalPalette, lossy,
+					maxColors, reorderPalette);
+		}
+
+		public Options withDeltaFrames(boolean deltaFrames)
+		{
+			return new Options(parallel, deltaFrames, maskUnchanged, mergeDuplicates, globalPalette, lossy,
+					maxColors, reorderPalette);
+		}
+
+		public Options withMaskUnchanged(boolean maskUnchanged)
+		{
+			return new Options(parallel, deltaFrames, maskUnchanged, mergeDuplicates, globalPalette, lossy,
+					maxColors, reorderPalette);
+		}
+
+		public Options withMergeDuplicates(boolean mergeDuplicates)
+		{
+			return new Options(parallel, deltaFrames, maskUnchanged, mergeDuplicates, globalPalette, lossy,
+					maxColors, reorderPalette);
+		}
+
+		public Options withGlobalPalette(boolean globalPalette)
+		{
+			return new Options(parallel, deltaFrames, maskUnchanged, mergeDuplicates, globalPalette, lossy,
+					maxColors, reorderPalette);
+		}
+
+		public Options withLossy(int lossy)
+		{
+			return new Options(parallel, deltaFrames, maskUnchanged, mergeDuplicates, globalPalette, lossy,
+					maxColors, reorderPalette);
+		}
+
+		public Options withMaxColors(int maxColors)
+		{
+			return new Options(parallel, deltaFrames, maskUnchanged, mergeDuplicates, globalPalette, lossy,
+					maxColors, reorderPalette);
+		}
+
+		public Options withReorderPalette(boolean reorderPalette)
+		{
+			return new Options(parallel, deltaFrames, maskUnchanged, mergeDuplicates, globalPalette, lossy,
+					maxColors, reorderPalette);
+		}
+	}
+
+	/** One file of a {@linkplain #encodeScales multi-resolution export}. */
+	public record ScaledOutput(int scale, File file) {}
+
+	// Largest GIF frame delay: an unsigned 16-bit count of centiseconds
+	private static final int MAX_DELAY_MS = 0xFFFF * 10;
+	// Scaled outputs of at least this many pixels are filled by several threads
+	private static final int PARALLEL_SCALE_PIXELS = 1 << 20;
+
+	/** A palette and the colormap last built for it; see {@link #colormap}. */
+	private record RemapColormap(int[] paletteRgb, int transparentIndex, InverseColormap colormap) {}
+
+	private static final ThreadLocal<RemapColormap> REMAP_COLORMAP = new ThreadLocal<>();
+
+	/**
+	 * Scaled frame as packed 8-bit indices, ready to diff and compress. {@code hash} covers
+	 * the displayed colors and is only computed when duplicates are merged.
+	 */
+	private record PreparedFrame(int width, int height, byte[] pixels, int[] colors, byte[] colorTable,
+								 int transparentIndex, int hash) {}
+
+	/**
+	 * Output frame: a prepared frame shown for {@code delayMs}. Once it is written,
+	 * {@code progress} source frames are done.
+	 */
+	private record TimedFrame(PreparedFrame frame, int delayMs, int progress) {}
+
+	/** Compressed frame waiting to be written; {@code data} is valid up to {@code length}. */
+	private record EncodedFrame(DeltaPlanner.Placement placement, byte[] localColorTable, int transparentIndex,
+								int delayMs, int progress, byte[] data, int length) {}
+
+	public static void encode(
+			List<FrameLoader.FrameData> frames,
+			File output,
+			int scale,
+			Object interpolationHint,
+			int delayMs,
+			ProgressListener listener
+	) throws IOException
+	{
+		encode(frames, output, scale, interpolationHint, delayMs, Options.DEFAULT, listener);
+	}
+
 	public static void encode(
 			List<FrameLoader.FrameData> frames,
 			File output,
 			int scale,
 			Object interpolationHint,
 			int delayMs,
+			Options options,
+			ProgressListener listener
+	) throws IOException
+	{
+		encode(frames, output, scale, interpolationHint, Collections.nCopies(frames.size(), delayMs), options,
+				listener);
+	}
+
+	/**
+	 * Encodes frames with individual display times; {@code delaysMs} must match
+	 * {@code frames} in length.
+	 */
+	public static void encode(
+			List<FrameLoader.FrameData> frames,
+			File output,
+			int scale,
+			Object interpolationHint,
+			List<Integer> delaysMs,
+			Options options,
 			ProgressListener listener
 	) throws IOException
 	{
@@ -37,56 +222,1030 @@ public class GifEncoder
 		{
 			throw new IOException("No frames to encode");
 		}
+		encode(FrameSource.of(frames, delaysMs), output, scale, interpolationHint, options, listener);
+	}
+
+	/**
+	 * Encodes frames pulled from {@code source}, holding only the frames in flight, so
+	 * memory does not grow with the length of the animation. Unless the source comes from
+	 * {@link FrameSource#of}, the global color table is the first frame's palette and
+	 * {@link Options#globalPalette} is ignored, as both need every frame up front. The
+	 * file is only created once the source has produced a frame.
+	 */
+	public static void encode(
+			FrameSource source,
+			File output,
+			int scale,
+			Object interpolationHint,
+			Options options,
+			ProgressListener listener
+	) throws IOException
+	{
+		encode(source, List.of(new Output(scale, fileOpener(output), true)), interpolationHint, options, listener);
+	}
+
+	/**
+	 * Encodes the frames at several scales in one pass over the source, writing one file
+	 * per output. Palette analysis runs once. With nearest-neighbour scaling, each frame
+	 * is prepared once at the smallest scale and its indices are replicated for the
+	 * scales that are multiples of it, which also reuse its duplicate merging and delta
+	 * rectangles. Other scales are prepared on their own, concurrently in parallel mode.
+	 * Progress counts source frames written to every output.
+	 */
+	public static void encodeScales(
+			FrameSource source,
+			List<ScaledOutput> outputs,
+			Object interpolationHint,
+			Options options,
+			ProgressListener listener
+	) throws IOException
+	{
+		if (outputs.isEmpty())
+		{
+			throw new IllegalArgumentException("No outputs to encode");
+		}
+		List<Output> targets = new ArrayList<>();
+		for (ScaledOutput output : outputs)
+		{
+			targets.add(new Output(output.scale(), fileOpener(output.file()), true));
+		}
+		encode(source, targets, interpolationHint, options, listener);
+	}
+
+	private static ChannelOpener fileOpener(File output)
+	{
+		return () -> FileChannel.open(output.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Encodes to a caller-owned stream, which is flushed but not closed. See
+	 * {@link #encode(FrameSource, File, int, Object, Options, ProgressListener)}.
+	 */
+	public static void encode(
+			FrameSource source,
+			OutputStream output,
+			int scale,
+			Object interpolationHint,
+			Options options,
+			ProgressListener listener
+	) throws IOException
+	{
+		encode(source, List.of(new Output(scale, () -> new OutputStreamChannel(output), false)), interpolationHint,
+				options, listener);
+		output.flush();
+	}
+
+	/**
+	 * Encodes to a caller-owned channel, which is left open. See
+	 * {@link #encode(FrameSource, File, int, Object, Options, ProgressListener)}.
+	 */
+	public static void encode(
+			FrameSource source,
+			WritableByteChannel output,
+			int scale,
+			Object interpolationHint,
+			Options options,
+			ProgressListener listener
+	) throws IOException
+	{
+		encode(source, List.of(new Output(scale, () -> output, false)), interpolationHint, options, listener);
+	}
+
+	/**
+	 * Encodes into memory. The buffer starts at {@code sizeHint} bytes and grows as
+	 * needed; the result is positioned at 0 with the GIF as its remaining bytes.
+	 */
+	public static ByteBuffer encodeToBuffer(
+			FrameSource source,
+			int sizeHint,
+			int scale,
+			Object interpolationHint,
+			Options options,
+			ProgressListener listener
+	) throws IOException
+	{
+		ByteBufferChannel channel = new ByteBufferChannel(sizeHint);
+		encode(source, List.of(new Output(scale, () -> channel, false)), interpolationHint, options, listener);
+		return channel.result();
+	}
+
+	/** Opens the output once there is something to write. */
+	private interface ChannelOpener
+	{
+		WritableByteChannel open() throws IOException;
+	}
+
+	/**
+	 * One file being written by the core encode loop. An output whose {@code ratio} is set
+	 * follows the first output: its frames are the first output's scaled up by that factor.
+	 */
+	private static final class Output
+	{
+		final int scale;
+		final ChannelOpener opener;
+		final boolean closeChannel;
+		int ratio;
+		GlobalPalette palette;
+		PaletteOrder order;
+		byte[] globalColorTable;
+		FrameQueue queue;
+		WritableByteChannel channel;
+		GifWriter gif;
+		int screenWidth;
+		int screenHeight;
+		int written;
+		int progress;
+		// The current run of identical frames; it is queued once a different frame arrives
+		PreparedFrame run;
+		int runDelayMs;
+
+		Output(int scale, ChannelOpener opener, boolean closeChannel)
+		{
+			this.scale = scale;
+			this.opener = opener;
+			this.closeChannel = closeChannel;
+		}
+	}
 
+	private static void encode(
+			FrameSource source,
+			List<Output> outputs,
+			Object interpolationHint,
+			Options options,
+			ProgressListener listener
+	) throws IOException
+	{
+		int total = source.size();
+		boolean isNearestNeighbor = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR.equals(interpolationHint);
+		boolean merge = options.mergeDuplicates();
+
+		// Smallest scale first, so the outputs that can follow it come after it
+		outputs = new ArrayList<>(outputs);
+		outputs.sort(Comparator.comparingInt(output -> output.scale));
+		Output first = outputs.get(0);
+		for (Output output : outputs.subList(1, outputs.size()))
+		{
+			if ((isNearestNeighbor || output.scale == first.scale) && output.scale % first.scale == 0)
+			{
+				output.ratio = output.scale / first.scale;
+			}
+		}
+
+		// Knowing every frame up front allows a global color table covering all of them
+		if (source instanceof ListSource list)
+		{
+			IndexColorModel sharedPalette = findSharedPalette(list.frames);
+			for (int i = 0; i < outputs.size(); i++)
+			{
+				Output output = outputs.get(i);
+				// Whether only the colors pixels reference are needed; interpolation can land on any entry
+				boolean usedOnly = output.scale == 1 || isNearestNeighbor;
+				Output same = output.ratio > 0 ? first : null;
+				for (int j = 0; j < i && same == null; j++)
+				{
+					Output earlier = outputs.get(j);
+					if (earlier.ratio == 0 && (earlier.scale == 1 || isNearestNeighbor) == usedOnly) same = earlier;
+				}
+				if (same != null)
+				{
+					output.palette = same.palette;
+					output.order = same.order;
+					output.globalColorTable = same.globalColorTable;
+				}
+				else
+				{
+					selectPalette(output, list.frames, sharedPalette, usedOnly, options);
+				}
+			}
+		}
+
+		// Frames are scaled and compressed as tasks while this thread plans and writes them
+		// in order. In parallel mode the tasks run on a pool with at most `windowSize` frames
+		// in flight per stage; otherwise each runs inline when it is awaited.
+		int threads = Runtime.getRuntime().availableProcessors();
+		ForkJoinPool pool = options.parallel() && total != 1 ? new ForkJoinPool(threads) : null;
+		int windowSize = pool != null ? threads * 2 : 1;
+		boolean delta = options.deltaFrames() || options.maskUnchanged();
+		// Interlacing only helps progressive display of stills; delta frames skip it
+		boolean interlace = !delta;
+		FrameReader reader = new FrameReader(source, pool, windowSize, outputs,
+				(frameData, output) -> prepareFrame(frameData, output.scale, interpolationHint, isNearestNeighbor,
+						options.maxColors(), output.palette, output.order, options.reorderPalette(), merge));
+		FrameCompressor compressor = new FrameCompressor(pool, interlace, options.lossy(), options.reorderPalette());
+		for (Output output : outputs)
+		{
+			output.queue = output.ratio > 0 && delta
+					? new FrameQueue(compressor, first.queue, output.ratio, options.maskUnchanged())
+					: new FrameQueue(compressor, delta ? new DeltaPlanner() : null, options.maskUnchanged());
+		}
+
+		try
+		{
+			reader.fill();
+			if (reader.isEmpty())
+			{
+				throw new IOException("No frames to encode");
+			}
+
+			try
+			{
+				for (Output output : outputs)
+				{
+					output.channel = output.opener.open();
+					output.gif = new GifWriter(output.channel);
+				}
+
+				int read = 0;
+				int reported = 0;
+				while (!reader.isEmpty())
+				{
+					int delayMs = reader.nextDelayMs();
+					List<PreparedFrame> frames = reader.next();
+					reader.fill();
+					read++;
+					boolean last = reader.isEmpty();
+
+					boolean firstSame = false;
+					for (int i = 0; i < outputs.size(); i++)
+					{
+						Output output = outputs.get(i);
+						PreparedFrame frame = frames.get(i);
+						if (read == 1)
+						{
+							output.screenWidth = frame.width();
+							output.screenHeight = frame.height();
+						}
+
+						// Followers repeat the first output's frames, so they merge the same runs
+						boolean same = output.ratio > 0 ? firstSame : merge && output.run != null
+								&& output.runDelayMs + delayMs <= MAX_DELAY_MS && sameImage(output.run, frame);
+						if (i == 0) firstSame = same;
+						if (same)
+						{
+							output.runDelayMs += delayMs;
+						}
+						else
+						{
+							if (output.run != null)
+							{
+								output.queue.add(new TimedFrame(output.run, output.runDelayMs, read - 1));
+							}
+							output.run = frame;
+							output.runDelayMs = delayMs;
+						}
+						if (last)
+						{
+							output.queue.add(new TimedFrame(output.run, output.runDelayMs, read));
+							output.queue.finish();
+						}
+					}
+
+					int keep = last ? 0 : windowSize - 1;
+					for (Output output : outputs)
+					{
+						while (output.queue.pending.size() > keep)
+						{
+							EncodedFrame encoded = await(output.queue.pending.poll());
+							output.globalColorTable = writeFrame(output.gif, encoded, output.written, output.screenWidth,
+									output.screenHeight, output.globalColorTable, interlace);
+							output.written++;
+							output.progress = encoded.progress();
+							int done = outputs.stream().mapToInt(o -> o.progress).min().getAsInt();
+							if (listener != null && done > reported)
+							{
+								reported = done;
+								listener.onProgress(done, total);
+							}
+						}
+					}
+				}
+
+				for (Output output : outputs)
+				{
+					output.gif.finish();
+				}
+			}
+			finally
+			{
+				close(outputs);
+			}
+		}
+		finally
+		{
+			if (pool != null)
+			{
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	/** Picks the global color table of an output and the palette its frames are remapped to, if any. */
+	private static void selectPalette(Output output, List<FrameLoader.FrameData> frames,
+									  IndexColorModel sharedPalette, boolean usedOnly, Options options)
+	{
+		// Color reduction happens per frame, after a global palette would have been built
+		boolean synthesize = options.globalPalette() && options.maxColors() == 0;
+		if (options.globalPalette() && sharedPalette != null)
+		{
+			// Padded like the frames' own tables, so none of them needs a local copy
+			output.globalColorTable = GifWriter.colorTable(sharedPalette);
+		}
+		else if (synthesize && (output.palette = GlobalPalette.build(frames, usedOnly,
+				options.maskUnchanged())) != null)
+		{
+			output.globalColorTable = GifWriter.colorTable(output.palette.colorModel());
+		}
+		else if (sharedPalette != null)
+		{
+			output.globalColorTable = globalColorTable(sharedPalette);
+		}
+
+		if (options.reorderPalette() && options.maxColors() == 0 && output.globalColorTable != null)
+		{
+			IndexColorModel global = output.palette != null ? output.palette.colorModel() : sharedPalette;
+			output.order = PaletteOrder.byFrequency(DeltaPlanner.colors(global),
+					PaletteOrder.count(frames, output.palette), usedOnly, options.maskUnchanged());
+			output.globalColorTable = GifWriter.colorTable(output.order.colorModel());
+		}
+	}
+
+	/** Closes the channels the encoder owns, even if closing one of them fails. */
+	private static void close(List<Output> outputs) throws IOException
+	{
+		IOException failure = null;
+		for (Output output : outputs)
+		{
+			if (!output.closeChannel || output.channel == null) continue;
+			try
+			{
+				output.channel.close();
+			}
+			catch (IOException e)
+			{
+				if (failure == null) failure = e;
+				else failure.addSuppressed(e);
+			}
+		}
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Whether two prepared frames display the same pixels. The hashes rule out most
+	 * differing frames before the exact comparison.
+	 */
+	private static boolean sameImage(PreparedFrame a, PreparedFrame b)
+	{
+		if (a.hash() != b.hash() || a.width() != b.width() || a.height() != b.height()) return false;
+		if (Arrays.equals(a.colors(), b.colors()))
+		{
+			return Arrays.equals(a.pixels(), b.pixels());
+		}
+		byte[] pa = a.pixels();
+		byte[] pb = b.pixels();
+		int[] ca = a.colors();
+		int[] cb = b.colors();
+		for (int i = 0; i < pa.length; i++)
+		{
+			if (ca[pa[i] & 0xFF] != cb[pb[i] & 0xFF]) return false;
+		}
+		return true;
+	}
+
+	/** GIF delay for a duration, rounded to centiseconds with the 2cs floor browsers honor. */
+	private static int toCentiseconds(int delayMs)
+	{
 		int delayCentiseconds = Math.round(delayMs / 10.0f);
-		if (delayCentiseconds < 2) delayCentiseconds = 2;
+		return Math.max(delayCentiseconds, 2);
+	}
 
-		ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
-		try (ImageOutputStream ios = ImageIO.createImageOutputStream(output))
+	/**
+	 * Writes one frame, preceded by the header when it is the first.
+	 *
+	 * @return the global color table in effect from now on
+	 */
+	private static byte[] writeFrame(GifWriter gif, EncodedFrame encoded, int index, int screenWidth,
+									 int screenHeight, byte[] globalColorTable, boolean interlace) throws IOException
+	{
+		byte[] localColorTable = encoded.localColorTable();
+		if (index == 0)
 		{
-			writer.setOutput(ios);
+			// Without a shared palette the first frame's table becomes the global one
+			if (globalColorTable == null) globalColorTable = localColorTable;
+			gif.writeHeader(screenWidth, screenHeight, globalColorTable);
+		}
+		if (Arrays.equals(localColorTable, globalColorTable))
+		{
+			localColorTable = null;
+		}
 
-			int scaledWidth = frames.get(0).image().getWidth() * scale;
-			int scaledHeight = frames.get(0).image().getHeight() * scale;
+		DeltaPlanner.Placement placement = encoded.placement();
+		gif.writeGraphicControl(placement.disposal(), toCentiseconds(encoded.delayMs()), encoded.transparentIndex());
+		if (index == 0)
+		{
+			gif.writeLoopExtension(0);
+		}
+		gif.writeImage(placement.x(), placement.y(), placement.width(), placement.height(), localColorTable,
+				interlace, encoded.data(), encoded.length());
+		return globalColorTable;
+	}
 
-			IIOMetadata streamMeta = writer.getDefaultStreamMetadata(null);
-			IndexColorModel sharedPalette = findSharedPalette(frames);
-			configureStreamMeta(streamMeta, scaledWidth, scaledHeight, sharedPalette);
+	/**
+	 * Scales one frame and unpacks its indices and palette, reduced to {@code maxColors}
+	 * and remapped to {@code palette} and then {@code order} when those are given. With
+	 * {@code reorder} set and no {@code order}, the frame's own palette is ordered.
+	 */
+	private static PreparedFrame prepareFrame(
+			FrameLoader.FrameData frameData,
+			int scale,
+			Object interpolationHint,
+			boolean isNearestNeighbor,
+			int maxColors,
+			GlobalPalette palette,
+			PaletteOrder order,
+			boolean reorder,
+			boolean hash
+	)
+	{
+		BufferedImage scaledFrame = toByteIndexed(scaleFrame(frameData, scale, interpolationHint, isNearestNeighbor));
+		IndexColorModel icm = (IndexColorModel) scaledFrame.getColorModel();
+		int w = scaledFrame.getWidth();
+		int h = scaledFrame.getHeight();
+		byte[] pixels = (byte[]) scaledFrame.getRaster().getDataElements(0, 0, w, h, new byte[w * h]);
+		if (maxColors > 0)
+		{
+			icm = reduceColors(pixels, icm, maxColors);
+		}
+		int transparentIndex = icm.getTransparentPixel();
+		byte[] remap = null;
+		if (palette != null)
+		{
+			remap = palette.remapTable(icm);
+			icm = palette.colorModel();
+			transparentIndex = transparentIndex >= 0 ? palette.transparentIndex() : -1;
+		}
+		if (reorder)
+		{
+			if (order == null)
+			{
+				// No global palette, so there is no remap yet to count through
+				long[] counts = new long[256];
+				for (byte pixel : pixels)
+				{
+					counts[pixel & 0xFF]++;
+				}
+				order = PaletteOrder.byFrequency(DeltaPlanner.colors(icm), counts, true, false);
+			}
+			byte[] orderRemap = order.remap();
+			if (remap == null)
+			{
+				remap = orderRemap;
+			}
+			else
+			{
+				for (int i = 0; i < remap.length; i++)
+				{
+					remap[i] = orderRemap[remap[i] & 0xFF];
+				}
+			}
+			icm = order.colorModel();
+			transparentIndex = transparentIndex >= 0 ? icm.getTransparentPixel() : -1;
+		}
+		if (remap != null)
+		{
+			for (int i = 0; i < pixels.length; i++)
+			{
+				pixels[i] = remap[pixels[i] & 0xFF];
+			}
+		}
+		int[] colors = DeltaPlanner.colors(icm);
 
-			writer.prepareWriteSequence(streamMeta);
+		int contentHash = 0;
+		if (hash)
+		{
+			for (byte pixel : pixels)
+			{
+				contentHash = 31 * contentHash + colors[pixel & 0xFF];
+			}
+		}
+		return new PreparedFrame(w, h, pixels, colors, GifWriter.colorTable(icm), transparentIndex, contentHash);
+	}
 
-			boolean isNearestNeighbor = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR.equals(interpolationHint);
-			int total = frames.size();
+	/**
+	 * Keeps the {@code maxColors} most used opaque colors of a frame, remapping the others
+	 * to the nearest kept color in place. Ties keep the lower index. Returns {@code icm}
+	 * itself when the frame already uses few enough colors.
+	 */
+	static IndexColorModel reduceColors(byte[] pixels, IndexColorModel icm, int maxColors)
+	{
+		int transparent = icm.getTransparentPixel();
+		int[] counts = new int[256];
+		for (byte pixel : pixels)
+		{
+			counts[pixel & 0xFF]++;
+		}
+		int used = 0;
+		for (int i = 0; i < 256; i++)
+		{
+			if (counts[i] > 0 && i != transparent) used++;
+		}
+		if (used <= maxColors) return icm;
+
+		Integer[] order = new Integer[256];
+		for (int i = 0; i < 256; i++) order[i] = i;
+		Arrays.sort(order, (a, b) -> Integer.compare(counts[b], counts[a]));
+
+		int mapSize = icm.getMapSize();
+		int[] keptRgb = new int[maxColors];
+		byte[] remap = new byte[256];
+		int kept = 0;
+		boolean[] isKept = new boolean[256];
+		for (int i : order)
+		{
+			if (kept == maxColors) break;
+			if (i == transparent || counts[i] == 0) continue;
+			isKept[i] = true;
+			kept++;
+		}
+		// Kept colors stay in palette order, with transparency after them
+		int next = 0;
+		for (int i = 0; i < 256; i++)
+		{
+			if (!isKept[i]) continue;
+			keptRgb[next] = icm.getRGB(i < mapSize ? i : 0);
+			remap[i] = (byte) next++;
+		}
+		InverseColormap colormap = new InverseColormap(keptRgb, -1);
+		boolean hasTransparent = transparent >= 0 && counts[transparent] > 0;
+		for (int i = 0; i < 256; i++)
+		{
+			if (isKept[i] || counts[i] == 0) continue;
+			remap[i] = i == transparent ? (byte) maxColors : (byte) colormap.nearest(icm.getRGB(i < mapSize ? i : 0));
+		}
+		for (int i = 0; i < pixels.length; i++)
+		{
+			pixels[i] = remap[pixels[i] & 0xFF];
+		}
+
+		int size = hasTransparent ? maxColors + 1 : maxColors;
+		byte[] r = new byte[size];
+		byte[] g = new byte[size];
+		byte[] b = new byte[size];
+		for (int i = 0; i < maxColors; i++)
+		{
+			r[i] = (byte) (keptRgb[i] >> 16);
+			g[i] = (byte) (keptRgb[i] >> 8);
+			b[i] = (byte) keptRgb[i];
+		}
+		return hasTransparent
+				? new IndexColorModel(8, size, r, g, b, maxColors)
+				: new IndexColorModel(8, size, r, g, b);
+	}
+
+	private static final class ListSource implements FrameSource
+	{
+		private final List<FrameLoader.FrameData> frames;
+		private final List<Integer> delaysMs;
+		private int index;
+
+		ListSource(List<FrameLoader.FrameData> frames, List<Integer> delaysMs)
+		{
+			this.frames = frames;
+			this.delaysMs = delaysMs;
+		}
+
+		@Override
+		public int size()
+		{
+			return frames.size();
+		}
+
+		@Override
+		public Entry next()
+		{
+			if (index == frames.size()) return null;
+			Entry entry = new Entry(frames.get(index), delaysMs.get(index));
+			index++;
+			return entry;
+		}
+	}
+
+	/** Writes straight from the writer's heap buffer, without the JDK adapter's chunk copies. */
+	private static final class OutputStreamChannel implements WritableByteChannel
+	{
+		private final OutputStream out;
 
-			for (int i = 0; i < total; i++)
+		OutputStreamChannel(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException
+		{
+			int length = src.remaining();
+			if (src.hasArray())
 			{
-				FrameLoader.FrameData frameData = frames.get(i);
-				BufferedImage scaledFrame = scaleFrame(frameData, scale, interpolationHint, isNearestNeighbor);
+				out.write(src.array(), src.arrayOffset() + src.position(), length);
+				src.position(src.limit());
+			}
+			else
+			{
+				byte[] bytes = new byte[length];
+				src.get(bytes);
+				out.write(bytes);
+			}
+			return length;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
+	/** Collects output in a heap buffer that doubles when full. */
+	private static final class ByteBufferChannel implements WritableByteChannel
+	{
+		private ByteBuffer buffer;
 
-				int transparentIndex = frameData.transparentIndex();
-				if (scaledFrame.getColorModel() instanceof IndexColorModel icm)
+		ByteBufferChannel(int sizeHint)
+		{
+			buffer = ByteBuffer.allocate(Math.max(sizeHint, 64));
+		}
+
+		@Override
+		public int write(ByteBuffer src)
+		{
+			int length = src.remaining();
+			if (buffer.remaining() < length)
+			{
+				int capacity = buffer.capacity();
+				while (capacity - buffer.position() < length)
 				{
-					transparentIndex = icm.getTransparentPixel();
+					capacity = Math.multiplyExact(capacity, 2);
 				}
+				buffer = ByteBuffer.allocate(capacity).put(buffer.flip());
+			}
+			buffer.put(src);
+			return length;
+		}
+
+		ByteBuffer result()
+		{
+			return buffer.flip();
+		}
 
-				IIOMetadata imageMeta = writer.getDefaultImageMetadata(
-						new ImageTypeSpecifier(scaledFrame), null);
-				configureImageMeta(imageMeta, delayCentiseconds, transparentIndex, i == 0);
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
 
-				writer.writeToSequence(new IIOImage(scaledFrame, null, imageMeta), null);
+		@Override
+		public void close()
+		{
+		}
+	}
 
-				if (listener != null)
+	/**
+	 * Pulls frames from the source and queues their preparation for every output, keeping
+	 * at most {@code windowSize} source frames prepared or in progress. Outputs that follow
+	 * the first one upscale its prepared frame instead of starting from the source.
+	 */
+	private static final class FrameReader
+	{
+		private final FrameSource source;
+		private final ForkJoinPool pool;
+		private final int windowSize;
+		private final List<Output> outputs;
+		private final BiFunction<FrameLoader.FrameData, Output, PreparedFrame> prepare;
+		private final ArrayDeque<List<Future<PreparedFrame>>> prepared = new ArrayDeque<>();
+		private final ArrayDeque<Integer> delaysMs = new ArrayDeque<>();
+		private boolean exhausted;
+
+		FrameReader(FrameSource source, ForkJoinPool pool, int windowSize, List<Output> outputs,
+					BiFunction<FrameLoader.FrameData, Output, PreparedFrame> prepare)
+		{
+			this.source = source;
+			this.pool = pool;
+			this.windowSize = windowSize;
+			this.outputs = outputs;
+			this.prepare = prepare;
+		}
+
+		void fill() throws IOException
+		{
+			// Tasks run inline when not parallel and never block, so check once per frame
+			if (Thread.interrupted())
+			{
+				throw new InterruptedIOException("GIF export interrupted");
+			}
+			while (!exhausted && prepared.size() < windowSize)
+			{
+				FrameSource.Entry entry = source.next();
+				if (entry == null)
+				{
+					exhausted = true;
+					return;
+				}
+				FrameLoader.FrameData frameData = entry.frame();
+				List<Future<PreparedFrame>> frames = new ArrayList<>(outputs.size());
+				for (Output output : outputs)
 				{
-					listener.onProgress(i + 1, total);
+					if (output.ratio > 0)
+					{
+						Future<PreparedFrame> base = frames.get(0);
+						frames.add(submit(pool, () -> upscale(await(base), output.ratio)));
+					}
+					else
+					{
+						frames.add(submit(pool, () -> prepare.apply(frameData, output)));
+					}
 				}
+				prepared.add(frames);
+				delaysMs.add(entry.delayMs());
 			}
+		}
 
-			writer.endWriteSequence();
+		boolean isEmpty()
+		{
+			return prepared.isEmpty();
 		}
-		finally
+
+		int nextDelayMs()
+		{
+			return delaysMs.peek();
+		}
+
+		/** The next source frame as prepared for each output, in output order. */
+		List<PreparedFrame> next() throws IOException
+		{
+			delaysMs.poll();
+			List<PreparedFrame> frames = new ArrayList<>(outputs.size());
+			for (Future<PreparedFrame> frame : prepared.poll())
+			{
+				frames.add(await(frame));
+			}
+			return frames;
+		}
+	}
+
+	/**
+	 * Places output frames in display order and queues their compression. In delta mode
+	 * a frame is queued one frame late, once the planner has fixed its rectangle and
+	 * disposal. A queue for upscaled copies of another queue's frames reuses that queue's
+	 * placements, scaled, instead of planning its own.
+	 */
+	private static final class FrameQueue
+	{
+		final ArrayDeque<Future<EncodedFrame>> pending = new ArrayDeque<>();
+
+		private final FrameCompressor compressor;
+		private final DeltaPlanner planner;
+		private final FrameQueue leader;
+		private final int ratio;
+		private final boolean mask;
+		// Queues following this one, and for a follower, the leader's placements it has yet to use
+		private final List<FrameQueue> followers = new ArrayList<>();
+		private final ArrayDeque<DeltaPlanner.Placement> planned = new ArrayDeque<>();
+
+		// The frame awaiting its placement, and the frame placed before it, which is what
+		// the viewer shows under it
+		private TimedFrame unplaced;
+		private PreparedFrame placed;
+		private DeltaPlanner.Placement placedAt;
+
+		FrameQueue(FrameCompressor compressor, DeltaPlanner planner, boolean mask)
+		{
+			this.compressor = compressor;
+			this.planner = planner;
+			this.leader = null;
+			this.ratio = 1;
+			this.mask = mask;
+		}
+
+		/** Queue for frames {@code ratio} times the size of {@code leader}'s, each added after the leader's. */
+		FrameQueue(FrameCompressor compressor, FrameQueue leader, int ratio, boolean mask)
+		{
+			this.compressor = compressor;
+			this.planner = null;
+			this.leader = leader;
+			this.ratio = ratio;
+			this.mask = mask;
+			leader.followers.add(this);
+		}
+
+		void add(TimedFrame timed)
+		{
+			PreparedFrame frame = timed.frame();
+			if (planner == null && leader == null)
+			{
+				DeltaPlanner.Placement full = new DeltaPlanner.Placement(0, 0, frame.width(), frame.height(),
+						GifWriter.DISPOSE_BACKGROUND);
+				pending.add(compressor.submit(timed, full, null, null));
+				return;
+			}
+
+			DeltaPlanner.Placement placement;
+			if (leader != null)
+			{
+				placement = unplaced != null ? planned.poll() : null;
+			}
+			else
+			{
+				placement = planner.add(frame.width(), frame.height(), frame.pixels(), frame.colors());
+			}
+			if (placement != null)
+			{
+				place(placement);
+			}
+			unplaced = timed;
+		}
+
+		void finish()
+		{
+			if (planner != null || leader != null)
+			{
+				place(leader != null ? planned.poll() : planner.finish());
+			}
+		}
+
+		private void place(DeltaPlanner.Placement placement)
+		{
+			for (FrameQueue follower : followers)
+			{
+				follower.planned.add(follower.scaled(placement));
+			}
+			pending.add(compressor.submit(unplaced, placement, mask ? placed : null, placedAt));
+			placed = unplaced.frame();
+			placedAt = placement;
+		}
+
+		private DeltaPlanner.Placement scaled(DeltaPlanner.Placement placement)
+		{
+			return new DeltaPlanner.Placement(placement.x() * ratio, placement.y() * ratio,
+					placement.width() * ratio, placement.height() * ratio, placement.disposal());
+		}
+	}
+
+	/**
+	 * Compresses placed frames, on the pool or deferred until awaited. Sequential mode
+	 * shares one encoder, which is safe because each task runs just before its frame is
+	 * written; pool tasks use their thread's encoder and copy the result out.
+	 */
+	private static final class FrameCompressor
+	{
+		private final ForkJoinPool pool;
+		private final boolean interlace;
+		private final int lossy;
+		private final boolean compactCodes;
+		private final LzwEncoder sharedLzw;
+		private final ThreadLocal<LzwEncoder> encoders = ThreadLocal.withInitial(LzwEncoder::new);
+
+		/**
+		 * @param compactCodes size LZW codes to each frame's color table instead of the
+		 *                     8 bits the JDK writer always uses; every index must then
+		 *                     fall inside the table
+		 */
+		FrameCompressor(ForkJoinPool pool, boolean interlace, int lossy, boolean compactCodes)
+		{
+			this.pool = pool;
+			this.interlace = interlace;
+			this.lossy = lossy;
+			this.compactCodes = compactCodes;
+			this.sharedLzw = pool == null ? new LzwEncoder() : null;
+		}
+
+		/**
+		 * Queues compression of the frame's placed rectangle. With a {@code previous} frame,
+		 * pixels it already shows are masked to a transparent index when one is free.
+		 */
+		Future<EncodedFrame> submit(TimedFrame timed, DeltaPlanner.Placement placement,
+									PreparedFrame previous, DeltaPlanner.Placement previousPlacement)
+		{
+			PreparedFrame frame = timed.frame();
+			return GifEncoder.submit(pool, () ->
+			{
+				byte[] source = frame.pixels();
+				int offset = placement.y() * frame.width() + placement.x();
+				int stride = frame.width();
+				int transparentIndex = frame.transparentIndex();
+				byte[] colorTable = frame.colorTable();
+				if (previous != null)
+				{
+					byte[] masked = new byte[placement.width() * placement.height()];
+					int maskIndex = DeltaPlanner.maskUnchanged(frame.width(), frame.pixels(), frame.colors(),
+							transparentIndex, placement, previous.pixels(), previous.colors(), previousPlacement,
+							masked);
+					if (maskIndex >= 0)
+					{
+						source = masked;
+						offset = 0;
+						stride = placement.width();
+						transparentIndex = maskIndex;
+						colorTable = GifWriter.ensureTableEntry(colorTable, maskIndex);
+					}
+				}
+
+				LzwEncoder lzw = sharedLzw != null ? sharedLzw : encoders.get();
+				int codeSize = compactCodes ? Math.max(2, GifWriter.tableBits(colorTable)) : 8;
+				int length = lzw.encode(source, offset, placement.width(), placement.height(), stride, interlace,
+						codeSize, frame.colors(), transparentIndex, lossy);
+				byte[] data = sharedLzw != null ? lzw.buffer() : Arrays.copyOf(lzw.buffer(), length);
+				return new EncodedFrame(placement, colorTable, transparentIndex, timed.delayMs(), timed.progress(),
+						data, length);
+			});
+		}
+	}
+
+	/**
+	 * Runs {@code task} on the pool, or defers it to {@link #await} when there is none
+	 * so sequential encoding does its work in write order.
+	 */
+	private static <T> Future<T> submit(ForkJoinPool pool, Callable<T> task)
+	{
+		return pool != null ? pool.submit(task) : new FutureTask<>(task);
+	}
+
+	static <T> T await(Future<T> future) throws IOException
+	{
+		return await(future, "GIF export interrupted");
+	}
+
+	/**
+	 * Result of {@code future}, with the task's own exception rethrown, or
+	 * {@link InterruptedIOException} with {@code interruptedMessage} if the wait is interrupted.
+	 */
+	static <T> T await(Future<T> future, String interruptedMessage) throws IOException
+	{
+		if (future instanceof FutureTask<T> deferred)
+		{
+			deferred.run();
+		}
+		try
 		{
-			writer.dispose();
+			return future.get();
 		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(interruptedMessage);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			// A ForkJoinPool wraps a callable's checked exception in a RuntimeException, and
+			// wraps that again when it is rethrown to another thread
+			while (cause.getClass() == RuntimeException.class && cause.getCause() != null)
+			{
+				cause = cause.getCause();
+			}
+			if (cause instanceof IOException io) throw io;
+			if (cause instanceof RuntimeException re) throw re;
+			if (cause instanceof Error err) throw err;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Pool to fan work out to: the one running the calling thread, so work started from
+	 * a pool task shares its threads and waiting on it helps run it, or else a new pool
+	 * with a thread per core. Hand it back with {@link #release}.
+	 */
+	static ForkJoinPool workers()
+	{
+		ForkJoinPool current = ForkJoinTask.getPool();
+		return current != null ? current : new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Shuts down a pool from {@link #workers} that was created for the caller; in a
+	 * shared pool, only the caller's {@code pending} tasks are cancelled.
+	 */
+	static void release(ForkJoinPool pool, Collection<? extends Future<?>> pending)
+	{
+		if (pool != ForkJoinTask.getPool())
+		{
+			pool.shutdownNow();
+			return;
+		}
+		for (Future<?> task : pending)
+		{
+			task.cancel(true);
+		}
+	}
+
+	private static BufferedImage toByteIndexed(BufferedImage image)
+	{
+		if (image.getType() == BufferedImage.TYPE_BYTE_INDEXED) return image;
+		return FrameLoader.quantizeToIndexed(image).image();
 	}
 
 	private static BufferedImage scaleFrame(
@@ -106,7 +1265,7 @@ public class GifEncoder
 
 		if (isNearestNeighbor && src.getType() == BufferedImage.TYPE_BYTE_INDEXED)
 		{
-			return scaleIndexedNearest(src, scale, dstW, dstH);
+			return scaleIndexedNearest(src, scale);
 		}
 
 		// Bilinear/Bicubic path: scale in ARGB, then remap to indexed
@@ -126,79 +1285,105 @@ public class GifEncoder
 		return qr.image();
 	}
 
-	private static BufferedImage scaleIndexedNearest(BufferedImage src, int scale, int dstW, int dstH)
+	/**
+	 * Nearest-neighbour upscale of an indexed image by an integer factor, working on the
+	 * index bytes: each source row is expanded once and then copied to the other
+	 * {@code scale - 1} destination rows. Large outputs are split by rows across threads.
+	 */
+	static BufferedImage scaleIndexedNearest(BufferedImage src, int scale)
 	{
 		IndexColorModel icm = (IndexColorModel) src.getColorModel();
+		int srcW = src.getWidth();
+		int srcH = src.getHeight();
+		int dstW = srcW * scale;
+		int dstH = srcH * scale;
 		BufferedImage dst = new BufferedImage(dstW, dstH, BufferedImage.TYPE_BYTE_INDEXED, icm);
-		WritableRaster srcRaster = src.getRaster();
-		WritableRaster dstRaster = dst.getRaster();
+		byte[] in = (byte[]) src.getRaster().getDataElements(0, 0, srcW, srcH, null);
+		byte[] out = ((DataBufferByte) dst.getRaster().getDataBuffer()).getData();
+		replicate(in, srcW, srcH, scale, out);
+		return dst;
+	}
 
-		for (int y = 0; y < dstH; y++)
+	/** A prepared frame upscaled by nearest neighbour, sharing its palette. */
+	private static PreparedFrame upscale(PreparedFrame frame, int scale)
+	{
+		int w = frame.width() * scale;
+		int h = frame.height() * scale;
+		byte[] pixels = new byte[w * h];
+		replicate(frame.pixels(), frame.width(), frame.height(), scale, pixels);
+		return new PreparedFrame(w, h, pixels, frame.colors(), frame.colorTable(), frame.transparentIndex(), 0);
+	}
+
+	/** Writes each index of the row-packed {@code in} as a {@code scale}×{@code scale} block of {@code out}. */
+	private static void replicate(byte[] in, int srcW, int srcH, int scale, byte[] out)
+	{
+		int dstW = srcW * scale;
+		IntStream rows = IntStream.range(0, srcH);
+		if ((long) dstW * srcH * scale >= PARALLEL_SCALE_PIXELS)
 		{
-			int srcY = y / scale;
-			for (int x = 0; x < dstW; x++)
+			rows = rows.parallel();
+		}
+		rows.forEach(sy ->
+		{
+			int s = sy * srcW;
+			int rowStart = sy * scale * dstW;
+			int d = rowStart;
+			for (int sx = 0; sx < srcW; sx++)
+			{
+				byte index = in[s++];
+				for (int k = 0; k < scale; k++)
+				{
+					out[d++] = index;
+				}
+			}
+			for (int k = 1; k < scale; k++)
 			{
-				dstRaster.setSample(x, y, 0, srcRaster.getSample(x / scale, srcY, 0));
+				System.arraycopy(out, rowStart, out, rowStart + k * dstW, dstW);
 			}
-		}
-		return dst;
+		});
 	}
 
+	/** Remaps an ARGB frame scaled by {@link #scaleFrame} back to its source palette. */
 	private static BufferedImage remapToIndexed(BufferedImage argb, IndexColorModel icm, int transparentIndex)
 	{
 		int w = argb.getWidth();
 		int h = argb.getHeight();
 		BufferedImage indexed = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
-		WritableRaster raster = indexed.getRaster();
+		int[] in = ((DataBufferInt) argb.getRaster().getDataBuffer()).getData();
+		byte[] out = ((DataBufferByte) indexed.getRaster().getDataBuffer()).getData();
 
-		int mapSize = icm.getMapSize();
-		int[] paletteRgb = new int[mapSize];
-		for (int i = 0; i < mapSize; i++)
+		InverseColormap colormap = colormap(icm, transparentIndex);
+		for (int i = 0; i < in.length; i++)
 		{
-			paletteRgb[i] = icm.getRGB(i);
-		}
-
-		for (int y = 0; y < h; y++)
-		{
-			for (int x = 0; x < w; x++)
+			int pixel = in[i];
+			if ((pixel >>> 24) < 128 && transparentIndex >= 0)
 			{
-				int pixel = argb.getRGB(x, y);
-				int alpha = (pixel >> 24) & 0xFF;
-				if (alpha < 128 && transparentIndex >= 0)
-				{
-					raster.setSample(x, y, 0, transparentIndex);
-				}
-				else
-				{
-					raster.setSample(x, y, 0, findNearest(pixel, paletteRgb, transparentIndex));
-				}
+				out[i] = (byte) transparentIndex;
+			}
+			else
+			{
+				out[i] = (byte) colormap.nearest(pixel);
 			}
 		}
 		return indexed;
 	}
 
-	private static int findNearest(int targetArgb, int[] paletteRgb, int transparentIndex)
+	/**
+	 * The calling thread's colormap for {@code icm}, reused while consecutive frames
+	 * share a palette, so cells it has filled are not computed again for every frame.
+	 */
+	private static InverseColormap colormap(IndexColorModel icm, int transparentIndex)
 	{
-		int tr = (targetArgb >> 16) & 0xFF;
-		int tg = (targetArgb >> 8) & 0xFF;
-		int tb = targetArgb & 0xFF;
-
-		int bestIdx = 0;
-		int bestDist = Integer.MAX_VALUE;
-		for (int i = 0; i < paletteRgb.length; i++)
+		int[] paletteRgb = new int[icm.getMapSize()];
+		icm.getRGBs(paletteRgb);
+		RemapColormap cached = REMAP_COLORMAP.get();
+		if (cached == null || cached.transparentIndex() != transparentIndex
+				|| !Arrays.equals(cached.paletteRgb(), paletteRgb))
 		{
-			if (i == transparentIndex) continue;
-			int pr = (paletteRgb[i] >> 16) & 0xFF;
-			int pg = (paletteRgb[i] >> 8) & 0xFF;
-			int pb = paletteRgb[i] & 0xFF;
-			int dist = (tr - pr) * (tr - pr) + (tg - pg) * (tg - pg) + (tb - pb) * (tb - pb);
-			if (dist < bestDist)
-			{
-				bestDist = dist;
-				bestIdx = i;
-			}
+			cached = new RemapColormap(paletteRgb, transparentIndex, new InverseColormap(paletteRgb, transparentIndex));
+			REMAP_COLORMAP.set(cached);
 		}
-		return bestIdx;
+		return cached.colormap();
 	}
 
 	static IndexColorModel findSharedPalette(List<FrameLoader.FrameData> frames)
@@ -227,108 +1412,20 @@ public class GifEncoder
 		return first;
 	}
 
-	private static void configureStreamMeta(IIOMetadata streamMeta, int width, int height,
-											 IndexColorModel globalPalette) throws IOException
-	{
-		String formatName = streamMeta.getNativeMetadataFormatName();
-		IIOMetadataNode root = (IIOMetadataNode) streamMeta.getAsTree(formatName);
-
-		IIOMetadataNode lsd = getOrCreateChild(root, "LogicalScreenDescriptor");
-		lsd.setAttribute("logicalScreenWidth", String.valueOf(width));
-		lsd.setAttribute("logicalScreenHeight", String.valueOf(height));
-		lsd.setAttribute("colorResolution", "8");
-		lsd.setAttribute("pixelAspectRatio", "0");
-
-		if (globalPalette != null)
-		{
-			IIOMetadataNode gct = getOrCreateChild(root, "GlobalColorTable");
-			int mapSize = globalPalette.getMapSize();
-			// GIF requires power-of-2 color table size
-			int gifSize = 2;
-			while (gifSize < mapSize) gifSize *= 2;
-			gct.setAttribute("sizeOfGlobalColorTable", String.valueOf(gifSize));
-			gct.setAttribute("backgroundColorIndex", "0");
-			gct.setAttribute("sortFlag", "FALSE");
-
-			while (gct.hasChildNodes())
-			{
-				gct.removeChild(gct.getFirstChild());
-			}
-
-			for (int i = 0; i < gifSize; i++)
-			{
-				IIOMetadataNode entry = new IIOMetadataNode("ColorTableEntry");
-				entry.setAttribute("index", String.valueOf(i));
-				if (i < mapSize)
-				{
-					int rgb = globalPalette.getRGB(i);
-					entry.setAttribute("red", String.valueOf((rgb >> 16) & 0xFF));
-					entry.setAttribute("green", String.valueOf((rgb >> 8) & 0xFF));
-					entry.setAttribute("blue", String.valueOf(rgb & 0xFF));
-				}
-				else
-				{
-					entry.setAttribute("red", "0");
-					entry.setAttribute("green", "0");
-					entry.setAttribute("blue", "0");
-				}
-				gct.appendChild(entry);
-			}
-		}
-
-		streamMeta.setFromTree(formatName, root);
-	}
-
-	private static void configureImageMeta(
-			IIOMetadata imageMeta,
-			int delayCentiseconds,
-			int transparentIndex,
-			boolean firstFrame
-	) throws IOException
-	{
-		String formatName = imageMeta.getNativeMetadataFormatName();
-		IIOMetadataNode root = (IIOMetadataNode) imageMeta.getAsTree(formatName);
-
-		IIOMetadataNode gce = getOrCreateChild(root, "GraphicControlExtension");
-		gce.setAttribute("disposalMethod", "restoreToBackgroundColor");
-		gce.setAttribute("userInputFlag", "FALSE");
-		gce.setAttribute("delayTime", String.valueOf(delayCentiseconds));
-
-		if (transparentIndex >= 0)
-		{
-			gce.setAttribute("transparentColorFlag", "TRUE");
-			gce.setAttribute("transparentColorIndex", String.valueOf(transparentIndex));
-		}
-		else
-		{
-			gce.setAttribute("transparentColorFlag", "FALSE");
-			gce.setAttribute("transparentColorIndex", "0");
-		}
-
-		if (firstFrame)
-		{
-			IIOMetadataNode appExtensions = getOrCreateChild(root, "ApplicationExtensions");
-			IIOMetadataNode netscape = new IIOMetadataNode("ApplicationExtension");
-			netscape.setAttribute("applicationID", "NETSCAPE");
-			netscape.setAttribute("authenticationCode", "2.0");
-			netscape.setUserObject(new byte[]{1, 0, 0}); // loop count 0 = infinite
-			appExtensions.appendChild(netscape);
-		}
-
-		imageMeta.setFromTree(formatName, root);
-	}
-
-	private static IIOMetadataNode getOrCreateChild(IIOMetadataNode parent, String name)
+	/**
+	 * Global color table for a shared palette, padded with black to a power of two.
+	 */
+	private static byte[] globalColorTable(IndexColorModel palette)
 	{
-		for (int i = 0; i < parent.getLength(); i++)
+		int mapSize = palette.getMapSize();
+		byte[] table = new byte[GifWriter.tableSize(mapSize) * 3];
+		for (int i = 0; i < mapSize; i++)
 		{
-			if (parent.item(i).getNodeName().equals(name))
-			{
-				return (IIOMetadataNode) parent.item(i);
-			}
+			int rgb = palette.getRGB(i);
+			table[i * 3] = (byte) (rgb >> 16);
+			table[i * 3 + 1] = (byte) (rgb >> 8);
+			table[i * 3 + 2] = (byte) rgb;
 		}
-		IIOMetadataNode child = new IIOMetadataNode(name);
-		parent.appendChild(child);
-		return child;
+		return table;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,218 @@
+package com.composegif;
+
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming GIF89a writer. Blocks are assembled in a heap buffer and drained
+ * to the channel as it fills, with no intermediate image or metadata objects. Image
+ * data comes precompressed from {@link LzwEncoder}, so frames can be compressed on
+ * other threads and written here in order.
+ */
+class GifWriter
+{
+	static final int DISPOSE_UNSPECIFIED = 0;
+	static final int DISPOSE_NONE = 1;
+	static final int DISPOSE_BACKGROUND = 2;
+	static final int DISPOSE_PREVIOUS = 3;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private int globalTableBits = 8;
+
+	GifWriter(WritableByteChannel channel)
+	{
+		this.channel = channel;
+	}
+
+	/**
+	 * Writes the signature and Logical Screen Descriptor, followed by the global color
+	 * table if one is given. The table must already be padded to a power of two.
+	 */
+	void writeHeader(int width, int height, byte[] globalColorTable) throws IOException
+	{
+		require(13);
+		buffer.put((byte) 'G').put((byte) 'I').put((byte) 'F');
+		buffer.put((byte) '8').put((byte) '9').put((byte) 'a');
+		buffer.putShort((short) width);
+		buffer.putShort((short) height);
+
+		int packed = 7 << 4; // color resolution 8
+		if (globalColorTable != null)
+		{
+			globalTableBits = tableBits(globalColorTable);
+			packed |= 0x80 | (globalTableBits - 1);
+		}
+		buffer.put((byte) packed);
+		buffer.put((byte) 0); // background color index
+		buffer.put((byte) 0); // pixel aspect ratio
+
+		if (globalColorTable != null)
+		{
+			put(globalColorTable, 0, globalColorTable.length);
+		}
+	}
+
+	/**
+	 * Writes the NETSCAPE2.0 application extension. A loop count of 0 loops forever.
+	 */
+	void writeLoopExtension(int loopCount) throws IOException
+	{
+		require(19);
+		buffer.put((byte) 0x21).put((byte) 0xFF).put((byte) 11);
+		buffer.put((byte) 'N').put((byte) 'E').put((byte) 'T').put((byte) 'S');
+		buffer.put((byte) 'C').put((byte) 'A').put((byte) 'P').put((byte) 'E');
+		buffer.put((byte) '2').put((byte) '.').put((byte) '0');
+		buffer.put((byte) 3).put((byte) 1).putShort((short) loopCount);
+		buffer.put((byte) 0);
+	}
+
+	void writeGraphicControl(int disposal, int delayCentiseconds, int transparentIndex) throws IOException
+	{
+		require(8);
+		buffer.put((byte) 0x21).put((byte) 0xF9).put((byte) 4);
+		int packed = (disposal & 0x7) << 2;
+		if (transparentIndex >= 0)
+		{
+			packed |= 0x1;
+		}
+		buffer.put((byte) packed);
+		buffer.putShort((short) delayCentiseconds);
+		buffer.put((byte) Math.max(transparentIndex, 0));
+		buffer.put((byte) 0);
+	}
+
+	/**
+	 * Writes an Image Descriptor and optional local color table followed by image data
+	 * already produced by {@link LzwEncoder}.
+	 */
+	void writeImage(int left, int top, int width, int height, byte[] localColorTable, boolean interlace,
+					byte[] data, int length) throws IOException
+	{
+		writeImageDescriptor(left, top, width, height, localColorTable, interlace);
+		put(data, 0, length);
+	}
+
+	void writeImageDescriptor(int left, int top, int width, int height, byte[] localColorTable,
+							  boolean interlace) throws IOException
+	{
+		require(10);
+		buffer.put((byte) 0x2C);
+		buffer.putShort((short) left);
+		buffer.putShort((short) top);
+		buffer.putShort((short) width);
+		buffer.putShort((short) height);
+		int packed = interlace ? 0x40 : 0;
+		if (localColorTable != null)
+		{
+			packed |= 0x80 | (tableBits(localColorTable) - 1);
+		}
+		else
+		{
+			// Size bits are meaningless without a local table; mirror the global one as the JDK does
+			packed |= globalTableBits - 1;
+		}
+		buffer.put((byte) packed);
+		if (localColorTable != null)
+		{
+			put(localColorTable, 0, localColorTable.length);
+		}
+	}
+
+	/**
+	 * Writes the trailer and drains everything buffered so far to the channel.
+	 */
+	void finish() throws IOException
+	{
+		require(1);
+		buffer.put((byte) 0x3B);
+		flush();
+	}
+
+	void flush() throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Builds a GIF color table for the palette, padded to the next power of two
+	 * (minimum 2). Padding entries repeat the first color, matching the JDK writer.
+	 */
+	static byte[] colorTable(IndexColorModel icm)
+	{
+		int mapSize = icm.getMapSize();
+		int tableSize = tableSize(mapSize);
+		byte[] table = new byte[tableSize * 3];
+		for (int i = 0; i < tableSize; i++)
+		{
+			int rgb = icm.getRGB(i < mapSize ? i : 0);
+			table[i * 3] = (byte) (rgb >> 16);
+			table[i * 3 + 1] = (byte) (rgb >> 8);
+			table[i * 3 + 2] = (byte) rgb;
+		}
+		return table;
+	}
+
+	/**
+	 * Returns {@code table} if it already has an entry for {@code index}, otherwise a copy
+	 * grown to the next power of two with the new entries repeating the first color.
+	 */
+	static byte[] ensureTableEntry(byte[] table, int index)
+	{
+		if (index * 3 < table.length) return table;
+		byte[] grown = Arrays.copyOf(table, tableSize(index + 1) * 3);
+		for (int i = table.length; i < grown.length; i += 3)
+		{
+			System.arraycopy(table, 0, grown, i, 3);
+		}
+		return grown;
+	}
+
+	/** Smallest legal GIF color table size (a power of two, 2..256) holding {@code colors}. */
+	static int tableSize(int colors)
+	{
+		int size = 2;
+		while (size < colors) size *= 2;
+		return size;
+	}
+
+	/** Bits per index of a color table, whose size is a power of two. */
+	static int tableBits(byte[] table)
+	{
+		return Integer.numberOfTrailingZeros(table.length / 3);
+	}
+
+	private void put(byte[] data, int offset, int length) throws IOException
+	{
+		while (length > 0)
+		{
+			if (!buffer.hasRemaining())
+			{
+				flush();
+			}
+			int n = Math.min(length, buffer.remaining());
+			buffer.put(data, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void require(int bytes) throws IOException
+	{
+		if (buffer.remaining() < bytes)
+		{
+			flush();
+		}
+	}
+}
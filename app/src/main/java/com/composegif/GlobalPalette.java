@@ -0,0 +1,190 @@
+package com.composegif;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One palette covering every frame of an export, so the GIF can carry a single global
+ * color table instead of a local table per frame.
+ * <p>
+ * Colors are collected into a primitive open-addressing map from opaque RGB to global
+ * index, and each frame is then remapped through a 256-entry lookup built from its own
+ * palette. When any frame is transparent (or a slot is requested for masking), one
+ * extra index is reserved for transparency after the colors.
+ */
+class GlobalPalette
+{
+	private static final int MAX_COLORS = 256;
+	private static final int HASH_BITS = 10;
+	private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+
+	/** Opaque ARGB per slot; 0 marks a free slot since every stored color has alpha 0xFF. */
+	private final int[] keys = new int[1 << HASH_BITS];
+	private final short[] values = new short[1 << HASH_BITS];
+	private final int[] rgb = new int[MAX_COLORS];
+	private int size;
+	private int transparentIndex = -1;
+	private IndexColorModel colorModel;
+	/** Built on the first color missing from the palette. */
+	private InverseColormap colormap;
+
+	private GlobalPalette()
+	{
+	}
+
+	/**
+	 * Collects the colors of all frames, or returns null if they don't fit in one table.
+	 *
+	 * @param usedOnly         count only colors that pixels reference. Scaling with
+	 *                         interpolation can land on any palette entry, so it needs
+	 *                         whole palettes.
+	 * @param reserveTransparent keep a transparent slot even if no frame has one, when
+	 *                         there is room
+	 */
+	static GlobalPalette build(List<FrameLoader.FrameData> frames, boolean usedOnly, boolean reserveTransparent)
+	{
+		GlobalPalette palette = new GlobalPalette();
+		boolean anyTransparent = false;
+		byte[] row = new byte[0];
+		boolean[] used = new boolean[MAX_COLORS];
+		for (FrameLoader.FrameData frame : frames)
+		{
+			BufferedImage image = frame.image();
+			if (image.getType() != BufferedImage.TYPE_BYTE_INDEXED
+					|| !(image.getColorModel() instanceof IndexColorModel icm))
+			{
+				return null;
+			}
+
+			int mapSize = icm.getMapSize();
+			int transparent = icm.getTransparentPixel();
+			if (usedOnly)
+			{
+				Arrays.fill(used, false);
+				Raster raster = image.getRaster();
+				int w = image.getWidth();
+				if (row.length < w) row = new byte[w];
+				for (int y = 0; y < image.getHeight(); y++)
+				{
+					raster.getDataElements(0, y, w, 1, row);
+					for (int x = 0; x < w; x++)
+					{
+						used[row[x] & 0xFF] = true;
+					}
+				}
+			}
+
+			for (int i = 0; i < MAX_COLORS; i++)
+			{
+				if (usedOnly ? !used[i] : i >= mapSize) continue;
+				if (i == transparent)
+				{
+					anyTransparent = true;
+					continue;
+				}
+				// Indices past the palette display as entry 0, as the GIF table pads that way
+				if (!palette.add(icm.getRGB(i < mapSize ? i : 0) | 0xFF000000)) return null;
+			}
+		}
+
+		if (anyTransparent || reserveTransparent && palette.size < MAX_COLORS)
+		{
+			if (palette.size == MAX_COLORS) return null;
+			palette.transparentIndex = palette.size;
+		}
+		palette.colorModel = palette.createColorModel();
+		return palette;
+	}
+
+	/** The synthesized palette, with the reserved transparent index if there is one. */
+	IndexColorModel colorModel()
+	{
+		return colorModel;
+	}
+
+	int transparentIndex()
+	{
+		return transparentIndex;
+	}
+
+	/**
+	 * Lookup from a frame's palette indices to global indices. Colors outside the global
+	 * palette (only possible for frames it was not built from) map to the nearest one.
+	 */
+	byte[] remapTable(IndexColorModel icm)
+	{
+		int mapSize = icm.getMapSize();
+		int transparent = icm.getTransparentPixel();
+		byte[] table = new byte[MAX_COLORS];
+		for (int i = 0; i < MAX_COLORS; i++)
+		{
+			if (i == transparent && transparentIndex >= 0)
+			{
+				table[i] = (byte) transparentIndex;
+				continue;
+			}
+			int argb = icm.getRGB(i < mapSize ? i : 0) | 0xFF000000;
+			int index = get(argb);
+			table[i] = (byte) (index >= 0 ? index : nearest(argb));
+		}
+		return table;
+	}
+
+	private boolean add(int argb)
+	{
+		int slot = slot(argb);
+		if (keys[slot] == argb) return true;
+		if (size == MAX_COLORS) return false;
+		keys[slot] = argb;
+		values[slot] = (short) size;
+		rgb[size++] = argb;
+		return true;
+	}
+
+	private int get(int argb)
+	{
+		int slot = slot(argb);
+		return keys[slot] == argb ? values[slot] : -1;
+	}
+
+	/** Slot holding {@code argb}, or the free slot where it would go. */
+	private int slot(int argb)
+	{
+		int slot = (argb * 0x9E3779B1) >>> (32 - HASH_BITS);
+		while (keys[slot] != 0 && keys[slot] != argb)
+		{
+			slot = (slot + 1) & HASH_MASK;
+		}
+		return slot;
+	}
+
+	/** Frames are remapped concurrently, so lookups share the colormap under the lock. */
+	private synchronized int nearest(int argb)
+	{
+		if (colormap == null)
+		{
+			colormap = new InverseColormap(Arrays.copyOf(rgb, size), -1);
+		}
+		return colormap.nearest(argb);
+	}
+
+	private IndexColorModel createColorModel()
+	{
+		int count = Math.max(transparentIndex >= 0 ? size + 1 : size, 1);
+		byte[] r = new byte[count];
+		byte[] g = new byte[count];
+		byte[] b = new byte[count];
+		for (int i = 0; i < size; i++)
+		{
+			r[i] = (byte) (rgb[i] >> 16);
+			g[i] = (byte) (rgb[i] >> 8);
+			b[i] = (byte) rgb[i];
+		}
+		return transparentIndex >= 0
+				? new IndexColorModel(8, count, r, g, b, transparentIndex)
+				: new IndexColorModel(8, count, r, g, b);
+	}
+}
@@ -0,0 +1,124 @@
+package com.composegif;
+
+import java.util.Arrays;
+
+/**
+ * Nearest-palette-color lookup for remapping many pixels against one palette.
+ * <p>
+ * RGB space is divided into 32×32×32 cells (the top five bits of each channel). The
+ * first lookup in a cell computes which palette entries can be nearest to any color
+ * in it: every entry whose closest possible distance to the cell is within the
+ * smallest farthest distance of any entry. Later lookups only scan that short list.
+ * Results are exact and match a full linear scan, including ties going to the lowest
+ * index. Instances are not thread-safe.
+ */
+class InverseColormap
+{
+	private static final int CELL_BITS = 5;
+	private static final int CELL_SHIFT = 8 - CELL_BITS;
+	private static final int CELL_SPAN = 1 << CELL_SHIFT;
+
+	private final int[] red;
+	private final int[] green;
+	private final int[] blue;
+	/** Palette index of each entry; the skipped index has no entry. */
+	private final int[] indices;
+	/** Entries, ascending, that can be nearest within each cell; null until first used. */
+	private final int[][] candidates = new int[1 << (3 * CELL_BITS)][];
+
+	/**
+	 * @param paletteRgb palette colors as (A)RGB; alpha is ignored
+	 * @param skipIndex  index never returned (the transparent entry), or -1
+	 */
+	InverseColormap(int[] paletteRgb, int skipIndex)
+	{
+		int count = 0;
+		for (int i = 0; i < paletteRgb.length; i++)
+		{
+			if (i != skipIndex) count++;
+		}
+		red = new int[count];
+		green = new int[count];
+		blue = new int[count];
+		indices = new int[count];
+		int n = 0;
+		for (int i = 0; i < paletteRgb.length; i++)
+		{
+			if (i == skipIndex) continue;
+			red[n] = (paletteRgb[i] >> 16) & 0xFF;
+			green[n] = (paletteRgb[i] >> 8) & 0xFF;
+			blue[n] = paletteRgb[i] & 0xFF;
+			indices[n++] = i;
+		}
+	}
+
+	/** Index of the palette color closest to {@code rgb} in RGB distance, or 0 if there is none. */
+	int nearest(int rgb)
+	{
+		int r = (rgb >> 16) & 0xFF;
+		int g = (rgb >> 8) & 0xFF;
+		int b = rgb & 0xFF;
+		int cell = (r >> CELL_SHIFT) << (2 * CELL_BITS) | (g >> CELL_SHIFT) << CELL_BITS | (b >> CELL_SHIFT);
+		int[] list = candidates[cell];
+		if (list == null)
+		{
+			list = candidates(r & ~(CELL_SPAN - 1), g & ~(CELL_SPAN - 1), b & ~(CELL_SPAN - 1));
+			candidates[cell] = list;
+		}
+
+		int best = -1;
+		int bestDist = Integer.MAX_VALUE;
+		for (int n : list)
+		{
+			int dr = r - red[n];
+			int dg = g - green[n];
+			int db = b - blue[n];
+			int dist = dr * dr + dg * dg + db * db;
+			if (dist < bestDist)
+			{
+				bestDist = dist;
+				best = n;
+			}
+		}
+		return best >= 0 ? indices[best] : 0;
+	}
+
+	private int[] candidates(int r0, int g0, int b0)
+	{
+		int count = red.length;
+		int[] minDist = new int[count];
+		int threshold = Integer.MAX_VALUE;
+		for (int n = 0; n < count; n++)
+		{
+			minDist[n] = sq(gap(red[n], r0)) + sq(gap(green[n], g0)) + sq(gap(blue[n], b0));
+			int maxDist = sq(reach(red[n], r0)) + sq(reach(green[n], g0)) + sq(reach(blue[n], b0));
+			threshold = Math.min(threshold, maxDist);
+		}
+
+		int[] list = new int[count];
+		int size = 0;
+		for (int n = 0; n < count; n++)
+		{
+			if (minDist[n] <= threshold) list[size++] = n;
+		}
+		return Arrays.copyOf(list, size);
+	}
+
+	/** Distance from {@code v} to the nearest value of the cell range starting at {@code lo}. */
+	private static int gap(int v, int lo)
+	{
+		int hi = lo + CELL_SPAN - 1;
+		return v < lo ? lo - v : v > hi ? v - hi : 0;
+	}
+
+	/** Distance from {@code v} to the farthest value of the cell range starting at {@code lo}. */
+	private static int reach(int v, int lo)
+	{
+		return Math.max(Math.abs(v - lo), Math.abs(v - (lo + CELL_SPAN - 1)));
+	}
+
+	private static int sq(int v)
+	{
+		return v * v;
+	}
+}
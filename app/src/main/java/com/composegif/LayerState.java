@@ -13,6 +13,13 @@ public class LayerState
 	int delayMs;
 	boolean visible;
 
+	// Applied to truecolor frames loaded into this layer
+	Quantization quantization = Quantization.DEFAULT;
+	// Whether frames loaded into this layer share one palette chosen across all of them
+	boolean sharedPalette;
+	// Whether frames loaded into this layer are held as changes from frame to frame
+	boolean patchedFrames;
+
 	// Per-layer transparent color selections (persisted across layer switches)
 	final Set<Integer> transparentColors = new LinkedHashSet<>();
 
@@ -0,0 +1,319 @@
+package com.composegif;
+
+import java.util.Arrays;
+
+/**
+ * GIF variable-length-code LZW compressor working directly on indexed pixel bytes.
+ * <p>
+ * Produces the complete "table based image data" section of a GIF image block: the
+ * minimum code size byte, the code stream packed into 255-byte sub-blocks, and the
+ * block terminator. Code width growth and table resets follow the JDK GIF writer
+ * exactly, so output is byte-identical to what ImageIO produces for the same pixels.
+ * <p>
+ * The string table is a primitive open-addressing hash keyed on (prefix, byte). An
+ * instance reuses its table and output buffer between calls, so steady-state
+ * encoding does not allocate. Instances are not thread-safe; use one per thread.
+ * <p>
+ * In lossy mode, when no string extends the current match exactly, the match may also
+ * be extended by a string whose next index has a color close enough to the pixel's.
+ * Each pixel then decodes to a color within the allowed distance of its own, trading
+ * fidelity for longer matches, much like gifsicle's {@code --lossy}.
+ */
+class LzwEncoder
+{
+	private static final int MAX_BITS = 12;
+	private static final int MAX_CODES = 1 << MAX_BITS;
+
+	// Power-of-two table, at least twice the maximum number of strings
+	private static final int HASH_BITS = 13;
+	private static final int HASH_SIZE = 1 << HASH_BITS;
+	private static final int HASH_MASK = HASH_SIZE - 1;
+
+	/** Packed (prefix << 8 | byte) + 1 per slot; 0 marks a free slot. */
+	private final int[] hashKeys = new int[HASH_SIZE];
+	private final short[] hashCodes = new short[HASH_SIZE];
+
+	// Lossy mode: each string's one-longer extensions as a linked list, and the byte each adds
+	private final short[] firstChild = new short[MAX_CODES];
+	private final short[] nextSibling = new short[MAX_CODES];
+	private final byte[] suffix = new byte[MAX_CODES];
+	private int[] colors;
+	private int fixedIndex;
+	private int maxDistanceSq;
+
+	private byte[] out = new byte[4096];
+	private int outLength;
+
+	// Sub-block and bit packing state
+	private int blockStart;
+	private int bitBuffer;
+	private int bitCount;
+
+	// Compressor state
+	private int codeSize;
+	private int clearCode;
+	private int numBits;
+	private int limit;
+	private int nextCode;
+	private int prefix;
+
+	/**
+	 * Compresses a rectangle of 8-bit indices. The rows are read starting at {@code offset}
+	 * with the given {@code stride}; with {@code interlace} set, rows are emitted in the
+	 * four-pass GIF interlace order.
+	 *
+	 * @return the number of bytes written to {@link #buffer()}
+	 */
+	int encode(byte[] pixels, int offset, int width, int height, int stride, boolean interlace)
+	{
+		return encode(pixels, offset, width, height, stride, interlace, 8, null, -1, 0);
+	}
+
+	/**
+	 * Variant of {@link #encode(byte[], int, int, int, int, boolean)} with a minimum code
+	 * size below 8, for small color tables, and optional lossy matching. Every index must
+	 * be below {@code 1 << minCodeSize}.
+	 * <p>
+	 * In lossy mode a pixel may be written as any index whose color in {@code colors}
+	 * (ARGB per index) is within RGB distance {@code maxDistance} of its own.
+	 * {@code fixedIndex}, normally the transparent index, is never substituted nor used as
+	 * a substitute. A distance of 0 is lossless.
+	 */
+	int encode(byte[] pixels, int offset, int width, int height, int stride, boolean interlace,
+			   int minCodeSize, int[] colors, int fixedIndex, int maxDistance)
+	{
+		this.colors = colors;
+		this.fixedIndex = fixedIndex;
+		this.maxDistanceSq = maxDistance > 0 ? maxDistance * maxDistance : 0;
+		begin(minCodeSize);
+		if (interlace)
+		{
+			compressRows(pixels, offset, width, height, stride, 0, 8);
+			compressRows(pixels, offset, width, height, stride, 4, 8);
+			compressRows(pixels, offset, width, height, stride, 2, 4);
+			compressRows(pixels, offset, width, height, stride, 1, 2);
+		}
+		else
+		{
+			compressRows(pixels, offset, width, height, stride, 0, 1);
+		}
+		return end();
+	}
+
+	/** Output of the last {@link #encode} call; valid up to the returned length. */
+	byte[] buffer()
+	{
+		return out;
+	}
+
+	private void begin(int minCodeSize)
+	{
+		outLength = 0;
+		bitBuffer = 0;
+		bitCount = 0;
+
+		codeSize = minCodeSize;
+		clearCode = 1 << codeSize;
+		ensureCapacity(2);
+		out[outLength++] = (byte) codeSize;
+		blockStart = outLength++;
+
+		resetTable();
+		writeCode(clearCode);
+		prefix = -1;
+	}
+
+	private void resetTable()
+	{
+		Arrays.fill(hashKeys, 0);
+		if (maxDistanceSq > 0)
+		{
+			Arrays.fill(firstChild, 0, clearCode, (short) -1);
+		}
+		numBits = codeSize + 1;
+		limit = (1 << numBits) - 1;
+		nextCode = clearCode + 2;
+	}
+
+	private void compressRows(byte[] pixels, int offset, int width, int height, int stride, int firstRow, int step)
+	{
+		for (int y = firstRow; y < height; y += step)
+		{
+			compress(pixels, offset + y * stride, width);
+		}
+	}
+
+	private void compress(byte[] pixels, int from, int length)
+	{
+		int p = prefix;
+		int end = from + length;
+		for (int i = from; i < end; i++)
+		{
+			int c = pixels[i] & 0xFF;
+			if (p < 0)
+			{
+				p = c;
+				continue;
+			}
+
+			int key = ((p << 8) | c) + 1;
+			int slot = hash(key);
+			int found = -1;
+			int k;
+			while ((k = hashKeys[slot]) != 0)
+			{
+				if (k == key)
+				{
+					found = hashCodes[slot];
+					break;
+				}
+				slot = (slot + 1) & HASH_MASK;
+			}
+
+			if (found < 0 && maxDistanceSq > 0)
+			{
+				found = closestExtension(p, c);
+			}
+			if (found >= 0)
+			{
+				p = found;
+				continue;
+			}
+
+			writeCode(p);
+			int added;
+			if (nextCode < MAX_CODES)
+			{
+				// slot is the free slot the probe stopped on
+				hashKeys[slot] = key;
+				hashCodes[slot] = (short) nextCode;
+				if (maxDistanceSq > 0)
+				{
+					firstChild[nextCode] = -1;
+					nextSibling[nextCode] = firstChild[p];
+					firstChild[p] = (short) nextCode;
+					suffix[nextCode] = (byte) c;
+				}
+				added = nextCode++;
+			}
+			else
+			{
+				added = Integer.MAX_VALUE;
+			}
+
+			if (added > limit)
+			{
+				if (numBits == MAX_BITS)
+				{
+					writeCode(clearCode);
+					resetTable();
+				}
+				else
+				{
+					numBits++;
+					limit = (1 << numBits) - 1;
+				}
+			}
+			p = c;
+		}
+		prefix = p;
+	}
+
+	/**
+	 * The extension of string {@code prefix} whose added index is closest in color to
+	 * {@code c} and within the allowed distance, or -1.
+	 */
+	private int closestExtension(int prefix, int c)
+	{
+		if (c == fixedIndex) return -1;
+		int target = colors[c];
+		int best = -1;
+		int bestDistance = maxDistanceSq + 1;
+		for (int code = firstChild[prefix]; code >= 0; code = nextSibling[code])
+		{
+			int index = suffix[code] & 0xFF;
+			int color = colors[index];
+			// Never trade an opaque color for a transparent one or the reverse
+			if (index == fixedIndex || (color ^ target) >>> 24 != 0) continue;
+			int dr = ((target >> 16) & 0xFF) - ((color >> 16) & 0xFF);
+			int dg = ((target >> 8) & 0xFF) - ((color >> 8) & 0xFF);
+			int db = (target & 0xFF) - (color & 0xFF);
+			int distance = dr * dr + dg * dg + db * db;
+			if (distance < bestDistance)
+			{
+				bestDistance = distance;
+				best = code;
+			}
+		}
+		return best;
+	}
+
+	private int end()
+	{
+		if (prefix >= 0)
+		{
+			writeCode(prefix);
+		}
+		writeCode(clearCode + 1);
+
+		if (bitCount > 0)
+		{
+			writeByte(bitBuffer & 0xFF);
+			bitBuffer = 0;
+			bitCount = 0;
+		}
+		int pending = outLength - blockStart - 1;
+		if (pending > 0)
+		{
+			out[blockStart] = (byte) pending;
+			ensureCapacity(1);
+		}
+		else
+		{
+			// Empty trailing block: reuse its length slot for the terminator
+			outLength = blockStart;
+		}
+		out[outLength++] = 0;
+		return outLength;
+	}
+
+	private void writeCode(int code)
+	{
+		bitBuffer |= code << bitCount;
+		bitCount += numBits;
+		while (bitCount >= 8)
+		{
+			writeByte(bitBuffer & 0xFF);
+			bitBuffer >>>= 8;
+			bitCount -= 8;
+		}
+	}
+
+	private void writeByte(int b)
+	{
+		if (outLength - blockStart - 1 == 255)
+		{
+			out[blockStart] = (byte) 255;
+			ensureCapacity(2);
+			blockStart = outLength++;
+		}
+		else
+		{
+			ensureCapacity(1);
+		}
+		out[outLength++] = (byte) b;
+	}
+
+	private void ensureCapacity(int extra)
+	{
+		if (outLength + extra > out.length)
+		{
+			out = Arrays.copyOf(out, Math.max(out.length * 2, outLength + extra));
+		}
+	}
+
+	private static int hash(int key)
+	{
+		return (key * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+}
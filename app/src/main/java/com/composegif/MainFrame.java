@@ -3,6 +3,7 @@ package com.composegif;
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -16,11 +17,13 @@ import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
 import javax.swing.JSpinner;
 import javax.swing.JSplitPane;
+import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.AlphaComposite;
@@ -34,6 +37,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.awt.GridLayout;
 import java.awt.Insets;
 import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
@@ -41,6 +45,7 @@ import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
@@ -57,12 +62,24 @@ public class MainFrame extends JFrame
 	private final JLabel outputInfoLabel;
 	private final JComboBox<String> interpCombo;
 	private final JComboBox<String> scaleCombo;
+	private final JTextField extraScalesField;
+	private final JComboBox<String> lossyCombo;
+	private final JCheckBox targetSizeCheck;
+	private final JSpinner targetSizeSpinner;
+	private final JCheckBox deltaFramesCheck;
+	private final JCheckBox maskUnchangedCheck;
+	private final JComboBox<String> compositeMethodCombo;
+	private final JComboBox<String> compositeDitherCombo;
 	private final JButton exportButton;
 	private final JProgressBar progressBar;
 
 	// Layer state
 	private final LayerListPanel layerListPanel = new LayerListPanel();
 	private final JSpinner delaySpinner;
+	private final JComboBox<String> layerMethodCombo;
+	private final JComboBox<String> layerDitherCombo;
+	private final JCheckBox sharedPaletteCheck;
+	private final JCheckBox patchedFramesCheck;
 	private final PalettePanel palettePanel;
 	private final JLabel layerInfoLabel;
 	private LayerState previouslySelectedLayer;
@@ -76,6 +93,11 @@ public class MainFrame extends JFrame
 	private boolean inDetailMode;
 	private int savedDividerSize = -1;
 	private SwingWorker<?, ?> activePreviewWorker;
+	private SwingWorker<?, ?> activeEstimateWorker;
+	private final Timer estimateTimer = new Timer(ESTIMATE_DELAY_MS, e -> runSizeEstimate());
+	// Latest composite shown in the preview, and its description without the size estimate
+	private Compositor.FlattenResult previewResult;
+	private String outputInfo;
 
 	private File lastDirectory;
 	private File lastExportFile = new File("animation.gif");
@@ -88,7 +110,17 @@ public class MainFrame extends JFrame
 			RenderingHints.VALUE_INTERPOLATION_BICUBIC
 	};
 
+	private static final String[] LOSSY_LABELS = {"Off", "Low", "Medium", "High"};
+	// Largest RGB distance a pixel may shift by for better compression
+	private static final int[] LOSSY_VALUES = {0, 12, 24, 48};
+
+	// In the order of Quantization.Method and Quantization.Dither
+	private static final String[] METHOD_LABELS = {"Most Used", "Median Cut", "Octree", "Wu"};
+	private static final String[] DITHER_LABELS = {"No Dither", "Ordered", "Floyd\u2013Steinberg"};
+
 	private static final int MAX_SCALE = 16;
+	// Quiet time after a settings change before the size is re-estimated
+	private static final int ESTIMATE_DELAY_MS = 400;
 
 	public MainFrame()
 	{
@@ -158,6 +190,40 @@ public class MainFrame extends JFrame
 		controlPanel.add(delaySpinner, gbc);
 		row++;
 
+		// Color reduction for frames loaded into this layer
+		gbc.gridy = row;
+		gbc.gridx = 0;
+		controlPanel.add(new JLabel("Colors:"), gbc);
+		layerMethodCombo = new JComboBox<>(METHOD_LABELS);
+		layerDitherCombo = new JComboBox<>(DITHER_LABELS);
+		layerMethodCombo.addActionListener(e -> onLayerQuantizationChanged());
+		layerDitherCombo.addActionListener(e -> onLayerQuantizationChanged());
+		gbc.gridx = 1;
+		controlPanel.add(quantizationPanel(layerMethodCombo, layerDitherCombo,
+				"How truecolor frames are reduced to 256 colors when loaded into this layer"), gbc);
+		row++;
+
+		gbc.gridy = row;
+		gbc.gridx = 0;
+		gbc.gridwidth = 2;
+		sharedPaletteCheck = new JCheckBox("One palette for all frames");
+		sharedPaletteCheck.setToolTipText("Reduce frames loaded into this layer to a single palette chosen across all of them");
+		sharedPaletteCheck.addActionListener(e -> onLayerQuantizationChanged());
+		controlPanel.add(sharedPaletteCheck, gbc);
+		gbc.gridwidth = 1;
+		row++;
+
+		gbc.gridy = row;
+		gbc.gridx = 0;
+		gbc.gridwidth = 2;
+		patchedFramesCheck = new JCheckBox("Keep only changes between frames");
+		patchedFramesCheck.setToolTipText("Hold frames loaded into this layer as changed regions, rebuilding each "
+				+ "frame when shown — saves memory on long animations");
+		patchedFramesCheck.addActionListener(e -> onLayerQuantizationChanged());
+		controlPanel.add(patchedFramesCheck, gbc);
+		gbc.gridwidth = 1;
+		row++;
+
 		gbc.gridy = row;
 		gbc.gridx = 0;
 		gbc.gridwidth = 2;
@@ -172,6 +238,7 @@ public class MainFrame extends JFrame
 
 		// Output info
 		outputInfoLabel = new JLabel("No frames loaded");
+		estimateTimer.setRepeats(false);
 		gbc.gridy = row++;
 		controlPanel.add(outputInfoLabel, gbc);
 
@@ -184,6 +251,7 @@ public class MainFrame extends JFrame
 		interpCombo.setSelectedIndex(0);
 		interpCombo.addActionListener(e -> {
 			previewPanel.setInterpolationHint(INTERP_VALUES[interpCombo.getSelectedIndex()]);
+			startSizeEstimate();
 		});
 		gbc.gridx = 1;
 		controlPanel.add(interpCombo, gbc);
@@ -198,10 +266,75 @@ public class MainFrame extends JFrame
 		for (int i = 0; i < MAX_SCALE; i++) scaleLabels[i] = (i + 1) + "x";
 		scaleCombo = new JComboBox<>(scaleLabels);
 		scaleCombo.setSelectedIndex(0);
+		scaleCombo.addActionListener(e -> startSizeEstimate());
 		gbc.gridx = 1;
 		controlPanel.add(scaleCombo, gbc);
 		row++;
 
+		// Extra scales written alongside the main export
+		gbc.gridy = row;
+		gbc.gridx = 0;
+		controlPanel.add(new JLabel("Also Export At:"), gbc);
+		extraScalesField = new JTextField();
+		extraScalesField.setToolTipText("Scales such as \"2, 4\", each saved next to the GIF as name@2x.gif");
+		gbc.gridx = 1;
+		controlPanel.add(extraScalesField, gbc);
+		row++;
+
+		// Lossy compression
+		gbc.gridy = row;
+		gbc.gridx = 0;
+		gbc.gridwidth = 1;
+		controlPanel.add(new JLabel("Lossy Compression:"), gbc);
+		lossyCombo = new JComboBox<>(LOSSY_LABELS);
+		lossyCombo.setSelectedIndex(0);
+		lossyCombo.setToolTipText("Shifts colors slightly so noisy frames compress smaller");
+		lossyCombo.addActionListener(e -> startSizeEstimate());
+		gbc.gridx = 1;
+		controlPanel.add(lossyCombo, gbc);
+		row++;
+
+		// Color reduction for composited frames
+		gbc.gridy = row;
+		gbc.gridx = 0;
+		controlPanel.add(new JLabel("Composite Colors:"), gbc);
+		compositeMethodCombo = new JComboBox<>(METHOD_LABELS);
+		compositeDitherCombo = new JComboBox<>(DITHER_LABELS);
+		compositeMethodCombo.addActionListener(e -> updatePreview());
+		compositeDitherCombo.addActionListener(e -> updatePreview());
+		gbc.gridx = 1;
+		controlPanel.add(quantizationPanel(compositeMethodCombo, compositeDitherCombo,
+				"How frames drawn from several layers are reduced back to 256 colors"), gbc);
+		row++;
+
+		// Size budget
+		gbc.gridy = row;
+		gbc.gridx = 0;
+		targetSizeCheck = new JCheckBox("Fit under (KB):");
+		targetSizeCheck.setToolTipText("Lowers scale, colors and lossy level as needed; Export Scale is the maximum");
+		controlPanel.add(targetSizeCheck, gbc);
+		targetSizeSpinner = new JSpinner(new SpinnerNumberModel(2048, 16, 1_000_000, 64));
+		gbc.gridx = 1;
+		controlPanel.add(targetSizeSpinner, gbc);
+		row++;
+
+		// Delta frames
+		gbc.gridy = row;
+		gbc.gridx = 0;
+		gbc.gridwidth = 2;
+		deltaFramesCheck = new JCheckBox("Write only changed regions");
+		deltaFramesCheck.setToolTipText("Smaller files for animations where most of the frame stays still");
+		deltaFramesCheck.addActionListener(e -> startSizeEstimate());
+		controlPanel.add(deltaFramesCheck, gbc);
+		row++;
+
+		gbc.gridy = row;
+		maskUnchangedCheck = new JCheckBox("Make unchanged pixels transparent");
+		maskUnchangedCheck.setToolTipText("Compresses better when changes are scattered; implies changed regions only");
+		maskUnchangedCheck.addActionListener(e -> startSizeEstimate());
+		controlPanel.add(maskUnchangedCheck, gbc);
+		row++;
+
 		// Export button
 		gbc.gridy = row;
 		gbc.gridx = 0;
@@ -335,6 +468,12 @@ public class MainFrame extends JFrame
 
 		// Update shared controls to reflect selected layer
 		delaySpinner.setValue(ls.delayMs);
+		// Each combo change stores all color settings, so read the layer's before setting any
+		Quantization quantization = ls.quantization;
+		sharedPaletteCheck.setSelected(ls.sharedPalette);
+		patchedFramesCheck.setSelected(ls.patchedFrames);
+		layerMethodCombo.setSelectedIndex(quantization.method().ordinal());
+		layerDitherCombo.setSelectedIndex(quantization.dither().ordinal());
 		layerInfoLabel.setText(ls.hasFrames() ? ls.layer.frames().size() + " frames" : "empty");
 
 		// Swap palette panel content and restore transparent color selections
@@ -408,18 +547,35 @@ public class MainFrame extends JFrame
 		if (selectedFiles.length == 0) return;
 		lastDirectory = selectedFiles[0].getParentFile();
 		List<File> fileList = Arrays.asList(selectedFiles);
+		Quantization quantization = ls.quantization;
+		boolean sharedPalette = ls.sharedPalette;
+		boolean patchedFrames = ls.patchedFrames;
 
-		new SwingWorker<FrameLoader.LoadResult, Void>()
+		progressBar.setValue(0);
+		progressBar.setString("Loading...");
+
+		new SwingWorker<FrameLoader.LoadResult, Integer>()
 		{
 			@Override
 			protected FrameLoader.LoadResult doInBackground() throws Exception
 			{
-				return FrameLoader.load(fileList);
+				return FrameLoader.load(fileList, quantization, sharedPalette, patchedFrames,
+						(current, total) -> publish(current));
+			}
+
+			@Override
+			protected void process(List<Integer> chunks)
+			{
+				int latest = chunks.get(chunks.size() - 1);
+				progressBar.setValue((int) (latest * 100L / fileList.size()));
+				progressBar.setString("Loading " + latest + "/" + fileList.size());
 			}
 
 			@Override
 			protected void done()
 			{
+				progressBar.setValue(0);
+				progressBar.setString("");
 				try
 				{
 					FrameLoader.LoadResult result = get();
@@ -603,16 +759,37 @@ public class MainFrame extends JFrame
 
 		List<PsdNode> selectedNodes = result.selected();
 		ImportMode mode = result.mode();
+		Quantization quantization = selectedQuantization();
+		boolean sharedPalette = mode == ImportMode.FRAMES && selectedSharedPalette();
 
 		runBackground(
 			() -> {
 				try
 				{
 					List<ImportedFrame> frames = new ArrayList<>();
+					if (sharedPalette)
+					{
+						// Every flattened frame is needed before the palette can be chosen
+						List<PsdImporter.FlattenedFrame> flats = new ArrayList<>();
+						for (PsdNode node : selectedNodes)
+						{
+							flats.add(PsdImporter.flattenNode(tree, node));
+						}
+						List<FrameLoader.QuantizeResult> results = FrameLoader.quantizeShared(
+							flats.stream().map(PsdImporter.FlattenedFrame::image).toList(), quantization);
+						for (int i = 0; i < flats.size(); i++)
+						{
+							FrameLoader.QuantizeResult qr = results.get(i);
+							frames.add(new ImportedFrame(selectedNodes.get(i).name,
+								new FrameLoader.FrameData(qr.image(), qr.transparentIndex()),
+								-1, flats.get(i).warnings()));
+						}
+						return frames;
+					}
 					for (PsdNode node : selectedNodes)
 					{
 						PsdImporter.FlattenedFrame flat = PsdImporter.flattenNode(tree, node);
-						FrameLoader.QuantizeResult qr = FrameLoader.quantizeToIndexed(flat.image());
+						FrameLoader.QuantizeResult qr = FrameLoader.quantizeToIndexed(flat.image(), quantization);
 						frames.add(new ImportedFrame(node.name,
 							new FrameLoader.FrameData(qr.image(), qr.transparentIndex()),
 							-1, flat.warnings()));
@@ -664,14 +841,22 @@ public class MainFrame extends JFrame
 
 		List<ApngReader.ApngFrame> selectedFrames = result.selected();
 		ImportMode mode = result.mode();
+		Quantization quantization = selectedQuantization();
+		boolean sharedPalette = mode == ImportMode.FRAMES && selectedSharedPalette();
 
 		runBackground(
 			() -> {
+				List<FrameLoader.QuantizeResult> shared = sharedPalette
+					? FrameLoader.quantizeShared(selectedFrames.stream().map(ApngReader.ApngFrame::image).toList(),
+						quantization)
+					: null;
 				List<ImportedFrame> frames = new ArrayList<>();
 				for (int i = 0; i < selectedFrames.size(); i++)
 				{
 					ApngReader.ApngFrame af = selectedFrames.get(i);
-					FrameLoader.QuantizeResult qr = FrameLoader.quantizeToIndexed(af.image());
+					FrameLoader.QuantizeResult qr = shared != null
+						? shared.get(i)
+						: FrameLoader.quantizeToIndexed(af.image(), quantization);
 					frames.add(new ImportedFrame("Frame " + (i + 1),
 						new FrameLoader.FrameData(qr.image(), qr.transparentIndex()),
 						af.delayMs()));
@@ -773,6 +958,25 @@ public class MainFrame extends JFrame
 		updatePreview();
 	}
 
+	/** The frames' images as a view, so frames held as patches are only rebuilt when shown. */
+	private static List<BufferedImage> images(List<FrameLoader.FrameData> frames)
+	{
+		return new AbstractList<>()
+		{
+			@Override
+			public BufferedImage get(int index)
+			{
+				return frames.get(index).image();
+			}
+
+			@Override
+			public int size()
+			{
+				return frames.size();
+			}
+		};
+	}
+
 	private void onDelayChanged()
 	{
 		LayerState ls = layerListPanel.getSelectedLayer();
@@ -790,6 +994,49 @@ public class MainFrame extends JFrame
 		updatePreview();
 	}
 
+	private void onLayerQuantizationChanged()
+	{
+		LayerState ls = layerListPanel.getSelectedLayer();
+		if (ls == null) return;
+
+		ls.quantization = new Quantization(
+				Quantization.Method.values()[layerMethodCombo.getSelectedIndex()],
+				Quantization.Dither.values()[layerDitherCombo.getSelectedIndex()]);
+		ls.sharedPalette = sharedPaletteCheck.isSelected();
+		ls.patchedFrames = patchedFramesCheck.isSelected();
+	}
+
+	/** Quantization of the selected layer, used for frames imported into it or alongside it. */
+	private Quantization selectedQuantization()
+	{
+		LayerState ls = layerListPanel.getSelectedLayer();
+		return ls != null ? ls.quantization : Quantization.DEFAULT;
+	}
+
+	private boolean selectedSharedPalette()
+	{
+		LayerState ls = layerListPanel.getSelectedLayer();
+		return ls != null && ls.sharedPalette;
+	}
+
+	private Quantization compositeQuantization()
+	{
+		return new Quantization(
+				Quantization.Method.values()[compositeMethodCombo.getSelectedIndex()],
+				Quantization.Dither.values()[compositeDitherCombo.getSelectedIndex()]);
+	}
+
+	private static JPanel quantizationPanel(JComboBox<String> methodCombo, JComboBox<String> ditherCombo,
+											String toolTip)
+	{
+		methodCombo.setToolTipText(toolTip);
+		ditherCombo.setToolTipText(toolTip);
+		JPanel panel = new JPanel(new GridLayout(1, 2, 4, 0));
+		panel.add(methodCombo);
+		panel.add(ditherCombo);
+		return panel;
+	}
+
 	private void syncSelectedLayerTransparency()
 	{
 		LayerState selected = layerListPanel.getSelectedLayer();
@@ -824,6 +1071,8 @@ public class MainFrame extends JFrame
 			activePreviewWorker.cancel(true);
 			activePreviewWorker = null;
 		}
+		previewResult = null;
+		cancelSizeEstimate();
 
 		List<LayerState> allLayers = layerListPanel.getLayers();
 		boolean anyLoaded = allLayers.stream().anyMatch(LayerState::hasFrames);
@@ -851,23 +1100,22 @@ public class MainFrame extends JFrame
 				return;
 			}
 			Compositor.FlattenResult result = Compositor.generateTransparentFrames(ref.layer);
-			List<BufferedImage> images = result.frames().stream()
-					.map(FrameLoader.FrameData::image).toList();
-			previewPanel.setFrames(images);
-			previewPanel.setDelay(result.delayMs());
+			previewPanel.setFrames(images(result.frames()));
+			previewPanel.setDelays(result.delaysMs());
 			outputInfoLabel.setText("All layers hidden");
 			exportButton.setEnabled(false);
 			return;
 		}
 
 		// Run compositor off-EDT to avoid freezing the animation timer
+		Quantization quantization = compositeQuantization();
 		SwingWorker<Compositor.FlattenResult, Void> worker =
 				new SwingWorker<>()
 		{
 			@Override
 			protected Compositor.FlattenResult doInBackground() throws Exception
 			{
-				return Compositor.flatten(effectiveLayers);
+				return Compositor.flatten(effectiveLayers, quantization);
 			}
 
 			@Override
@@ -878,15 +1126,17 @@ public class MainFrame extends JFrame
 				{
 					Compositor.FlattenResult result = get();
 
-					List<BufferedImage> images = result.frames().stream()
-							.map(FrameLoader.FrameData::image).toList();
-					previewPanel.setFrames(images);
-					previewPanel.setDelay(result.delayMs());
+					previewPanel.setFrames(images(result.frames()));
+					previewPanel.setDelays(result.delaysMs());
 
-					outputInfoLabel.setText(result.frames().size() + " output frames @ "
+					int loopMs = result.delaysMs().stream().mapToInt(Integer::intValue).sum();
+					outputInfo = result.frames().size() + " output frames @ "
 							+ result.width() + "\u00d7" + result.height()
-							+ ", " + result.delayMs() + "ms tick");
+							+ ", " + loopMs + "ms loop";
+					outputInfoLabel.setText(outputInfo);
 					exportButton.setEnabled(true);
+					previewResult = result;
+					startSizeEstimate();
 				}
 				catch (Exception ex)
 				{
@@ -902,6 +1152,115 @@ public class MainFrame extends JFrame
 		worker.execute();
 	}
 
+	/**
+	 * Re-estimates the export size of the current preview in the background once the
+	 * settings have stopped changing, replacing any estimate still running. The result
+	 * is appended to the output info.
+	 */
+	private void startSizeEstimate()
+	{
+		cancelSizeEstimate();
+		if (previewResult == null) return;
+		outputInfoLabel.setText(outputInfo + ", estimating size...");
+		estimateTimer.restart();
+	}
+
+	private void runSizeEstimate()
+	{
+		if (previewResult == null) return;
+
+		Compositor.FlattenResult result = previewResult;
+		int scale = scaleCombo.getSelectedIndex() + 1;
+		Object interpHint = INTERP_VALUES[interpCombo.getSelectedIndex()];
+		GifEncoder.Options options = exportOptions();
+		String info = outputInfo;
+
+		SwingWorker<Long, Void> worker = new SwingWorker<>()
+		{
+			@Override
+			protected Long doInBackground() throws Exception
+			{
+				return SizeEstimator.estimate(result.frames(), result.delaysMs(), scale, interpHint, options,
+						SizeEstimator.DEFAULT_SAMPLE_FRAMES);
+			}
+
+			@Override
+			protected void done()
+			{
+				if (isCancelled()) return;
+				try
+				{
+					outputInfoLabel.setText(info + ", ~" + formatSize(get()));
+				}
+				catch (Exception ex)
+				{
+					outputInfoLabel.setText(info);
+				}
+				if (activeEstimateWorker == this) activeEstimateWorker = null;
+			}
+		};
+		activeEstimateWorker = worker;
+		worker.execute();
+	}
+
+	private void cancelSizeEstimate()
+	{
+		estimateTimer.stop();
+		if (activeEstimateWorker != null)
+		{
+			activeEstimateWorker.cancel(true);
+			activeEstimateWorker = null;
+		}
+	}
+
+	private static String formatSize(long bytes)
+	{
+		if (bytes < 1024 * 1024) return Math.max(bytes / 1024, 1) + " KB";
+		return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+	}
+
+	/**
+	 * Scales listed in the extra-scales field, separated by commas or spaces and
+	 * optionally suffixed with "x". Duplicates and {@code mainScale} are dropped.
+	 */
+	private static List<Integer> parseScales(String text, int mainScale)
+	{
+		List<Integer> scales = new ArrayList<>();
+		for (String token : text.split("[,\\s]+"))
+		{
+			if (token.isEmpty()) continue;
+			String digits = token.toLowerCase().endsWith("x") ? token.substring(0, token.length() - 1) : token;
+			int scale;
+			try
+			{
+				scale = Integer.parseInt(digits);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Not a scale: \"" + token + "\"");
+			}
+			if (scale < 1 || scale > MAX_SCALE)
+			{
+				throw new IllegalArgumentException("Scales must be between 1x and " + MAX_SCALE + "x");
+			}
+			if (scale != mainScale && !scales.contains(scale)) scales.add(scale);
+		}
+		return scales;
+	}
+
+	/** Encoder settings from the export controls, shared by export and the size estimate. */
+	private GifEncoder.Options exportOptions()
+	{
+		return GifEncoder.Options.DEFAULT
+				.withParallel(true)
+				.withMergeDuplicates(true)
+				.withGlobalPalette(true)
+				.withReorderPalette(true)
+				.withDeltaFrames(deltaFramesCheck.isSelected())
+				.withMaskUnchanged(maskUnchangedCheck.isSelected())
+				.withLossy(LOSSY_VALUES[lossyCombo.getSelectedIndex()]);
+	}
+
 	private void exportGif()
 	{
 		List<Compositor.Layer> effectiveLayers = buildEffectiveLayers();
@@ -911,7 +1270,7 @@ public class MainFrame extends JFrame
 		Compositor.FlattenResult flat;
 		try
 		{
-			flat = Compositor.flatten(effectiveLayers);
+			flat = Compositor.flattenOnDemand(effectiveLayers, compositeQuantization());
 		}
 		catch (IOException ex)
 		{
@@ -919,13 +1278,35 @@ public class MainFrame extends JFrame
 			return;
 		}
 
-		int delayMs = flat.delayMs();
-		if (delayMs % 10 != 0)
+		int scale = scaleCombo.getSelectedIndex() + 1;
+		List<Integer> extraScales;
+		try
+		{
+			extraScales = parseScales(extraScalesField.getText(), scale);
+		}
+		catch (IllegalArgumentException ex)
+		{
+			JOptionPane.showMessageDialog(this, ex.getMessage(), "Export Error", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		long targetBytes = targetSizeCheck.isSelected()
+				? ((Number) targetSizeSpinner.getValue()).longValue() * 1024
+				: 0;
+		if (targetBytes > 0 && !extraScales.isEmpty())
+		{
+			JOptionPane.showMessageDialog(this, "Extra scales cannot be combined with a size limit.",
+					"Export Error", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+
+		List<Integer> delaysMs = flat.delaysMs();
+		long unevenDelays = delaysMs.stream().filter(d -> d % 10 != 0).count();
+		if (unevenDelays > 0)
 		{
 			JOptionPane.showMessageDialog(this,
-					"Tick delay " + delayMs + "ms is not evenly divisible by 10.\n"
+					unevenDelays + " of " + delaysMs.size() + " frame delays are not evenly divisible by 10.\n"
 							+ "GIF delays are in centiseconds (10ms units). "
-							+ "The value will be rounded to " + (Math.round(delayMs / 10.0f) * 10) + "ms.",
+							+ "They will be rounded to the nearest 10ms.",
 					"Delay Rounding", JOptionPane.WARNING_MESSAGE);
 		}
 
@@ -948,24 +1329,40 @@ public class MainFrame extends JFrame
 		lastExportFile = new File(output.getName());
 
 		Object interpHint = INTERP_VALUES[interpCombo.getSelectedIndex()];
-		int scale = scaleCombo.getSelectedIndex() + 1;
+		GifEncoder.Options options = exportOptions();
+		List<GifEncoder.ScaledOutput> outputs = new ArrayList<>();
+		outputs.add(new GifEncoder.ScaledOutput(scale, output));
+		String baseName = output.getName().substring(0, output.getName().length() - ".gif".length());
+		for (int extra : extraScales)
+		{
+			outputs.add(new GifEncoder.ScaledOutput(extra,
+					new File(output.getParentFile(), baseName + "@" + extra + "x.gif")));
+		}
 
 		exportButton.setEnabled(false);
 		progressBar.setValue(0);
-		progressBar.setString("Exporting...");
+		progressBar.setString(targetBytes > 0 ? "Finding settings..." : "Exporting...");
 
 		File finalOutput = output;
-		List<FrameLoader.FrameData> framesToEncode = flat.frames();
-		new SwingWorker<Void, Integer>()
+		new SwingWorker<TargetSizeExport.Setting, Integer>()
 		{
 			@Override
-			protected Void doInBackground() throws Exception
+			protected TargetSizeExport.Setting doInBackground() throws Exception
 			{
-				GifEncoder.encode(framesToEncode, finalOutput, scale, interpHint, delayMs,
-						(current, total) -> {
-							int pct = (int) ((current * 100L) / total);
-							publish(pct);
-						});
+				GifEncoder.ProgressListener listener = (current, total) -> {
+					int pct = (int) ((current * 100L) / total);
+					publish(pct);
+				};
+				// A composite that would crowd the heap is drawn frame by frame as it is encoded
+				Compositor.FlattenResult frames = flat.held(Runtime.getRuntime().maxMemory() / 4);
+				if (targetBytes > 0)
+				{
+					// Every trial reads every frame several times, so a composite too large
+					// to hold is drawn once, keeping only what changes between frames
+					return TargetSizeExport.encode(frames.patched().frames(), finalOutput, scale, interpHint, delaysMs, options,
+							targetBytes, listener);
+				}
+				GifEncoder.encodeScales(frames.source(), outputs, interpHint, options, listener);
 				return null;
 			}
 
@@ -983,11 +1380,22 @@ public class MainFrame extends JFrame
 				exportButton.setEnabled(true);
 				try
 				{
-					get();
+					TargetSizeExport.Setting setting = get();
 					progressBar.setValue(100);
 					progressBar.setString("Done!");
-					JOptionPane.showMessageDialog(MainFrame.this,
-							"GIF exported to:\n" + finalOutput.getAbsolutePath(),
+					StringBuilder message = new StringBuilder("GIF exported to:");
+					for (GifEncoder.ScaledOutput written : outputs)
+					{
+						message.append('\n').append(written.file().getAbsolutePath());
+					}
+					if (setting != null)
+					{
+						GifEncoder.Options chosen = setting.options();
+						message.append("\n\n").append(setting.size() / 1024).append(" KB at ").append(setting.scale())
+								.append("x, ").append(chosen.maxColors() > 0 ? "up to " + chosen.maxColors() : "all")
+								.append(" colors, ").append(chosen.lossy() > 0 ? "lossy " + chosen.lossy() : "lossless");
+					}
+					JOptionPane.showMessageDialog(MainFrame.this, message.toString(),
 							"Export Complete", JOptionPane.INFORMATION_MESSAGE);
 				}
 				catch (Exception ex)
@@ -0,0 +1,157 @@
+package com.composegif;
+
+/**
+ * Median cut (Heckbert, 1982). Colors are first binned into 32×32×32 cells, keeping
+ * each cell's exact color sums, then the box with the most pixels times its widest
+ * extent is split at the weighted median of that extent until there are enough boxes.
+ * Each box contributes its mean color. Binning bounds the work at 32768 cells
+ * however many colors a frame has.
+ */
+class MedianCutQuantizer implements Quantizer
+{
+	private static final int CELL_BITS = 5;
+	private static final int CELL_SHIFT = 8 - CELL_BITS;
+	private static final int CELL_MASK = (1 << CELL_BITS) - 1;
+
+	@Override
+	public int[] palette(int[] colors, int[] counts, int size, int maxColors)
+	{
+		// Occupied cells, in order of first color
+		int[] slotOfCell = new int[1 << (3 * CELL_BITS)];
+		int capacity = Math.min(size, slotOfCell.length);
+		int[] cell = new int[capacity];
+		long[] weight = new long[capacity];
+		long[] sumR = new long[capacity];
+		long[] sumG = new long[capacity];
+		long[] sumB = new long[capacity];
+		int cells = 0;
+		for (int n = 0; n < size; n++)
+		{
+			int r = (colors[n] >> 16) & 0xFF;
+			int g = (colors[n] >> 8) & 0xFF;
+			int b = colors[n] & 0xFF;
+			int key = (r >> CELL_SHIFT) << (2 * CELL_BITS) | (g >> CELL_SHIFT) << CELL_BITS | (b >> CELL_SHIFT);
+			int s = slotOfCell[key] - 1;
+			if (s < 0)
+			{
+				s = cells++;
+				slotOfCell[key] = s + 1;
+				cell[s] = key;
+			}
+			long c = counts[n];
+			weight[s] += c;
+			sumR[s] += r * c;
+			sumG[s] += g * c;
+			sumB[s] += b * c;
+		}
+
+		// Boxes are ranges of a permutation of the cells
+		int[] order = new int[cells];
+		for (int n = 0; n < cells; n++) order[n] = n;
+		int[] scratch = new int[cells];
+		int[] start = new int[maxColors];
+		int[] end = new int[maxColors];
+		long[] score = new long[maxColors];
+		int[] axis = new int[maxColors];
+		int boxes = 1;
+		end[0] = cells;
+		measure(0, start, end, score, axis, order, cell, weight);
+
+		while (boxes < maxColors)
+		{
+			int split = -1;
+			for (int i = 0; i < boxes; i++)
+			{
+				if (score[i] > 0 && (split < 0 || score[i] > score[split])) split = i;
+			}
+			if (split < 0) break;
+
+			int from = start[split];
+			int to = end[split];
+			int shift = (2 - axis[split]) * CELL_BITS;
+			sortByAxis(order, scratch, from, to, cell, shift);
+
+			long half = 0;
+			for (int n = from; n < to; n++) half += weight[order[n]];
+			half = (half + 1) / 2;
+			long running = 0;
+			int middle = from + 1;
+			for (int n = from; n < to - 1; n++)
+			{
+				running += weight[order[n]];
+				middle = n + 1;
+				if (running >= half) break;
+			}
+
+			start[boxes] = middle;
+			end[boxes] = to;
+			end[split] = middle;
+			measure(split, start, end, score, axis, order, cell, weight);
+			measure(boxes, start, end, score, axis, order, cell, weight);
+			boxes++;
+		}
+
+		int[] palette = new int[boxes];
+		for (int i = 0; i < boxes; i++)
+		{
+			long w = 0, r = 0, g = 0, b = 0;
+			for (int n = start[i]; n < end[i]; n++)
+			{
+				int s = order[n];
+				w += weight[s];
+				r += sumR[s];
+				g += sumG[s];
+				b += sumB[s];
+			}
+			palette[i] = 0xFF000000 | (int) ((r + w / 2) / w) << 16 | (int) ((g + w / 2) / w) << 8
+					| (int) ((b + w / 2) / w);
+		}
+		return palette;
+	}
+
+	/** Records a box's widest axis and its split priority, 0 if it is a single cell. */
+	private static void measure(int box, int[] start, int[] end, long[] score, int[] axis,
+								int[] order, int[] cell, long[] weight)
+	{
+		int[] lo = {CELL_MASK, CELL_MASK, CELL_MASK};
+		int[] hi = new int[3];
+		long total = 0;
+		for (int n = start[box]; n < end[box]; n++)
+		{
+			int key = cell[order[n]];
+			for (int a = 0; a < 3; a++)
+			{
+				int v = (key >> ((2 - a) * CELL_BITS)) & CELL_MASK;
+				lo[a] = Math.min(lo[a], v);
+				hi[a] = Math.max(hi[a], v);
+			}
+			total += weight[order[n]];
+		}
+		int widest = 0;
+		for (int a = 1; a < 3; a++)
+		{
+			if (hi[a] - lo[a] > hi[widest] - lo[widest]) widest = a;
+		}
+		axis[box] = widest;
+		score[box] = end[box] - start[box] > 1 ? total * (hi[widest] - lo[widest]) : 0;
+	}
+
+	/** Stable counting sort of {@code order[from, to)} by one cell coordinate. */
+	private static void sortByAxis(int[] order, int[] scratch, int from, int to, int[] cell, int shift)
+	{
+		int[] offsets = new int[(1 << CELL_BITS) + 1];
+		for (int n = from; n < to; n++)
+		{
+			offsets[((cell[order[n]] >> shift) & CELL_MASK) + 1]++;
+		}
+		for (int v = 0; v < 1 << CELL_BITS; v++)
+		{
+			offsets[v + 1] += offsets[v];
+		}
+		for (int n = from; n < to; n++)
+		{
+			scratch[from + offsets[(cell[order[n]] >> shift) & CELL_MASK]++] = order[n];
+		}
+		System.arraycopy(scratch, from, order, from, to - from);
+	}
+}
@@ -0,0 +1,114 @@
+package com.composegif;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Octree quantization (Gervautz and Purgathofer, 1988). Colors are sorted into a tree
+ * five levels deep, one bit of each channel per level, so there are at most 32768
+ * leaves however many colors a frame has. While there are too many leaves, the least
+ * used node of the deepest level is folded into a single leaf. Each leaf contributes
+ * the mean of the exact colors under it.
+ */
+class OctreeQuantizer implements Quantizer
+{
+	private static final int DEPTH = 5;
+
+	private static final class Node
+	{
+		Node[] children;
+		int childCount;
+		long weight;
+		long red;
+		long green;
+		long blue;
+	}
+
+	@Override
+	public int[] palette(int[] colors, int[] counts, int size, int maxColors)
+	{
+		Node root = new Node();
+		// Nodes with children, per level, in order of creation
+		List<List<Node>> inner = new ArrayList<>();
+		for (int level = 0; level < DEPTH; level++) inner.add(new ArrayList<>());
+		root.children = new Node[8];
+		inner.get(0).add(root);
+		int leaves = 0;
+
+		for (int n = 0; n < size; n++)
+		{
+			int r = (colors[n] >> 16) & 0xFF;
+			int g = (colors[n] >> 8) & 0xFF;
+			int b = colors[n] & 0xFF;
+			long c = counts[n];
+			Node node = root;
+			add(node, r, g, b, c);
+			for (int level = 0; level < DEPTH; level++)
+			{
+				int bit = 7 - level;
+				int child = ((r >> bit) & 1) << 2 | ((g >> bit) & 1) << 1 | ((b >> bit) & 1);
+				Node next = node.children[child];
+				if (next == null)
+				{
+					next = new Node();
+					node.children[child] = next;
+					node.childCount++;
+					if (level + 1 < DEPTH)
+					{
+						next.children = new Node[8];
+						inner.get(level + 1).add(next);
+					}
+					else
+					{
+						leaves++;
+					}
+				}
+				add(next, r, g, b, c);
+				node = next;
+			}
+		}
+
+		// Fold the deepest, least used nodes first; once a level is folded its parents become the deepest
+		for (int level = DEPTH - 1; level >= 0 && leaves > maxColors; level--)
+		{
+			List<Node> nodes = inner.get(level);
+			nodes.sort(Comparator.comparingLong(node -> node.weight));
+			for (Node node : nodes)
+			{
+				if (leaves <= maxColors) break;
+				leaves -= node.childCount - 1;
+				node.children = null;
+			}
+		}
+
+		int[] palette = new int[leaves];
+		collect(root, palette, 0);
+		return palette;
+	}
+
+	private static void add(Node node, int r, int g, int b, long count)
+	{
+		node.weight += count;
+		node.red += r * count;
+		node.green += g * count;
+		node.blue += b * count;
+	}
+
+	/** Appends the mean color of each leaf under {@code node}; returns the next free position. */
+	private static int collect(Node node, int[] palette, int position)
+	{
+		if (node.children == null)
+		{
+			long w = node.weight;
+			palette[position] = 0xFF000000 | (int) ((node.red + w / 2) / w) << 16
+					| (int) ((node.green + w / 2) / w) << 8 | (int) ((node.blue + w / 2) / w);
+			return position + 1;
+		}
+		for (Node child : node.children)
+		{
+			if (child != null) position = collect(child, palette, position);
+		}
+		return position;
+	}
+}
@@ -0,0 +1,93 @@
+package com.composegif;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Unpacks 1-, 2- and 4-bit pixels, packed most significant bits first as in PNG rows
+ * and {@link java.awt.image.MultiPixelPackedSampleModel} rasters, to one byte each.
+ * <p>
+ * Every possible source byte is expanded once into a table of its pixels laid out as
+ * little-endian bytes, so each run of eight pixels is assembled from one to four
+ * lookups and stored as a single {@code long} instead of shifting and masking each
+ * pixel.
+ */
+class PackedPixels
+{
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/** Eight 1-bit pixels per source byte. */
+	private static final long[] BITS_1 = expand(1);
+	/** Four 2-bit pixels per source byte, in the low 32 bits. */
+	private static final long[] BITS_2 = expand(2);
+	/** Two 4-bit pixels per source byte, in the low 16 bits. */
+	private static final long[] BITS_4 = expand(4);
+
+	/**
+	 * Writes {@code count} pixels of {@code bits} bits each, read from {@code src} starting
+	 * at the high bits of byte {@code srcPos}, to {@code dst} from {@code dstPos}.
+	 */
+	static void unpack(byte[] src, int srcPos, int bits, byte[] dst, int dstPos, int count)
+	{
+		int s = srcPos;
+		int d = dstPos;
+		int whole = count & ~7;
+		int end = dstPos + whole;
+		switch (bits)
+		{
+			case 8 -> System.arraycopy(src, srcPos, dst, dstPos, count);
+			case 4 ->
+			{
+				for (; d < end; d += 8, s += 4)
+				{
+					LONGS.set(dst, d, BITS_4[src[s] & 0xFF]
+						| BITS_4[src[s + 1] & 0xFF] << 16
+						| BITS_4[src[s + 2] & 0xFF] << 32
+						| BITS_4[src[s + 3] & 0xFF] << 48);
+				}
+			}
+			case 2 ->
+			{
+				for (; d < end; d += 8, s += 2)
+				{
+					LONGS.set(dst, d, BITS_2[src[s] & 0xFF] | BITS_2[src[s + 1] & 0xFF] << 32);
+				}
+			}
+			case 1 ->
+			{
+				for (; d < end; d += 8, s++)
+				{
+					LONGS.set(dst, d, BITS_1[src[s] & 0xFF]);
+				}
+			}
+			default -> throw new IllegalArgumentException("Unsupported bits per pixel: " + bits);
+		}
+		if (bits == 8) return;
+
+		// The last pieces of a row that do not fill a long
+		int mask = (1 << bits) - 1;
+		for (int bit = 0; d < dstPos + count; d++, bit += bits)
+		{
+			dst[d] = (byte) ((src[s + (bit >> 3)] >> (8 - bits - (bit & 7))) & mask);
+		}
+	}
+
+	private static long[] expand(int bits)
+	{
+		long[] table = new long[256];
+		int perByte = 8 / bits;
+		int mask = (1 << bits) - 1;
+		for (int value = 0; value < 256; value++)
+		{
+			long pixels = 0;
+			for (int p = 0; p < perByte; p++)
+			{
+				long pixel = (value >> (8 - bits * (p + 1))) & mask;
+				pixels |= pixel << (8 * p);
+			}
+			table[value] = pixels;
+		}
+		return table;
+	}
+}
@@ -0,0 +1,128 @@
+package com.composegif;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compacted palette with the most used colors first, and the lookup from the old
+ * indices to it. Entries showing the same color are merged, unused entries can be
+ * dropped, and transparency moves after the colors, so the color table (and with it
+ * the LZW code size) is as small as the colors allow.
+ */
+class PaletteOrder
+{
+	private final byte[] remap;
+	private final IndexColorModel colorModel;
+
+	private PaletteOrder(byte[] remap, IndexColorModel colorModel)
+	{
+		this.remap = remap;
+		this.colorModel = colorModel;
+	}
+
+	/**
+	 * Orders a palette by how often each index occurs.
+	 *
+	 * @param colors             ARGB per index as built by {@link DeltaPlanner#colors}, 0 for transparency
+	 * @param counts             occurrences per index
+	 * @param dropUnused         leave out indices that never occur; they then map to entry 0
+	 * @param reserveTransparent keep a transparent entry even if none occurs, when there is room
+	 */
+	static PaletteOrder byFrequency(int[] colors, long[] counts, boolean dropUnused, boolean reserveTransparent)
+	{
+		// Total count per distinct opaque color, keyed by the lowest index showing it
+		long[] totals = new long[256];
+		int[] owner = new int[256];
+		boolean transparent = reserveTransparent;
+		for (int i = 0; i < 256; i++)
+		{
+			owner[i] = i;
+			if (colors[i] == 0)
+			{
+				transparent |= counts[i] > 0 || !dropUnused;
+				continue;
+			}
+			for (int j = 0; j < i; j++)
+			{
+				if (colors[j] == colors[i])
+				{
+					owner[i] = owner[j];
+					break;
+				}
+			}
+			totals[owner[i]] += counts[i];
+		}
+
+		Integer[] order = new Integer[256];
+		int size = 0;
+		for (int i = 0; i < 256; i++)
+		{
+			if (colors[i] != 0 && owner[i] == i && (totals[i] > 0 || !dropUnused)) order[size++] = i;
+		}
+		Arrays.sort(order, 0, size, (a, b) -> Long.compare(totals[b], totals[a]));
+		if (size == 256) transparent = false;
+
+		byte[] r = new byte[Math.max(transparent ? size + 1 : size, 1)];
+		byte[] g = new byte[r.length];
+		byte[] b = new byte[r.length];
+		byte[] remap = new byte[256];
+		int[] position = new int[256];
+		for (int n = 0; n < size; n++)
+		{
+			int argb = colors[order[n]];
+			r[n] = (byte) (argb >> 16);
+			g[n] = (byte) (argb >> 8);
+			b[n] = (byte) argb;
+			position[order[n]] = n;
+		}
+		for (int i = 0; i < 256; i++)
+		{
+			remap[i] = (byte) (colors[i] == 0 ? (transparent ? size : 0) : position[owner[i]]);
+		}
+		IndexColorModel colorModel = transparent
+				? new IndexColorModel(8, r.length, r, g, b, size)
+				: new IndexColorModel(8, r.length, r, g, b);
+		return new PaletteOrder(remap, colorModel);
+	}
+
+	/**
+	 * Occurrences of each index over all frames, after mapping each frame's indices
+	 * through its lookup from {@code remap}, or as they are when that is null.
+	 */
+	static long[] count(List<FrameLoader.FrameData> frames, GlobalPalette remap)
+	{
+		long[] counts = new long[256];
+		byte[] row = new byte[0];
+		for (FrameLoader.FrameData frame : frames)
+		{
+			BufferedImage image = frame.image();
+			byte[] table = remap != null ? remap.remapTable((IndexColorModel) image.getColorModel()) : null;
+			Raster raster = image.getRaster();
+			int w = image.getWidth();
+			if (row.length < w) row = new byte[w];
+			for (int y = 0; y < image.getHeight(); y++)
+			{
+				raster.getDataElements(0, y, w, 1, row);
+				for (int x = 0; x < w; x++)
+				{
+					counts[(table != null ? table[row[x] & 0xFF] : row[x]) & 0xFF]++;
+				}
+			}
+		}
+		return counts;
+	}
+
+	/** New index for each old index. */
+	byte[] remap()
+	{
+		return remap;
+	}
+
+	IndexColorModel colorModel()
+	{
+		return colorModel;
+	}
+}
@@ -46,8 +46,12 @@ public class PalettePanel extends JPanel
 		}
 		// Union all frames' palettes, deduplicated, preserving first-seen order
 		var seen = new LinkedHashSet<Integer>();
+		IndexColorModel previous = null;
 		for (IndexColorModel icm : colorModels)
 		{
+			// Frames loaded with a shared palette all hold the same color model
+			if (icm == previous) continue;
+			previous = icm;
 			int size = icm.getMapSize();
 			for (int i = 0; i < size; i++)
 			{
@@ -0,0 +1,274 @@
+package com.composegif;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Indexed frames stored as keyframes plus, for every other frame, the rectangle of
+ * indices that changed since the frame before it. Memory then follows what actually
+ * changes instead of width × height × frames.
+ * <p>
+ * Frames are rebuilt on access from the nearest keyframe or recently rebuilt frame;
+ * the last {@link #CACHED_FRAMES} stay cached, so playing or encoding in order costs
+ * one copy and one patch per frame. As a read-only {@code List} it stands in for a
+ * list of full frames anywhere, e.g. in a {@link Compositor.Layer}. Returned images
+ * are shared with the cache and must not be modified.
+ */
+class PatchedFrames extends AbstractList<FrameLoader.FrameData> implements RandomAccess
+{
+	/** Most patches between keyframes, bounding the work to rebuild one frame. */
+	static final int KEYFRAME_INTERVAL = 32;
+	static final int CACHED_FRAMES = 4;
+
+	/**
+	 * One frame: its color model, and the indices of its changed rectangle, which for
+	 * a keyframe is the whole frame.
+	 */
+	private record Patch(boolean keyframe, int x, int y, int width, int height, byte[] pixels,
+						 IndexColorModel icm, int transparentIndex) {}
+
+	private final int width;
+	private final int height;
+	private final List<Patch> patches;
+	private final Map<Integer, FrameLoader.FrameData> cache = new LinkedHashMap<>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, FrameLoader.FrameData> eldest)
+		{
+			return size() > CACHED_FRAMES;
+		}
+	};
+
+	private PatchedFrames(int width, int height, List<Patch> patches)
+	{
+		this.width = width;
+		this.height = height;
+		this.patches = patches;
+	}
+
+	/** Stores {@code frames}, which must all be 8-bit indexed and of one size, as patches. */
+	static PatchedFrames of(List<FrameLoader.FrameData> frames)
+	{
+		Builder builder = new Builder();
+		builder.addAll(frames);
+		return builder.build();
+	}
+
+	@Override
+	public int size()
+	{
+		return patches.size();
+	}
+
+	@Override
+	public synchronized FrameLoader.FrameData get(int index)
+	{
+		FrameLoader.FrameData cached = cache.get(index);
+		if (cached != null) return cached;
+
+		// Walk back to a keyframe, or to a frame whose predecessor is still cached
+		int start = index;
+		while (!patches.get(start).keyframe() && !cache.containsKey(start - 1))
+		{
+			start--;
+		}
+		Patch patch = patches.get(index);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, patch.icm());
+		byte[] pixels = indices(image);
+		if (!patches.get(start).keyframe())
+		{
+			System.arraycopy(indices(cache.get(start - 1).image()), 0, pixels, 0, pixels.length);
+		}
+		for (int i = start; i <= index; i++)
+		{
+			apply(patches.get(i), pixels);
+		}
+		FrameLoader.FrameData frame = new FrameLoader.FrameData(image, patch.transparentIndex());
+		cache.put(index, frame);
+		return frame;
+	}
+
+	/** Bytes held for all frames, for comparing against full frames. */
+	long storedBytes()
+	{
+		long total = 0;
+		for (Patch patch : patches)
+		{
+			total += patch.pixels().length;
+		}
+		return total;
+	}
+
+	private void apply(Patch patch, byte[] pixels)
+	{
+		for (int row = 0; row < patch.height(); row++)
+		{
+			System.arraycopy(patch.pixels(), row * patch.width(), pixels, (patch.y() + row) * width + patch.x(),
+				patch.width());
+		}
+	}
+
+	private static byte[] indices(BufferedImage image)
+	{
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Collects frames in order, diffing each against the one before. A frame becomes a
+	 * keyframe when it is the first, when its palette differs from the previous
+	 * frame's, when {@link #KEYFRAME_INTERVAL} patches have passed, or when its changes
+	 * cover more than half the frame.
+	 */
+	static class Builder
+	{
+		private final List<Patch> patches = new ArrayList<>();
+		private int width = -1;
+		private int height = -1;
+		private byte[] previous;
+		private IndexColorModel previousIcm;
+		private int previousTransparent;
+		private int sinceKeyframe;
+
+		int size()
+		{
+			return patches.size();
+		}
+
+		/**
+		 * Adds a frame. Only its changed indices are kept, so the frame itself can be
+		 * dropped by the caller.
+		 */
+		void add(FrameLoader.FrameData frame)
+		{
+			BufferedImage image = frame.image();
+			if (!(image.getColorModel() instanceof IndexColorModel icm))
+			{
+				throw new IllegalArgumentException("Frame is not indexed");
+			}
+			if (width < 0)
+			{
+				width = image.getWidth();
+				height = image.getHeight();
+			}
+			else if (image.getWidth() != width || image.getHeight() != height)
+			{
+				throw new IllegalArgumentException("Frame is " + image.getWidth() + "x" + image.getHeight()
+					+ ", expected " + width + "x" + height);
+			}
+			byte[] pixels = copyIndices(image, icm);
+
+			int[] box = previous != null && sinceKeyframe < KEYFRAME_INTERVAL
+				&& frame.transparentIndex() == previousTransparent && samePalette(icm, previousIcm)
+				? changedBox(previous, pixels) : null;
+			if (box == null || 2L * (box[2] - box[0]) * (box[3] - box[1]) > (long) width * height)
+			{
+				patches.add(new Patch(true, 0, 0, width, height, pixels, icm, frame.transparentIndex()));
+				sinceKeyframe = 0;
+			}
+			else
+			{
+				int w = box[2] - box[0];
+				int h = box[3] - box[1];
+				byte[] changed = new byte[w * h];
+				for (int row = 0; row < h; row++)
+				{
+					System.arraycopy(pixels, (box[1] + row) * width + box[0], changed, row * w, w);
+				}
+				// A frame shown with the previous one's color model keeps identity checks on palettes working
+				patches.add(new Patch(false, box[0], box[1], w, h, changed, previousIcm, previousTransparent));
+				icm = previousIcm;
+				sinceKeyframe++;
+			}
+			previous = pixels;
+			previousIcm = icm;
+			previousTransparent = frame.transparentIndex();
+		}
+
+		/**
+		 * Adds frames in order. Patches of a {@link PatchedFrames} of the same size are taken
+		 * over as they are, since its first frame is always a keyframe.
+		 */
+		void addAll(List<FrameLoader.FrameData> frames)
+		{
+			if (frames instanceof PatchedFrames patched && !patched.isEmpty()
+				&& (width < 0 || patched.width == width && patched.height == height))
+			{
+				width = patched.width;
+				height = patched.height;
+				patches.addAll(patched.patches);
+				Patch last = patched.patches.get(patched.size() - 1);
+				previous = indices(patched.get(patched.size() - 1).image());
+				previousIcm = last.icm();
+				previousTransparent = last.transparentIndex();
+				sinceKeyframe = 0;
+				for (int i = patched.size() - 1; !patched.patches.get(i).keyframe(); i--)
+				{
+					sinceKeyframe++;
+				}
+				return;
+			}
+			for (FrameLoader.FrameData frame : frames)
+			{
+				add(frame);
+			}
+		}
+
+		PatchedFrames build()
+		{
+			previous = null;
+			return new PatchedFrames(Math.max(width, 0), Math.max(height, 0), List.copyOf(patches));
+		}
+
+		private static byte[] copyIndices(BufferedImage image, IndexColorModel icm)
+		{
+			BufferedImage indexed = FrameLoader.ensureByteIndexed(image, icm);
+			if (indexed != image) return indices(indexed);
+			// Copies out of the caller's raster, allowing for it being a sub-image
+			return (byte[]) image.getRaster().getDataElements(0, 0, image.getWidth(), image.getHeight(), null);
+		}
+
+		private static boolean samePalette(IndexColorModel a, IndexColorModel b)
+		{
+			if (a == b) return true;
+			if (a.getMapSize() != b.getMapSize() || a.getTransparentPixel() != b.getTransparentPixel()) return false;
+			int[] rgbA = new int[a.getMapSize()];
+			int[] rgbB = new int[b.getMapSize()];
+			a.getRGBs(rgbA);
+			b.getRGBs(rgbB);
+			return Arrays.equals(rgbA, rgbB);
+		}
+
+		/** Bounding box of differing indices as [minX, minY, maxX, maxY), empty at 0,0 if none. */
+		private int[] changedBox(byte[] before, byte[] after)
+		{
+			int minX = width;
+			int minY = height;
+			int maxX = 0;
+			int maxY = 0;
+			for (int y = 0; y < height; y++)
+			{
+				int row = y * width;
+				if (Arrays.equals(before, row, row + width, after, row, row + width)) continue;
+				int first = Arrays.mismatch(before, row, row + width, after, row, row + width);
+				int last = width - 1;
+				while (before[row + last] == after[row + last])
+				{
+					last--;
+				}
+				minX = Math.min(minX, first);
+				maxX = Math.max(maxX, last + 1);
+				minY = Math.min(minY, y);
+				maxY = y + 1;
+			}
+			return minY == height ? new int[] {0, 0, 0, 0} : new int[] {minX, minY, maxX, maxY};
+		}
+	}
+}
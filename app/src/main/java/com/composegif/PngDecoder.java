@@ -0,0 +1,267 @@
+package com.composegif;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Direct decoder for non-interlaced palette PNGs, the format of most sprite assets.
+ * <p>
+ * IDAT data is inflated straight from the file's bytes into one buffer of filtered
+ * rows, which are unfiltered in place and unpacked into the byte raster of a
+ * {@code TYPE_BYTE_INDEXED} image. Besides the file's bytes, that buffer and the
+ * image, nothing is allocated, unlike {@code ImageIO.read}, which builds a packed
+ * image for 1/2/4-bit files that then has to be copied out. The color model is built
+ * exactly as the ImageIO PNG reader builds it, so either path yields the same indices
+ * and colors.
+ */
+class PngDecoder
+{
+	private static final byte[] PNG_SIGNATURE = {
+		(byte) 0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A
+	};
+
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504C5445;
+	private static final int TRNS = 0x74524E53;
+	private static final int IDAT = 0x49444154;
+	private static final int IEND = 0x49454E44;
+
+	private static final int COLOR_TYPE_PALETTE = 3;
+	// Signature and the IHDR chunk, which must come first
+	private static final int HEADER_LENGTH = 33;
+
+	/**
+	 * Decodes a palette PNG to an 8-bit indexed image, or returns null if the file is
+	 * not a non-interlaced palette PNG, leaving it to {@code ImageIO}.
+	 */
+	static BufferedImage readIndexed(File file) throws IOException
+	{
+		// Other PNGs go to ImageIO, so only the header is read before deciding
+		byte[] header;
+		try (InputStream in = Files.newInputStream(file.toPath()))
+		{
+			header = in.readNBytes(HEADER_LENGTH);
+		}
+		if (header.length < HEADER_LENGTH
+			|| !Arrays.equals(header, 0, PNG_SIGNATURE.length, PNG_SIGNATURE, 0, PNG_SIGNATURE.length)
+			|| ByteBuffer.wrap(header).getInt(12) != IHDR
+			|| header[25] != COLOR_TYPE_PALETTE || header[28] != 0)
+		{
+			return null;
+		}
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+
+		int width = 0;
+		int height = 0;
+		int bitDepth = 0;
+		int rowBytes = 0;
+		int paletteOffset = -1;
+		int paletteLength = 0;
+		int alphaOffset = -1;
+		int alphaLength = 0;
+		byte[] rows = null;
+		int filled = 0;
+		Inflater inflater = null;
+		try
+		{
+			int pos = PNG_SIGNATURE.length;
+			while (pos + 8 <= bytes.length)
+			{
+				int length = buf.getInt(pos);
+				int type = buf.getInt(pos + 4);
+				int data = pos + 8;
+				if (length < 0 || length > bytes.length - data)
+				{
+					throw new IOException(file.getName() + ": truncated PNG chunk");
+				}
+				pos = data + length + 4; // CRC
+
+				if (type == IHDR)
+				{
+					if (length < 13) return null;
+					width = buf.getInt(data);
+					height = buf.getInt(data + 4);
+					bitDepth = bytes[data + 8];
+					int colorType = bytes[data + 9];
+					int interlace = bytes[data + 12];
+					if (colorType != COLOR_TYPE_PALETTE || interlace != 0 || Integer.bitCount(bitDepth) != 1
+						|| bitDepth > 8 || width <= 0 || height <= 0)
+					{
+						return null;
+					}
+					long size = ((long) width * bitDepth + 7) / 8 + 1;
+					if (size * height > Integer.MAX_VALUE - 8) return null;
+					rowBytes = (int) size - 1;
+				}
+				else if (type == PLTE && rowBytes > 0)
+				{
+					paletteOffset = data;
+					paletteLength = length / 3;
+				}
+				else if (type == TRNS && paletteOffset >= 0 && rows == null)
+				{
+					alphaOffset = data;
+					alphaLength = length;
+				}
+				else if (type == IDAT && paletteOffset >= 0)
+				{
+					if (rows == null)
+					{
+						rows = new byte[(rowBytes + 1) * height];
+						inflater = new Inflater();
+					}
+					inflater.setInput(bytes, data, length);
+					while (filled < rows.length && !inflater.needsInput() && !inflater.finished())
+					{
+						int n = inflater.inflate(rows, filled, rows.length - filled);
+						if (n == 0 && inflater.needsDictionary()) throw new DataFormatException("preset dictionary");
+						filled += n;
+					}
+				}
+				else if (type == IEND)
+				{
+					break;
+				}
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException(file.getName() + ": corrupt PNG image data", e);
+		}
+		finally
+		{
+			if (inflater != null) inflater.end();
+		}
+
+		// Without a header, palette or image data ImageIO gives the better error
+		if (rows == null) return null;
+		if (filled < rows.length)
+		{
+			throw new IOException(file.getName() + ": truncated PNG image data");
+		}
+
+		IndexColorModel icm = colorModel(bytes, bitDepth, paletteOffset, paletteLength, alphaOffset, alphaLength);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, icm);
+		byte[] out = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		unfilter(rows, 0, rowBytes, height, 1, file.getName());
+		for (int y = 0; y < height; y++)
+		{
+			PackedPixels.unpack(rows, y * (rowBytes + 1) + 1, bitDepth, out, y * width, width);
+		}
+		return image;
+	}
+
+	/**
+	 * Reverses the per-row PNG filters in place for {@code height} rows starting at
+	 * {@code offset}, each a filter type byte and {@code rowBytes} of data. The left
+	 * neighbour of a byte is the one {@code bpp} bytes before it, the size of a whole
+	 * pixel, or one byte for pixels smaller than that.
+	 */
+	static void unfilter(byte[] rows, int offset, int rowBytes, int height, int bpp, String name) throws IOException
+	{
+		int stride = rowBytes + 1;
+		for (int y = 0; y < height; y++)
+		{
+			int row = offset + y * stride + 1;
+			int prior = row - stride;
+			int filter = rows[row - 1];
+			switch (filter)
+			{
+				case 0 -> {}
+				case 1 ->
+				{
+					for (int i = bpp; i < rowBytes; i++)
+					{
+						rows[row + i] += rows[row + i - bpp];
+					}
+				}
+				case 2 ->
+				{
+					if (y == 0) break;
+					for (int i = 0; i < rowBytes; i++)
+					{
+						rows[row + i] += rows[prior + i];
+					}
+				}
+				case 3 ->
+				{
+					for (int i = 0; i < rowBytes; i++)
+					{
+						int left = i >= bpp ? rows[row + i - bpp] & 0xFF : 0;
+						int up = y > 0 ? rows[prior + i] & 0xFF : 0;
+						rows[row + i] += (byte) ((left + up) >>> 1);
+					}
+				}
+				case 4 ->
+				{
+					for (int i = 0; i < rowBytes; i++)
+					{
+						int a = i >= bpp ? rows[row + i - bpp] & 0xFF : 0;
+						int b = y > 0 ? rows[prior + i] & 0xFF : 0;
+						int c = i >= bpp && y > 0 ? rows[prior + i - bpp] & 0xFF : 0;
+						rows[row + i] += (byte) paeth(a, b, c);
+					}
+				}
+				default -> throw new IOException(name + ": unknown PNG filter type " + filter);
+			}
+		}
+	}
+
+	private static int paeth(int a, int b, int c)
+	{
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) return a;
+		return pb <= pc ? b : c;
+	}
+
+	/**
+	 * Builds the color model the ImageIO PNG reader would: PLTE entries beyond the bit
+	 * depth are dropped, the table is zero-filled to 2, 4, 16 or 256 entries and then
+	 * padded to {@code 1 << bitDepth} with its last entry, and tRNS alphas, if any, are
+	 * padded with 255.
+	 */
+	static IndexColorModel colorModel(byte[] bytes, int bitDepth, int paletteOffset, int paletteLength,
+		int alphaOffset, int alphaLength)
+	{
+		int size = 1 << bitDepth;
+		int entries = Math.min(paletteLength, size);
+		int rounded = entries > 16 ? 256 : entries > 4 ? 16 : entries > 2 ? 4 : 2;
+		byte[] red = new byte[size];
+		byte[] green = new byte[red.length];
+		byte[] blue = new byte[red.length];
+		for (int i = 0; i < entries; i++)
+		{
+			red[i] = bytes[paletteOffset + 3 * i];
+			green[i] = bytes[paletteOffset + 3 * i + 1];
+			blue[i] = bytes[paletteOffset + 3 * i + 2];
+		}
+		if (rounded < size)
+		{
+			Arrays.fill(red, rounded, size, red[rounded - 1]);
+			Arrays.fill(green, rounded, size, green[rounded - 1]);
+			Arrays.fill(blue, rounded, size, blue[rounded - 1]);
+		}
+		if (alphaOffset < 0)
+		{
+			return new IndexColorModel(bitDepth, red.length, red, green, blue);
+		}
+		byte[] alpha = new byte[red.length];
+		int alphas = Math.min(alphaLength, rounded);
+		System.arraycopy(bytes, alphaOffset, alpha, 0, alphas);
+		Arrays.fill(alpha, alphas, alpha.length, (byte) 0xFF);
+		return new IndexColorModel(bitDepth, red.length, red, green, blue, alpha);
+	}
+}
@@ -0,0 +1,28 @@
+package com.composegif;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most used colors, ties in the order the colors are given.
+ */
+class PopularityQuantizer implements Quantizer
+{
+	@Override
+	public int[] palette(int[] colors, int[] counts, int size, int maxColors)
+	{
+		int kept = Math.min(size, maxColors);
+		// Count and position packed for one primitive sort
+		long[] ranked = new long[size];
+		for (int n = 0; n < size; n++)
+		{
+			ranked[n] = (long) (Integer.MAX_VALUE - counts[n]) << 32 | n;
+		}
+		Arrays.sort(ranked);
+		int[] palette = new int[kept];
+		for (int n = 0; n < kept; n++)
+		{
+			palette[n] = colors[(int) ranked[n]];
+		}
+		return palette;
+	}
+}
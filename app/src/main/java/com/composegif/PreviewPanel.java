@@ -28,6 +28,7 @@ public class PreviewPanel extends JPanel
 			BasicStroke.JOIN_MITER, 10, new float[]{4, 4}, 0);
 
 	private List<BufferedImage> frames;
+	private List<Integer> delaysMs;
 	private int currentFrame;
 	private final Timer timer;
 	private Object interpolationHint = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
@@ -48,7 +49,10 @@ public class PreviewPanel extends JPanel
 	public PreviewPanel()
 	{
 		setPreferredSize(new Dimension(800, 800));
+		// One-shot, rescheduled per frame: a repeating timer re-queues itself with the
+		// old delay before its action runs, so each frame would get its predecessor's delay
 		timer = new Timer(100, e -> advanceFrame());
+		timer.setRepeats(false);
 
 		addMouseListener(new MouseAdapter()
 		{
@@ -108,9 +112,18 @@ public class PreviewPanel extends JPanel
 		repaint();
 	}
 
-	public void setDelay(int delayMs)
+	/**
+	 * Sets each frame's display time, in step with the list given to {@link #setFrames}.
+	 */
+	public void setDelays(List<Integer> delaysMs)
 	{
-		timer.setDelay(delayMs);
+		this.delaysMs = delaysMs;
+		int delay = currentDelay();
+		if (delay != timer.getInitialDelay())
+		{
+			timer.setInitialDelay(delay);
+			if (timer.isRunning()) timer.restart();
+		}
 	}
 
 	public void setInterpolationHint(Object hint)
@@ -152,9 +165,21 @@ public class PreviewPanel extends JPanel
 	{
 		if (frames == null || frames.isEmpty()) return;
 		currentFrame = (currentFrame + 1) % frames.size();
+		timer.setInitialDelay(currentDelay());
+		timer.restart();
 		paintImmediately(0, 0, getWidth(), getHeight());
 	}
 
+	/** The current frame's delay, or the last one scheduled if none is known. */
+	private int currentDelay()
+	{
+		if (delaysMs != null && currentFrame < delaysMs.size())
+		{
+			return delaysMs.get(currentFrame);
+		}
+		return timer.getInitialDelay();
+	}
+
 	@Override
 	protected void paintComponent(Graphics g)
 	{
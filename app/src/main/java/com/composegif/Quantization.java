@@ -0,0 +1,55 @@
+package com.composegif;
+
+/**
+ * How a frame with more colors than a GIF palette holds is reduced: the quantizer
+ * that picks the palette, and the dithering used when mapping pixels to it. Frames
+ * that already fit keep their exact colors whatever the setting.
+ */
+public record Quantization(Method method, Dither dither)
+{
+	/** The most used colors without dithering, as frames were always reduced. */
+	public static final Quantization DEFAULT = new Quantization(Method.POPULARITY, Dither.NONE);
+
+	public enum Method
+	{
+		/** Keeps the most used colors exactly; fast, but drops rare hues. */
+		POPULARITY(new PopularityQuantizer()),
+		/** Splits the color space at the median of its widest axis. */
+		MEDIAN_CUT(new MedianCutQuantizer()),
+		/** Merges the least used leaves of an RGB octree. */
+		OCTREE(new OctreeQuantizer()),
+		/** Splits the color space where it minimizes the variance (Wu, 1991). */
+		WU(new WuQuantizer());
+
+		private final Quantizer quantizer;
+
+		Method(Quantizer quantizer)
+		{
+			this.quantizer = quantizer;
+		}
+
+		Quantizer quantizer()
+		{
+			return quantizer;
+		}
+	}
+
+	public enum Dither
+	{
+		NONE,
+		/** An 8×8 Bayer threshold pattern; stable between frames. */
+		ORDERED,
+		/** Error diffusion; smoother gradients, but noise that changes between frames. */
+		FLOYD_STEINBERG
+	}
+
+	public Quantization withMethod(Method method)
+	{
+		return new Quantization(method, dither);
+	}
+
+	public Quantization withDither(Dither dither)
+	{
+		return new Quantization(method, dither);
+	}
+}
@@ -0,0 +1,15 @@
+package com.composegif;
+
+/**
+ * Chooses a reduced palette for the colors of a frame. Implementations are stateless
+ * and deterministic, and their cost depends only on the number of distinct colors
+ * plus a fixed amount, never on the frame's pixel count.
+ */
+interface Quantizer
+{
+	/**
+	 * Picks at most {@code maxColors} opaque ARGB colors to stand for the first
+	 * {@code size} entries of {@code colors}, each used {@code counts} times.
+	 */
+	int[] palette(int[] colors, int[] counts, int size, int maxColors);
+}
@@ -0,0 +1,65 @@
+package com.composegif;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Quick estimate of an export's size for display while editing. A sample of frames is
+ * encoded with the real pipeline into a {@link CountingChannel} and the byte count is
+ * scaled up to the full frame count. The sample is a few evenly spaced runs of
+ * consecutive frames, so delta frames still see their usual neighbours.
+ */
+class SizeEstimator
+{
+	static final int DEFAULT_SAMPLE_FRAMES = 16;
+	private static final int RUNS = 4;
+
+	/**
+	 * Estimated size in bytes; exact when there are no more frames than {@code sampleFrames}.
+	 * Runs on the calling thread and ends with {@link InterruptedIOException} soon after
+	 * the thread is interrupted.
+	 */
+	static long estimate(
+			List<FrameLoader.FrameData> frames,
+			List<Integer> delaysMs,
+			int scale,
+			Object interpolationHint,
+			GifEncoder.Options options,
+			int sampleFrames
+	) throws IOException
+	{
+		int total = frames.size();
+		List<FrameLoader.FrameData> sample = new ArrayList<>();
+		List<Integer> sampleDelays = new ArrayList<>();
+		if (total <= sampleFrames)
+		{
+			sample.addAll(frames);
+			sampleDelays.addAll(delaysMs);
+		}
+		else
+		{
+			int runLength = Math.max(sampleFrames / RUNS, 1);
+			int runs = sampleFrames / runLength;
+			for (int r = 0; r < runs; r++)
+			{
+				int start = runs == 1 ? 0 : (int) ((long) r * (total - runLength) / (runs - 1));
+				sample.addAll(frames.subList(start, start + runLength));
+				sampleDelays.addAll(delaysMs.subList(start, start + runLength));
+			}
+		}
+
+		CountingChannel sink = new CountingChannel(Long.MAX_VALUE, Thread.currentThread()::isInterrupted);
+		try
+		{
+			GifEncoder.encode(GifEncoder.FrameSource.of(sample, sampleDelays), sink, scale, interpolationHint,
+					options.withParallel(false), null);
+		}
+		catch (CountingChannel.Abandoned e)
+		{
+			throw new InterruptedIOException("Size estimate cancelled");
+		}
+		return sink.count() * total / sample.size();
+	}
+}
@@ -0,0 +1,187 @@
+package com.composegif;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Exports a GIF that fits a byte budget. Candidate settings are trial-encoded on a
+ * bounded pool into sinks that only count bytes, and the best-quality candidate that
+ * fits is then exported for real.
+ * <p>
+ * Quality ranks scale first (largest wins), then lossiness (least wins), then color
+ * count (most wins). Each rank is tried as configured and with masked delta frames,
+ * keeping the smaller, since masking is lossless. A scale is only searched once its
+ * cheapest candidate is known to fit. Trials stop writing as soon as they exceed the
+ * budget.
+ */
+public class TargetSizeExport
+{
+	private static final int[] LOSSY_LEVELS = {0, 16, 32, 64};
+	// 0 keeps every color
+	private static final int[] COLOR_LIMITS = {0, 128, 64, 32, 16};
+
+	/** The settings an export was written with, and its size in bytes. */
+	public record Setting(int scale, GifEncoder.Options options, long size) {}
+
+	private record Candidate(int scale, GifEncoder.Options options) {}
+
+	/**
+	 * Exports {@code frames} at the best setting whose output is at most {@code maxBytes},
+	 * scaling by at most {@code maxScale} and never below the quality of {@code base}.
+	 *
+	 * @throws IOException if not even the smallest candidate fits
+	 */
+	public static Setting encode(
+			List<FrameLoader.FrameData> frames,
+			File output,
+			int maxScale,
+			Object interpolationHint,
+			List<Integer> delaysMs,
+			GifEncoder.Options base,
+			long maxBytes,
+			GifEncoder.ProgressListener listener
+	) throws IOException
+	{
+		if (frames.isEmpty())
+		{
+			throw new IOException("No frames to encode");
+		}
+
+		Setting best;
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try
+		{
+			best = search(pool, frames, maxScale, interpolationHint, delaysMs, base, maxBytes);
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		if (best == null)
+		{
+			throw new IOException("Cannot fit the animation in " + maxBytes / 1024 + " KB, even at 1x with "
+					+ COLOR_LIMITS[COLOR_LIMITS.length - 1] + " colors and the strongest lossy setting");
+		}
+
+		GifEncoder.Options options = best.options().withParallel(base.parallel());
+		GifEncoder.encode(frames, output, best.scale(), interpolationHint, delaysMs, options, listener);
+		return new Setting(best.scale(), options, output.length());
+	}
+
+	private static Setting search(ForkJoinPool pool, List<FrameLoader.FrameData> frames, int maxScale,
+								  Object interpolationHint, List<Integer> delaysMs, GifEncoder.Options base,
+								  long maxBytes) throws IOException
+	{
+		for (int scale = maxScale; scale >= 1; scale--)
+		{
+			List<List<Candidate>> ranks = ranks(scale, base);
+			int last = ranks.size() - 1;
+			Setting cheapest = smallest(trials(pool, frames, interpolationHint, delaysMs, ranks.get(last), maxBytes,
+					new AtomicBoolean()));
+			if (cheapest == null)
+			{
+				continue;
+			}
+
+			// Trials are queued in rank order; once a rank fits, the ones after it stop
+			AtomicBoolean stop = new AtomicBoolean();
+			List<List<Future<Setting>>> pending = new ArrayList<>();
+			for (List<Candidate> rank : ranks.subList(0, last))
+			{
+				pending.add(trials(pool, frames, interpolationHint, delaysMs, rank, maxBytes, stop));
+			}
+			for (List<Future<Setting>> rank : pending)
+			{
+				Setting fit = smallest(rank);
+				if (fit != null)
+				{
+					stop.set(true);
+					return fit;
+				}
+			}
+			return cheapest;
+		}
+		return null;
+	}
+
+	/**
+	 * Candidates for one scale, best quality first. Each rank holds the delta variants
+	 * of one quality level.
+	 */
+	private static List<List<Candidate>> ranks(int scale, GifEncoder.Options base)
+	{
+		List<List<Candidate>> ranks = new ArrayList<>();
+		for (int lossy : LOSSY_LEVELS)
+		{
+			if (lossy < base.lossy()) continue;
+			for (int colors : COLOR_LIMITS)
+			{
+				if (base.maxColors() > 0 && (colors == 0 || colors > base.maxColors())) continue;
+				GifEncoder.Options options = base.withParallel(false).withLossy(lossy).withMaxColors(colors);
+				List<Candidate> rank = new ArrayList<>();
+				rank.add(new Candidate(scale, options));
+				if (!options.maskUnchanged())
+				{
+					rank.add(new Candidate(scale, options.withMaskUnchanged(true)));
+				}
+				ranks.add(rank);
+			}
+		}
+		if (ranks.isEmpty())
+		{
+			// The base setting is already past every step of the ladder
+			ranks.add(List.of(new Candidate(scale, base.withParallel(false))));
+		}
+		return ranks;
+	}
+
+	private static List<Future<Setting>> trials(ForkJoinPool pool, List<FrameLoader.FrameData> frames,
+												Object interpolationHint, List<Integer> delaysMs,
+												List<Candidate> candidates, long maxBytes, AtomicBoolean stop)
+	{
+		List<Future<Setting>> futures = new ArrayList<>();
+		for (Candidate candidate : candidates)
+		{
+			futures.add(pool.submit(() -> trial(frames, interpolationHint, delaysMs, candidate, maxBytes, stop)));
+		}
+		return futures;
+	}
+
+	/** The smallest trial that fit, or null if none did. */
+	private static Setting smallest(List<Future<Setting>> trials) throws IOException
+	{
+		Setting smallest = null;
+		for (Future<Setting> trial : trials)
+		{
+			Setting setting = GifEncoder.await(trial);
+			if (setting != null && (smallest == null || setting.size() < smallest.size()))
+			{
+				smallest = setting;
+			}
+		}
+		return smallest;
+	}
+
+	/** Encodes a candidate into a counting sink; null if it went over the budget or was stopped. */
+	private static Setting trial(List<FrameLoader.FrameData> frames, Object interpolationHint,
+								 List<Integer> delaysMs, Candidate candidate, long maxBytes, AtomicBoolean stop)
+			throws IOException
+	{
+		CountingChannel sink = new CountingChannel(maxBytes, stop::get);
+		try
+		{
+			GifEncoder.encode(GifEncoder.FrameSource.of(frames, delaysMs), sink, candidate.scale(),
+					interpolationHint, candidate.options(), null);
+		}
+		catch (CountingChannel.Abandoned e)
+		{
+			return null;
+		}
+		return new Setting(candidate.scale(), candidate.options(), sink.count());
+	}
+}
@@ -0,0 +1,277 @@
+package com.composegif;
+
+import java.util.Arrays;
+
+/**
+ * Wu's color quantizer (Graphics Gems II, 1991). Colors are binned into 32×32×32
+ * cells whose weight, color sums and squared color sums are turned into cumulative
+ * moments, so the variance of any box comes from a handful of lookups. The box with
+ * the largest variance is split repeatedly at the plane that leaves the least total
+ * variance. The work is fixed by the cell grid rather than the frame's colors.
+ */
+class WuQuantizer implements Quantizer
+{
+	private static final int CELL_BITS = 5;
+	private static final int SIDE = (1 << CELL_BITS) + 1;
+	private static final int RED = 0;
+	private static final int GREEN = 1;
+	private static final int BLUE = 2;
+
+	/** A box of cells, exclusive of its lower and inclusive of its upper bounds. */
+	private static final class Box
+	{
+		int r0, r1, g0, g1, b0, b1;
+		int volume;
+	}
+
+	/** Cumulative moments of one frame. */
+	private static final class Moments
+	{
+		final long[] weight = new long[SIDE * SIDE * SIDE];
+		final long[] red = new long[weight.length];
+		final long[] green = new long[weight.length];
+		final long[] blue = new long[weight.length];
+		final double[] squares = new double[weight.length];
+	}
+
+	@Override
+	public int[] palette(int[] colors, int[] counts, int size, int maxColors)
+	{
+		Moments m = new Moments();
+		for (int n = 0; n < size; n++)
+		{
+			int r = (colors[n] >> 16) & 0xFF;
+			int g = (colors[n] >> 8) & 0xFF;
+			int b = colors[n] & 0xFF;
+			int i = index((r >> 3) + 1, (g >> 3) + 1, (b >> 3) + 1);
+			long c = counts[n];
+			m.weight[i] += c;
+			m.red[i] += r * c;
+			m.green[i] += g * c;
+			m.blue[i] += b * c;
+			m.squares[i] += (double) c * (r * r + g * g + b * b);
+		}
+		accumulate(m);
+
+		Box[] boxes = new Box[maxColors];
+		double[] variance = new double[maxColors];
+		boxes[0] = new Box();
+		boxes[0].r1 = boxes[0].g1 = boxes[0].b1 = SIDE - 1;
+		int count = 1;
+		int next = 0;
+		while (count < maxColors)
+		{
+			Box box = new Box();
+			if (cut(m, boxes[next], box))
+			{
+				boxes[count] = box;
+				variance[next] = boxes[next].volume > 1 ? variance(m, boxes[next]) : 0;
+				variance[count] = box.volume > 1 ? variance(m, box) : 0;
+				count++;
+			}
+			else
+			{
+				variance[next] = 0;
+			}
+
+			next = 0;
+			for (int k = 1; k < count; k++)
+			{
+				if (variance[k] > variance[next]) next = k;
+			}
+			if (variance[next] <= 0) break;
+		}
+
+		int[] palette = new int[count];
+		int used = 0;
+		for (int k = 0; k < count; k++)
+		{
+			long w = volume(boxes[k], m.weight);
+			if (w <= 0) continue;
+			int r = (int) ((volume(boxes[k], m.red) + w / 2) / w);
+			int g = (int) ((volume(boxes[k], m.green) + w / 2) / w);
+			int b = (int) ((volume(boxes[k], m.blue) + w / 2) / w);
+			palette[used++] = 0xFF000000 | r << 16 | g << 8 | b;
+		}
+		return used == count ? palette : Arrays.copyOf(palette, used);
+	}
+
+	private static int index(int r, int g, int b)
+	{
+		return (r * SIDE + g) * SIDE + b;
+	}
+
+	/** Turns per-cell sums into sums over every cell at or below each index. */
+	private static void accumulate(Moments m)
+	{
+		long[] areaW = new long[SIDE];
+		long[] areaR = new long[SIDE];
+		long[] areaG = new long[SIDE];
+		long[] areaB = new long[SIDE];
+		double[] areaS = new double[SIDE];
+		for (int r = 1; r < SIDE; r++)
+		{
+			Arrays.fill(areaW, 0);
+			Arrays.fill(areaR, 0);
+			Arrays.fill(areaG, 0);
+			Arrays.fill(areaB, 0);
+			Arrays.fill(areaS, 0);
+			for (int g = 1; g < SIDE; g++)
+			{
+				long lineW = 0, lineR = 0, lineG = 0, lineB = 0;
+				double lineS = 0;
+				for (int b = 1; b < SIDE; b++)
+				{
+					int i = index(r, g, b);
+					int below = index(r - 1, g, b);
+					lineW += m.weight[i];
+					lineR += m.red[i];
+					lineG += m.green[i];
+					lineB += m.blue[i];
+					lineS += m.squares[i];
+					areaW[b] += lineW;
+					areaR[b] += lineR;
+					areaG[b] += lineG;
+					areaB[b] += lineB;
+					areaS[b] += lineS;
+					m.weight[i] = m.weight[below] + areaW[b];
+					m.red[i] = m.red[below] + areaR[b];
+					m.green[i] = m.green[below] + areaG[b];
+					m.blue[i] = m.blue[below] + areaB[b];
+					m.squares[i] = m.squares[below] + areaS[b];
+				}
+			}
+		}
+	}
+
+	private static long volume(Box c, long[] m)
+	{
+		return m[index(c.r1, c.g1, c.b1)] - m[index(c.r1, c.g1, c.b0)]
+				- m[index(c.r1, c.g0, c.b1)] + m[index(c.r1, c.g0, c.b0)]
+				- m[index(c.r0, c.g1, c.b1)] + m[index(c.r0, c.g1, c.b0)]
+				+ m[index(c.r0, c.g0, c.b1)] - m[index(c.r0, c.g0, c.b0)];
+	}
+
+	private static double volume(Box c, double[] m)
+	{
+		return m[index(c.r1, c.g1, c.b1)] - m[index(c.r1, c.g1, c.b0)]
+				- m[index(c.r1, c.g0, c.b1)] + m[index(c.r1, c.g0, c.b0)]
+				- m[index(c.r0, c.g1, c.b1)] + m[index(c.r0, c.g1, c.b0)]
+				+ m[index(c.r0, c.g0, c.b1)] - m[index(c.r0, c.g0, c.b0)];
+	}
+
+	/** The part of a box's volume that does not depend on where it is cut along {@code axis}. */
+	private static long bottom(Box c, int axis, long[] m)
+	{
+		return switch (axis)
+		{
+			case RED -> -m[index(c.r0, c.g1, c.b1)] + m[index(c.r0, c.g1, c.b0)]
+					+ m[index(c.r0, c.g0, c.b1)] - m[index(c.r0, c.g0, c.b0)];
+			case GREEN -> -m[index(c.r1, c.g0, c.b1)] + m[index(c.r1, c.g0, c.b0)]
+					+ m[index(c.r0, c.g0, c.b1)] - m[index(c.r0, c.g0, c.b0)];
+			default -> -m[index(c.r1, c.g1, c.b0)] + m[index(c.r1, c.g0, c.b0)]
+					+ m[index(c.r0, c.g1, c.b0)] - m[index(c.r0, c.g0, c.b0)];
+		};
+	}
+
+	/** The rest of a box's volume when its upper bound along {@code axis} is {@code position}. */
+	private static long top(Box c, int axis, int position, long[] m)
+	{
+		return switch (axis)
+		{
+			case RED -> m[index(position, c.g1, c.b1)] - m[index(position, c.g1, c.b0)]
+					- m[index(position, c.g0, c.b1)] + m[index(position, c.g0, c.b0)];
+			case GREEN -> m[index(c.r1, position, c.b1)] - m[index(c.r1, position, c.b0)]
+					- m[index(c.r0, position, c.b1)] + m[index(c.r0, position, c.b0)];
+			default -> m[index(c.r1, c.g1, position)] - m[index(c.r1, c.g0, position)]
+					- m[index(c.r0, c.g1, position)] + m[index(c.r0, c.g0, position)];
+		};
+	}
+
+	/** Weighted variance of a box, scaled by its weight. */
+	private static double variance(Moments m, Box c)
+	{
+		double r = volume(c, m.red);
+		double g = volume(c, m.green);
+		double b = volume(c, m.blue);
+		return volume(c, m.squares) - (r * r + g * g + b * b) / volume(c, m.weight);
+	}
+
+	/**
+	 * Best cut of {@code c} along {@code axis} between {@code first} and {@code last}:
+	 * writes the position to {@code cut[0]} (-1 if none) and returns the summed
+	 * squared means of the two halves, which the cut maximizes.
+	 */
+	private static double maximize(Moments m, Box c, int axis, int first, int last, int[] cut,
+								   long wholeR, long wholeG, long wholeB, long wholeW)
+	{
+		long baseR = bottom(c, axis, m.red);
+		long baseG = bottom(c, axis, m.green);
+		long baseB = bottom(c, axis, m.blue);
+		long baseW = bottom(c, axis, m.weight);
+		double max = 0;
+		cut[0] = -1;
+		for (int i = first; i < last; i++)
+		{
+			double halfR = baseR + top(c, axis, i, m.red);
+			double halfG = baseG + top(c, axis, i, m.green);
+			double halfB = baseB + top(c, axis, i, m.blue);
+			double halfW = baseW + top(c, axis, i, m.weight);
+			if (halfW == 0) continue;
+			double score = (halfR * halfR + halfG * halfG + halfB * halfB) / halfW;
+			halfR = wholeR - halfR;
+			halfG = wholeG - halfG;
+			halfB = wholeB - halfB;
+			halfW = wholeW - halfW;
+			if (halfW == 0) continue;
+			score += (halfR * halfR + halfG * halfG + halfB * halfB) / halfW;
+			if (score > max)
+			{
+				max = score;
+				cut[0] = i;
+			}
+		}
+		return max;
+	}
+
+	/** Splits {@code set1} in two, the upper part going to {@code set2}; false if it cannot be split. */
+	private static boolean cut(Moments m, Box set1, Box set2)
+	{
+		long wholeR = volume(set1, m.red);
+		long wholeG = volume(set1, m.green);
+		long wholeB = volume(set1, m.blue);
+		long wholeW = volume(set1, m.weight);
+		int[] cutR = new int[1];
+		int[] cutG = new int[1];
+		int[] cutB = new int[1];
+		double maxR = maximize(m, set1, RED, set1.r0 + 1, set1.r1, cutR, wholeR, wholeG, wholeB, wholeW);
+		double maxG = maximize(m, set1, GREEN, set1.g0 + 1, set1.g1, cutG, wholeR, wholeG, wholeB, wholeW);
+		double maxB = maximize(m, set1, BLUE, set1.b0 + 1, set1.b1, cutB, wholeR, wholeG, wholeB, wholeW);
+
+		set2.r1 = set1.r1;
+		set2.g1 = set1.g1;
+		set2.b1 = set1.b1;
+		if (maxR >= maxG && maxR >= maxB)
+		{
+			if (cutR[0] < 0) return false;
+			set2.r0 = set1.r1 = cutR[0];
+			set2.g0 = set1.g0;
+			set2.b0 = set1.b0;
+		}
+		else if (maxG >= maxR && maxG >= maxB)
+		{
+			set2.g0 = set1.g1 = cutG[0];
+			set2.r0 = set1.r0;
+			set2.b0 = set1.b0;
+		}
+		else
+		{
+			set2.b0 = set1.b1 = cutB[0];
+			set2.r0 = set1.r0;
+			set2.g0 = set1.g0;
+		}
+		set1.volume = (set1.r1 - set1.r0) * (set1.g1 - set1.g0) * (set1.b1 - set1.b0);
+		set2.volume = (set2.r1 - set2.r0) * (set2.g1 - set2.g0) * (set2.b1 - set2.b0);
+		return true;
+	}
+}
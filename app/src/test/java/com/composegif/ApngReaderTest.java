@@ -3,10 +3,22 @@ package com.composegif;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -18,7 +30,9 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.zip.CRC32;
+import java.util.zip.Inflater;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -102,6 +116,29 @@ class ApngReaderTest
 		assertFrameColor(result.frames().get(2), Color.BLUE, "Frame 3");
 	}
 
+	@Test
+	void framesDecodedAheadCompositeInOrder(@TempDir Path tempDir) throws Exception
+	{
+		// More sub-frames than are decoded ahead, each filling the next column
+		int count = 8 * Runtime.getRuntime().availableProcessors() + 3;
+		SubFrame[] subFrames = new SubFrame[count];
+		for (int i = 0; i < count; i++)
+		{
+			Color color = new Color(i * 7 % 256, 255 - i % 256, 128);
+			subFrames[i] = new SubFrame(i, 0, 1, 2, color, ApngReader.DISPOSE_OP_NONE, ApngReader.BLEND_OP_SOURCE);
+		}
+		File apng = tempDir.resolve("many.apng").toFile();
+		writeTestApngWithSubFrames(apng, count, 2, subFrames, 10);
+
+		ApngReader.ApngResult result = ApngReader.loadApng(apng);
+		assertEquals(count, result.frames().size());
+		BufferedImage last = result.frames().get(count - 1).image();
+		for (int i = 0; i < count; i++)
+		{
+			assertPixelColor(last, i, 1, subFrames[i].color(), "Column " + i);
+		}
+	}
+
 	// --- Delay extraction ---
 
 	@Test
@@ -280,6 +317,105 @@ class ApngReaderTest
 		assertFrameColor(result.frames().get(0), Color.CYAN, "Single frame");
 	}
 
+	@Test
+	void oversizedFrameIsRejected() throws Exception
+	{
+		ByteBuffer ihdr = ByteBuffer.allocate(13).putInt(1).putInt(1).put((byte) 16).put((byte) 6);
+		ApngFrameDecoder decoder = new ApngFrameDecoder(ihdr, null, null, "huge.apng");
+		Inflater inflater = new Inflater();
+		try
+		{
+			// 100,000 rows of 800,001 bytes, past what an int holds
+			IOException ex = assertThrows(IOException.class,
+					() -> decoder.decode(100_000, 100_000, List.of(), inflater));
+			assertTrue(ex.getMessage().contains("too large"), ex.getMessage());
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
+	@Test
+	void framesDecodeLikeImageIoInEveryFormat(@TempDir Path tempDir) throws Exception
+	{
+		byte[] r = new byte[100];
+		byte[] g = new byte[100];
+		byte[] b = new byte[100];
+		byte[] a = new byte[100];
+		Random random = new Random(11);
+		random.nextBytes(r);
+		random.nextBytes(g);
+		random.nextBytes(b);
+		random.nextBytes(a);
+		ColorModel rgb16 = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false,
+			Transparency.TRANSLUCENT, DataBuffer.TYPE_USHORT);
+		List<BufferedImage> images = List.of(
+			new BufferedImage(21, 13, BufferedImage.TYPE_BYTE_GRAY),
+			new BufferedImage(21, 13, BufferedImage.TYPE_USHORT_GRAY),
+			new BufferedImage(21, 13, BufferedImage.TYPE_INT_RGB),
+			new BufferedImage(21, 13, BufferedImage.TYPE_INT_ARGB),
+			new BufferedImage(21, 13, BufferedImage.TYPE_BYTE_INDEXED, new IndexColorModel(8, 100, r, g, b, a)),
+			new BufferedImage(21, 13, BufferedImage.TYPE_BYTE_BINARY, new IndexColorModel(2, 4, r, g, b)),
+			new BufferedImage(rgb16, rgb16.createCompatibleWritableRaster(21, 13), false, null));
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+		for (BufferedImage image : images)
+		{
+			WritableRaster raster = image.getRaster();
+			int max = image.getColorModel() instanceof IndexColorModel icm ? icm.getMapSize() : Integer.MAX_VALUE;
+			for (int y = 0; y < 13; y++)
+			{
+				for (int x = 0; x < 21; x++)
+				{
+					for (int band = 0; band < raster.getNumBands(); band++)
+					{
+						int bits = raster.getSampleModel().getSampleSize(band);
+						raster.setSample(x, y, band, Math.min(random.nextInt(1 << bits), max - 1));
+					}
+				}
+			}
+			for (boolean interlaced : new boolean[] {false, true})
+			{
+				ByteArrayOutputStream png = new ByteArrayOutputStream();
+				try (ImageOutputStream ios = ImageIO.createImageOutputStream(png))
+				{
+					writer.setOutput(ios);
+					ImageWriteParam param = writer.getDefaultWriteParam();
+					param.setProgressiveMode(interlaced ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+					writer.write(null, new IIOImage(image, null, null), param);
+				}
+				File apng = tempDir.resolve("format.apng").toFile();
+				writeSingleFrameApng(apng, png.toByteArray());
+
+				// What the frame was before: the PNG read by ImageIO, drawn onto the canvas and snapshotted
+				BufferedImage canvas = new BufferedImage(21, 13, BufferedImage.TYPE_INT_ARGB);
+				Graphics2D cg = canvas.createGraphics();
+				cg.setComposite(AlphaComposite.Src);
+				cg.drawImage(ImageIO.read(new ByteArrayInputStream(png.toByteArray())), 0, 0, null);
+				cg.dispose();
+				BufferedImage expected = new BufferedImage(21, 13, BufferedImage.TYPE_INT_ARGB);
+				Graphics2D sg = expected.createGraphics();
+				sg.drawImage(canvas, 0, 0, null);
+				sg.dispose();
+
+				BufferedImage actual = ApngReader.loadApng(apng).frames().get(0).image();
+				String label = image.getColorModel().getClass().getSimpleName() + " " + image.getType()
+					+ (interlaced ? " interlaced" : "");
+				for (int y = 0; y < 13; y++)
+				{
+					for (int x = 0; x < 21; x++)
+					{
+						int want = expected.getRGB(x, y);
+						int got = actual.getRGB(x, y);
+						if (want >>> 24 == 0 && got >>> 24 == 0) continue;
+						assertEquals(want, got, label + " at " + x + "," + y);
+					}
+				}
+			}
+		}
+	}
+
 	// --- Integration via FrameLoader ---
 
 	@Test
@@ -320,6 +456,41 @@ class ApngReaderTest
 		}
 	}
 
+	@Test
+	void frameLoaderKeepsApngFramesAsPatches(@TempDir Path tempDir) throws Exception
+	{
+		// A 2x2 dot wandering over a 32x32 background, leaving a trail
+		Color[] colors = {Color.RED, Color.GREEN, Color.BLUE};
+		SubFrame[] subFrames = new SubFrame[40];
+		subFrames[0] = new SubFrame(0, 0, 32, 32, Color.CYAN, ApngReader.DISPOSE_OP_NONE, ApngReader.BLEND_OP_SOURCE);
+		for (int i = 1; i < subFrames.length; i++)
+		{
+			subFrames[i] = new SubFrame(i * 7 % 30, i * 3 % 30, 2, 2, colors[i % 3],
+				ApngReader.DISPOSE_OP_NONE, ApngReader.BLEND_OP_SOURCE);
+		}
+		File apng = tempDir.resolve("trail.apng").toFile();
+		writeTestApngWithSubFrames(apng, 32, 32, subFrames, 50);
+
+		FrameLoader.LoadResult full = FrameLoader.load(List.of(apng));
+		FrameLoader.LoadResult result = FrameLoader.load(List.of(apng), Quantization.DEFAULT, false, true, null);
+		PatchedFrames patched = assertInstanceOf(PatchedFrames.class, result.frames());
+		assertEquals(40, patched.size());
+		assertEquals(50, result.extractedDelayMs());
+		assertTrue(patched.storedBytes() < 40L * 32 * 32 / 4, "stored " + patched.storedBytes());
+		for (int f = 39; f >= 0; f--)
+		{
+			BufferedImage expected = full.frames().get(f).image();
+			BufferedImage actual = patched.get(f).image();
+			for (int y = 0; y < 32; y++)
+			{
+				for (int x = 0; x < 32; x++)
+				{
+					assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), "frame " + f + " at " + x + "," + y);
+				}
+			}
+		}
+	}
+
 	// --- fcTL parsing ---
 
 	@Test
@@ -510,6 +681,49 @@ class ApngReaderTest
 		return idatData.toByteArray();
 	}
 
+	/**
+	 * Wraps a PNG as a one-frame APNG, inserting acTL and fcTL before its image data.
+	 */
+	private static void writeSingleFrameApng(File file, byte[] png) throws Exception
+	{
+		ByteBuffer in = ByteBuffer.wrap(png);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(png, 0, 8);
+		int pos = 8;
+		boolean controlsWritten = false;
+		while (pos < png.length)
+		{
+			int length = in.getInt(pos);
+			String type = new String(png, pos + 4, 4, StandardCharsets.ISO_8859_1);
+			if ("IDAT".equals(type) && !controlsWritten)
+			{
+				ByteBuffer actl = ByteBuffer.allocate(8);
+				actl.putInt(1);
+				actl.putInt(0);
+				writeChunk(out, "acTL", actl.array());
+				ByteBuffer fctl = ByteBuffer.allocate(26);
+				fctl.putInt(0);
+				fctl.putInt(in.getInt(16));
+				fctl.putInt(in.getInt(20));
+				fctl.putInt(0);
+				fctl.putInt(0);
+				fctl.putShort((short) 1);
+				fctl.putShort((short) 10);
+				fctl.put(ApngReader.DISPOSE_OP_NONE);
+				fctl.put(ApngReader.BLEND_OP_SOURCE);
+				writeChunk(out, "fcTL", fctl.array());
+				controlsWritten = true;
+			}
+			out.write(png, pos, length + 12);
+			pos += length + 12;
+		}
+
+		try (FileOutputStream fos = new FileOutputStream(file))
+		{
+			fos.write(out.toByteArray());
+		}
+	}
+
 	private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data) throws IOException
 	{
 		byte[] typeBytes = type.getBytes(StandardCharsets.ISO_8859_1);
@@ -6,6 +6,7 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -48,7 +49,7 @@ class CompositorTest
 		Compositor.FlattenResult result = Compositor.flatten(List.of(bg));
 
 		assertEquals(2, result.frames().size());
-		assertEquals(100, result.delayMs());
+		assertEquals(List.of(100, 100), result.delaysMs());
 		// Passthrough — same frame objects, no re-quantization
 		assertSame(bgFrames.get(0), result.frames().get(0));
 		assertSame(bgFrames.get(1), result.frames().get(1));
@@ -65,7 +66,7 @@ class CompositorTest
 		Compositor.FlattenResult result = Compositor.flatten(List.of(fg));
 
 		assertEquals(1, result.frames().size());
-		assertEquals(80, result.delayMs());
+		assertEquals(List.of(80), result.delaysMs());
 		assertSame(fgFrames.get(0), result.frames().get(0));
 	}
 
@@ -121,7 +122,7 @@ class CompositorTest
 		Compositor.FlattenResult result = Compositor.flatten(List.of(bg, fg));
 
 		assertEquals(12, result.frames().size());
-		assertEquals(100, result.delayMs());
+		assertEquals(Collections.nCopies(12, 100), result.delaysMs());
 		assertEquals(4, result.width());
 		assertEquals(4, result.height());
 	}
@@ -146,7 +147,7 @@ class CompositorTest
 		Compositor.FlattenResult result = Compositor.flatten(List.of(bg, fg));
 
 		assertEquals(3, result.frames().size());
-		assertEquals(100, result.delayMs());
+		assertEquals(List.of(100, 100, 100), result.delaysMs());
 	}
 
 	@Test
@@ -271,7 +272,7 @@ class CompositorTest
 
 		// Should passthrough fg only
 		assertEquals(1, result.frames().size());
-		assertEquals(80, result.delayMs());
+		assertEquals(List.of(80), result.delaysMs());
 		assertSame(fgFrames.get(0), result.frames().get(0));
 	}
 
@@ -285,7 +286,7 @@ class CompositorTest
 		Compositor.FlattenResult result = Compositor.flatten(List.of(bg));
 
 		assertEquals(1, result.frames().size());
-		assertEquals(100, result.delayMs());
+		assertEquals(List.of(100), result.delaysMs());
 		assertSame(bgFrames.get(0), result.frames().get(0));
 	}
 
@@ -394,7 +395,7 @@ class CompositorTest
 		Compositor.FlattenResult result = Compositor.flatten(List.of(layer));
 
 		assertEquals(1, result.frames().size());
-		assertEquals(100, result.delayMs());
+		assertEquals(List.of(100), result.delaysMs());
 		assertSame(frames.get(0), result.frames().get(0));
 	}
 
@@ -426,15 +427,55 @@ class CompositorTest
 	void flattenThreeLayersDifferentDelays() throws IOException
 	{
 		// Layer 0: 1 frame @ 100ms, Layer 1: 1 frame @ 200ms, Layer 2: 1 frame @ 300ms
-		// GCD(100,200,300) = 100, steps = [1,2,3], totalTicks = lcm(1,2,3) = 6
+		// No layer ever changes frame, so the composite is a single still frame
 		var l0 = new Compositor.Layer(List.of(solidFrame(4, 4, Color.RED)), 4, 4, 100);
 		var l1 = new Compositor.Layer(List.of(solidFrame(4, 4, Color.GREEN)), 4, 4, 200);
 		var l2 = new Compositor.Layer(List.of(solidFrame(4, 4, Color.BLUE)), 4, 4, 300);
 
 		Compositor.FlattenResult result = Compositor.flatten(List.of(l0, l1, l2));
 
-		assertEquals(6, result.frames().size());
-		assertEquals(100, result.delayMs());
+		assertEquals(1, result.frames().size());
+		assertEquals(List.of(100), result.delaysMs());
+	}
+
+	@Test
+	void framesEmittedOnlyAtLayerChanges() throws IOException
+	{
+		// bg: 2 frames @ 30ms (cycle 60), fg: 2 frames @ 70ms (cycle 140)
+		// Loop = lcm(60, 140) = 420ms. The old 10ms GCD tick needed 42 frames; change
+		// events are multiples of 30 or 70 below 420: 14 + 6 - 2 shared (0, 210) = 18 frames
+		var bg = new Compositor.Layer(List.of(
+				solidFrame(4, 4, Color.RED),
+				solidFrame(4, 4, Color.GREEN)
+		), 4, 4, 30);
+		var fg = new Compositor.Layer(List.of(
+				solidFrame(2, 2, Color.BLUE),
+				solidFrame(2, 2, Color.YELLOW)
+		), 2, 2, 70);
+
+		Compositor.FlattenResult result = Compositor.flatten(List.of(bg, fg));
+
+		assertEquals(18, result.frames().size());
+		assertEquals(18, result.delaysMs().size());
+		assertEquals(List.of(30, 30, 10, 20, 30, 20, 10, 30), result.delaysMs().subList(0, 8));
+		assertEquals(420, result.delaysMs().stream().mapToInt(Integer::intValue).sum());
+
+		// 60ms: bg frame 0 again, fg still frame 0; 70ms: fg switches to frame 1
+		assertColorClose(Color.RED, result.frames().get(2).image().getRGB(3, 3), "bg at 60ms");
+		assertColorClose(Color.BLUE, result.frames().get(2).image().getRGB(0, 0), "fg at 60ms");
+		assertColorClose(Color.YELLOW, result.frames().get(3).image().getRGB(0, 0), "fg at 70ms");
+	}
+
+	@Test
+	void staticLayerDoesNotStretchLoop() throws IOException
+	{
+		// A still 70ms background under a 3-frame 100ms animation loops every 300ms
+		var bg = new Compositor.Layer(List.of(solidFrame(4, 4, Color.RED)), 4, 4, 70);
+		var fg = new Compositor.Layer(nFrames(3, Color.BLUE), 2, 2, 100);
+
+		Compositor.FlattenResult result = Compositor.flatten(List.of(bg, fg));
+
+		assertEquals(List.of(100, 100, 100), result.delaysMs());
 	}
 
 	@Test
@@ -461,6 +502,41 @@ class CompositorTest
 		assertTrue(ex.getMessage().contains("too long"));
 	}
 
+	@Test
+	void onDemandFramesMatchFlattenedFrames() throws IOException
+	{
+		var bg = new Compositor.Layer(List.of(solidFrame(8, 8, Color.RED), solidFrame(8, 8, Color.GREEN)), 8, 8, 100);
+		var fg = new Compositor.Layer(nFrames(3, Color.BLUE), 4, 4, 100).withOffset(2, 2);
+
+		Compositor.FlattenResult eager = Compositor.flatten(List.of(bg, fg), Quantization.DEFAULT);
+		Compositor.FlattenResult onDemand = Compositor.flattenOnDemand(List.of(bg, fg), Quantization.DEFAULT);
+		Compositor.FlattenResult held = onDemand.held(Long.MAX_VALUE);
+		Compositor.FlattenResult patched = onDemand.patched();
+
+		assertEquals(eager.delaysMs(), onDemand.delaysMs());
+		assertEquals(eager.frames().size(), onDemand.frames().size());
+		assertSame(onDemand, onDemand.held(0));
+		assertSame(eager, eager.patched());
+		GifEncoder.FrameSource source = onDemand.source();
+		for (int f = 0; f < eager.frames().size(); f++)
+		{
+			BufferedImage expected = eager.frames().get(f).image();
+			BufferedImage streamed = source.next().frame().image();
+			for (BufferedImage actual : List.of(onDemand.frames().get(f).image(), held.frames().get(f).image(),
+					patched.frames().get(f).image(), streamed))
+			{
+				for (int y = 0; y < 8; y++)
+				{
+					for (int x = 0; x < 8; x++)
+					{
+						assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), "frame " + f + " at " + x + "," + y);
+					}
+				}
+			}
+		}
+		assertNull(source.next());
+	}
+
 	// --- Helpers ---
 
 	private static FrameLoader.FrameData solidFrame(int w, int h, Color color)
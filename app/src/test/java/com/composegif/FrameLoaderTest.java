@@ -6,6 +6,7 @@ import org.junit.jupiter.api.io.TempDir;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataNode;
@@ -13,12 +14,20 @@ import javax.imageio.stream.ImageOutputStream;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -204,6 +213,201 @@ class FrameLoaderTest
 		assertInstanceOf(IndexColorModel.class, loaded.getColorModel());
 	}
 
+	@Test
+	void quantizeMapsExcessColorsToNearestPaletteEntry()
+	{
+		// 4096 distinct colors plus a transparent corner; the palette keeps 255 of them
+		BufferedImage src = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+		Random random = new Random(4);
+		for (int y = 0; y < 64; y++)
+		{
+			for (int x = 0; x < 64; x++)
+			{
+				int rgb = random.nextInt(1 << 24);
+				src.setRGB(x, y, x < 2 && y < 2 ? rgb : 0xFF000000 | rgb);
+			}
+		}
+
+		FrameLoader.QuantizeResult result = FrameLoader.quantizeToIndexed(src);
+		IndexColorModel icm = (IndexColorModel) result.image().getColorModel();
+		assertEquals(255, result.transparentIndex());
+		for (int y = 0; y < 64; y++)
+		{
+			for (int x = 0; x < 64; x++)
+			{
+				int index = result.image().getRaster().getSample(x, y, 0);
+				if (x < 2 && y < 2)
+				{
+					assertEquals(255, index);
+					continue;
+				}
+				// Lowest index at the smallest distance, as a linear scan picks it
+				int argb = src.getRGB(x, y);
+				int expected = 0;
+				int bestDist = Integer.MAX_VALUE;
+				for (int i = 0; i < icm.getMapSize(); i++)
+				{
+					if (i == result.transparentIndex()) continue;
+					int dist = distance(argb, icm.getRGB(i));
+					if (dist < bestDist)
+					{
+						bestDist = dist;
+						expected = i;
+					}
+				}
+				assertEquals(expected, index, "pixel " + x + "," + y);
+			}
+		}
+	}
+
+	@Test
+	void quantizePaletteOrderIsDeterministic()
+	{
+		// Few colors keep their order of first appearance
+		BufferedImage few = new BufferedImage(3, 1, BufferedImage.TYPE_INT_RGB);
+		few.setRGB(0, 0, 0x00FF00);
+		few.setRGB(1, 0, 0x0000FF);
+		few.setRGB(2, 0, 0x00FF00);
+		IndexColorModel fewIcm = (IndexColorModel) FrameLoader.quantizeToIndexed(few).image().getColorModel();
+		assertEquals(2, fewIcm.getMapSize());
+		assertEquals(0xFF00FF00, fewIcm.getRGB(0));
+		assertEquals(0xFF0000FF, fewIcm.getRGB(1));
+
+		// 300 colors, where every tenth appears twice: those 30 come first, then the
+		// single ones in order of first appearance
+		BufferedImage many = new BufferedImage(330, 1, BufferedImage.TYPE_INT_ARGB);
+		for (int i = 0; i < 300; i++)
+		{
+			many.setRGB(i, 0, 0xFF000000 | i * 40);
+		}
+		for (int i = 0; i < 30; i++)
+		{
+			many.setRGB(300 + i, 0, 0xFF000000 | i * 400);
+		}
+		IndexColorModel manyIcm = (IndexColorModel) FrameLoader.quantizeToIndexed(many).image().getColorModel();
+		assertEquals(256, manyIcm.getMapSize());
+		for (int i = 0; i < 30; i++)
+		{
+			assertEquals(0xFF000000 | i * 400, manyIcm.getRGB(i));
+		}
+		int next = 30;
+		for (int i = 0; i < 300 && next < 256; i++)
+		{
+			if (i % 10 == 0) continue;
+			assertEquals(0xFF000000 | i * 40, manyIcm.getRGB(next++), "entry " + next);
+		}
+	}
+
+	@Test
+	void quantizersFollowGradientsCloserThanPopularity()
+	{
+		BufferedImage src = gradient(256, 256);
+		double popularity = meanSquaredError(src, FrameLoader.quantizeToIndexed(src).image());
+		for (Quantization.Method method : Quantization.Method.values())
+		{
+			if (method == Quantization.Method.POPULARITY) continue;
+			FrameLoader.QuantizeResult qr = FrameLoader.quantizeToIndexed(src,
+					Quantization.DEFAULT.withMethod(method));
+			IndexColorModel icm = (IndexColorModel) qr.image().getColorModel();
+			assertTrue(icm.getMapSize() <= 256, method + " palette size " + icm.getMapSize());
+			assertEquals(icm.getMapSize() - 1, qr.transparentIndex(), method.toString());
+			assertEquals(0, qr.image().getRGB(0, 0) >>> 24, method + " keeps the transparent corner");
+			double error = meanSquaredError(src, qr.image());
+			assertTrue(error < popularity / 4, method + " error " + error + " vs popularity " + popularity);
+		}
+	}
+
+	@Test
+	void ditheringIsDeterministicAndTracksAverageColor()
+	{
+		BufferedImage src = gradient(128, 128);
+		Quantization base = new Quantization(Quantization.Method.WU, Quantization.Dither.NONE);
+		double undithered = blockError(src, FrameLoader.quantizeToIndexed(src, base).image());
+		for (Quantization.Dither dither : Quantization.Dither.values())
+		{
+			if (dither == Quantization.Dither.NONE) continue;
+			BufferedImage first = FrameLoader.quantizeToIndexed(src, base.withDither(dither)).image();
+			BufferedImage second = FrameLoader.quantizeToIndexed(src, base.withDither(dither)).image();
+			byte[] a = (byte[]) first.getRaster().getDataElements(0, 0, 128, 128, null);
+			byte[] b = (byte[]) second.getRaster().getDataElements(0, 0, 128, 128, null);
+			assertArrayEquals(a, b, dither.toString());
+			assertEquals(0, first.getRGB(0, 0) >>> 24, dither + " keeps the transparent corner");
+
+			double error = blockError(src, first);
+			assertTrue(error < undithered, dither + " block error " + error + " vs " + undithered);
+		}
+	}
+
+	/** Smooth red/green ramps with a blue cross-ramp, all distinct colors, and a transparent corner pixel. */
+	private static BufferedImage gradient(int w, int h)
+	{
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < h; y++)
+		{
+			for (int x = 0; x < w; x++)
+			{
+				int r = x * 255 / (w - 1);
+				int g = y * 255 / (h - 1);
+				int b = (x + y) * 255 / (w + h - 2);
+				image.setRGB(x, y, 0xFF000000 | r << 16 | g << 8 | b);
+			}
+		}
+		image.setRGB(0, 0, 0);
+		return image;
+	}
+
+	private static double meanSquaredError(BufferedImage src, BufferedImage indexed)
+	{
+		long total = 0;
+		int count = 0;
+		for (int y = 0; y < src.getHeight(); y++)
+		{
+			for (int x = 0; x < src.getWidth(); x++)
+			{
+				if ((src.getRGB(x, y) >>> 24) < 128) continue;
+				total += distance(src.getRGB(x, y), indexed.getRGB(x, y));
+				count++;
+			}
+		}
+		return (double) total / count;
+	}
+
+	/** Mean difference per channel between 8×8 block averages, skipping the corner block. */
+	private static double blockError(BufferedImage src, BufferedImage indexed)
+	{
+		double total = 0;
+		int count = 0;
+		for (int by = 0; by < src.getHeight(); by += 8)
+		{
+			for (int bx = 0; bx < src.getWidth(); bx += 8)
+			{
+				if (bx == 0 && by == 0) continue;
+				for (int shift = 0; shift <= 16; shift += 8)
+				{
+					int difference = 0;
+					for (int y = by; y < by + 8; y++)
+					{
+						for (int x = bx; x < bx + 8; x++)
+						{
+							difference += ((src.getRGB(x, y) >> shift) & 0xFF) - ((indexed.getRGB(x, y) >> shift) & 0xFF);
+						}
+					}
+					total += Math.abs(difference) / 64.0;
+					count++;
+				}
+			}
+		}
+		return total / count;
+	}
+
+	private static int distance(int a, int b)
+	{
+		int dr = ((a >> 16) & 0xFF) - ((b >> 16) & 0xFF);
+		int dg = ((a >> 8) & 0xFF) - ((b >> 8) & 0xFF);
+		int db = (a & 0xFF) - (b & 0xFF);
+		return dr * dr + dg * dg + db * db;
+	}
+
 	// --- Natural sort comparator ---
 
 	@Test
@@ -279,6 +483,100 @@ class FrameLoaderTest
 		assertFrameColor(result.frames().get(2), Color.BLUE,  "frame_10");
 	}
 
+	@Test
+	void concurrentLoadKeepsOrderWarningsAndProgress(@TempDir Path tempDir) throws Exception
+	{
+		// Alternating truecolor and paletted files, so only every other one warns
+		List<File> files = new ArrayList<>();
+		for (int i = 1; i <= 40; i++)
+		{
+			File file = tempDir.resolve("f" + i + ".png").toFile();
+			Color color = new Color(i * 6, 255 - i * 6, i * 3);
+			if (i % 2 == 0)
+			{
+				BufferedImage img = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+				Graphics2D g = img.createGraphics();
+				g.setColor(color);
+				g.fillRect(0, 0, 16, 16);
+				g.dispose();
+				ImageIO.write(img, "png", file);
+			}
+			else
+			{
+				writeSolidColorPng(file, 16, 16, color);
+			}
+			files.add(file);
+		}
+		Collections.reverse(files);
+
+		List<Integer> progress = new ArrayList<>();
+		FrameLoader.LoadResult result = FrameLoader.load(files, Quantization.DEFAULT, false,
+				(current, total) -> {
+					assertEquals(40, total);
+					progress.add(current);
+				});
+		assertEquals(40, result.frames().size());
+		for (int i = 1; i <= 40; i++)
+		{
+			assertFrameColor(result.frames().get(i - 1), new Color(i * 6, 255 - i * 6, i * 3), "f" + i);
+			assertEquals(i, (int) progress.get(i - 1));
+		}
+		assertEquals(20, result.warnings().size());
+		for (int n = 0; n < 20; n++)
+		{
+			int frame = 2 * (n + 1);
+			assertTrue(result.warnings().get(n).startsWith("Frame " + frame + " (f" + frame + ".png): truecolor (24 bpp)"),
+					result.warnings().get(n));
+		}
+	}
+
+	@Test
+	void concurrentLoadReportsFirstFailureInOrder(@TempDir Path tempDir) throws Exception
+	{
+		List<File> files = new ArrayList<>();
+		for (int i = 1; i <= 8; i++)
+		{
+			File file = tempDir.resolve(i + ".bmp").toFile();
+			if (i == 3 || i == 7)
+			{
+				Files.writeString(file.toPath(), "not an image");
+			}
+			else
+			{
+				BufferedImage img = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+				ImageIO.write(img, "bmp", file);
+			}
+			files.add(file);
+		}
+
+		IOException ex = assertThrows(IOException.class, () -> FrameLoader.load(files));
+		assertTrue(ex.getMessage().startsWith("Failed to load frame 3 (3.bmp)"), ex.getMessage());
+	}
+
+	@Test
+	void interruptedLoadReportsLoadingInterrupted(@TempDir Path tempDir) throws Exception
+	{
+		List<File> files = new ArrayList<>();
+		for (int i = 1; i <= 12; i++)
+		{
+			File file = tempDir.resolve(i + ".png").toFile();
+			writeSolidColorPng(file, 4, 4, Color.RED);
+			files.add(file);
+		}
+
+		try
+		{
+			InterruptedIOException ex = assertThrows(InterruptedIOException.class,
+					() -> FrameLoader.load(files, Quantization.DEFAULT, false,
+							(current, total) -> Thread.currentThread().interrupt()));
+			assertEquals("Loading interrupted", ex.getMessage());
+		}
+		finally
+		{
+			Thread.interrupted();
+		}
+	}
+
 	private static void assertFrameColor(FrameLoader.FrameData frame, Color expected, String label)
 	{
 		int rgb = frame.image().getRGB(0, 0);
@@ -364,6 +662,365 @@ class FrameLoaderTest
 		assertEquals(100, result.extractedDelayMs()); // timing from first GIF only
 	}
 
+	@Test
+	void gifDisposalIsAppliedInIndexSpace(@TempDir Path tempDir) throws Exception
+	{
+		byte[] global = {(byte) 255, 0, 0, 0, (byte) 255, 0, 0, 0, (byte) 255, (byte) 255, (byte) 255, (byte) 255};
+		byte[] green = new byte[6];
+		Arrays.fill(green, (byte) 1);
+		green[4] = 3; // transparent, shows the red below
+		File gif = tempDir.resolve("disposal.gif").toFile();
+		try (FileChannel channel = FileChannel.open(gif.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			GifWriter writer = new GifWriter(channel);
+			writer.writeHeader(8, 6, global);
+			writeGifBlock(writer, 0, 0, 8, 6, new byte[48], null, GifWriter.DISPOSE_NONE, 5, -1, true);
+			writeGifBlock(writer, 1, 1, 3, 2, green, null, GifWriter.DISPOSE_PREVIOUS, 5, 3, false);
+			// Blue through a local table, then cleared
+			byte[] local = {0, 0, 0, 0, 0, (byte) 255};
+			writeGifBlock(writer, 5, 3, 2, 2, new byte[] {1, 1, 1, 1}, local, GifWriter.DISPOSE_BACKGROUND, 5, -1,
+					false);
+			writeGifBlock(writer, 0, 0, 1, 1, new byte[] {3}, null, GifWriter.DISPOSE_NONE, 20, -1, false);
+			writer.finish();
+		}
+
+		FrameLoader.LoadResult result = FrameLoader.load(List.of(gif));
+		assertEquals(4, result.frames().size());
+		assertEquals(50, result.extractedDelayMs());
+		assertTrue(result.warnings().get(0).contains("inconsistent"));
+		IndexColorModel icm = (IndexColorModel) result.frames().get(0).image().getColorModel();
+		for (FrameLoader.FrameData frame : result.frames())
+		{
+			assertSame(icm, frame.image().getColorModel());
+			assertTrue(frame.transparentIndex() >= 0);
+		}
+
+		int red = 0xFFFF0000;
+		int[][] expected = new int[4][48];
+		Arrays.fill(expected[0], red);
+		Arrays.fill(expected[1], red);
+		for (int i : new int[] {9, 10, 11, 17, 19})
+		{
+			expected[1][i] = 0xFF00FF00;
+		}
+		Arrays.fill(expected[2], red);
+		for (int i : new int[] {29, 30, 37, 38})
+		{
+			expected[2][i] = 0xFF0000FF;
+		}
+		Arrays.fill(expected[3], red);
+		expected[3][0] = 0xFFFFFFFF;
+		for (int i : new int[] {29, 30, 37, 38})
+		{
+			expected[3][i] = 0;
+		}
+		for (int f = 0; f < 4; f++)
+		{
+			BufferedImage image = result.frames().get(f).image();
+			for (int i = 0; i < 48; i++)
+			{
+				int actual = image.getRGB(i % 8, i / 8);
+				assertEquals(expected[f][i], actual >>> 24 == 0 ? 0 : actual, "frame " + f + " pixel " + i);
+			}
+		}
+	}
+
+	@Test
+	void gifLocalTablesBeyond256ColorsGetPalettesPerFrame(@TempDir Path tempDir) throws Exception
+	{
+		// Two full local tables of distinct colors; each frame uses four of its own
+		File gif = tempDir.resolve("locals.gif").toFile();
+		try (FileChannel channel = FileChannel.open(gif.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			GifWriter writer = new GifWriter(channel);
+			writer.writeHeader(4, 4, null);
+			for (int f = 0; f < 2; f++)
+			{
+				byte[] table = new byte[768];
+				for (int i = 0; i < 256; i++)
+				{
+					table[3 * i] = (byte) i;
+					table[3 * i + 1] = (byte) (f * 100);
+					table[3 * i + 2] = (byte) 7;
+				}
+				byte[] pixels = new byte[16];
+				for (int i = 0; i < 16; i++)
+				{
+					pixels[i] = (byte) (i / 4 * 60);
+				}
+				writeGifBlock(writer, 0, 0, 4, 4, pixels, table, GifWriter.DISPOSE_NONE, 10, -1, false);
+			}
+			writer.finish();
+		}
+
+		FrameLoader.LoadResult result = FrameLoader.load(List.of(gif));
+		assertEquals(2, result.frames().size());
+		for (int f = 0; f < 2; f++)
+		{
+			FrameLoader.FrameData frame = result.frames().get(f);
+			assertEquals(-1, frame.transparentIndex());
+			assertEquals(4, ((IndexColorModel) frame.image().getColorModel()).getMapSize());
+			for (int i = 0; i < 16; i++)
+			{
+				assertEquals(0xFF000007 | (i / 4 * 60) << 16 | (f * 100) << 8, frame.image().getRGB(i % 4, i / 4));
+			}
+		}
+	}
+
+	@Test
+	void patchedFramesRebuildEveryFrameExactly(@TempDir Path tempDir) throws Exception
+	{
+		// A 4x4 sprite moving over a 48x32 background, with a full repaint and palette change midway
+		byte[] global = new byte[3 * 4];
+		for (int i = 0; i < global.length; i++)
+		{
+			global[i] = (byte) (i * 20);
+		}
+		byte[] local = {(byte) 255, 0, 0, 0, (byte) 255, 0};
+		File gif = tempDir.resolve("sprite.gif").toFile();
+		try (FileChannel channel = FileChannel.open(gif.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			GifWriter writer = new GifWriter(channel);
+			writer.writeHeader(48, 32, global);
+			writeGifBlock(writer, 0, 0, 48, 32, new byte[48 * 32], null, GifWriter.DISPOSE_NONE, 5, -1, false);
+			byte[] sprite = new byte[16];
+			Arrays.fill(sprite, (byte) 2);
+			for (int f = 1; f < 100; f++)
+			{
+				if (f == 60)
+				{
+					byte[] stripes = new byte[48 * 32];
+					for (int i = 0; i < stripes.length; i++)
+					{
+						stripes[i] = (byte) (i / 48 % 2);
+					}
+					writeGifBlock(writer, 0, 0, 48, 32, stripes, local, GifWriter.DISPOSE_NONE, 5, -1, false);
+					continue;
+				}
+				writeGifBlock(writer, f % 44, f / 4 % 28, 4, 4, sprite, null, GifWriter.DISPOSE_BACKGROUND, 5, -1,
+						false);
+			}
+			writer.finish();
+		}
+
+		List<FrameLoader.FrameData> full = FrameLoader.load(List.of(gif)).frames();
+		FrameLoader.LoadResult result = FrameLoader.load(List.of(gif), Quantization.DEFAULT, false, true, null);
+		PatchedFrames patched = assertInstanceOf(PatchedFrames.class, result.frames());
+		assertEquals(100, patched.size());
+		assertTrue(patched.storedBytes() < 100L * 48 * 32 / 4, "stored " + patched.storedBytes());
+
+		// In order, then jumping around so frames are rebuilt from keyframes
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+		{
+			order.add(i);
+		}
+		List<Integer> shuffled = new ArrayList<>(order);
+		Collections.shuffle(shuffled, new Random(7));
+		order.addAll(shuffled);
+		for (int f : order)
+		{
+			BufferedImage expected = full.get(f).image();
+			BufferedImage actual = patched.get(f).image();
+			assertEquals(full.get(f).transparentIndex(), patched.get(f).transparentIndex());
+			assertEquals(BufferedImage.TYPE_BYTE_INDEXED, actual.getType());
+			assertArrayEquals(((DataBufferByte) expected.getRaster().getDataBuffer()).getData(),
+					((DataBufferByte) actual.getRaster().getDataBuffer()).getData(), "frame " + f);
+			for (int i = 0; i < 48 * 32; i++)
+			{
+				assertEquals(expected.getRGB(i % 48, i / 48), actual.getRGB(i % 48, i / 48), "frame " + f);
+			}
+		}
+	}
+
+	@Test
+	void oversizedGifFrameIsRejected(@TempDir Path tempDir) throws Exception
+	{
+		byte[] global = {0, 0, 0, (byte) 255, (byte) 255, (byte) 255};
+		LzwEncoder lzw = new LzwEncoder();
+		int length = lzw.encode(new byte[1], 0, 1, 1, 1, false);
+		// 65535 x 65535 pixels overflow an int, as the screen or as a frame
+		int[][] sizes = {{65535, 65535, 1, 1}, {1, 1, 65535, 65535}};
+		for (int[] size : sizes)
+		{
+			File gif = tempDir.resolve("huge" + size[0] + ".gif").toFile();
+			try (FileChannel channel = FileChannel.open(gif.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE))
+			{
+				GifWriter writer = new GifWriter(channel);
+				writer.writeHeader(size[0], size[1], global);
+				writer.writeImage(0, 0, size[2], size[3], null, false, lzw.buffer(), length);
+				writer.finish();
+			}
+			IOException ex = assertThrows(IOException.class, () -> FrameLoader.load(List.of(gif)));
+			assertTrue(ex.getMessage().contains("too large"), ex.getMessage());
+		}
+	}
+
+	@Test
+	void patchedFramesJoinFilesAndStillImages(@TempDir Path tempDir) throws Exception
+	{
+		File gif = tempDir.resolve("1.gif").toFile();
+		writeTestGif(gif, 8, 8, new Color[] {Color.RED, Color.RED, Color.GREEN}, 10);
+		File png = tempDir.resolve("2.png").toFile();
+		writeSolidColorPng(png, 8, 8, Color.BLUE);
+
+		FrameLoader.LoadResult result = FrameLoader.load(List.of(png, gif), Quantization.DEFAULT, false, true, null);
+		assertInstanceOf(PatchedFrames.class, result.frames());
+		assertEquals(4, result.frames().size());
+		assertFrameColor(result.frames().get(0), Color.RED, "gif 1");
+		assertFrameColor(result.frames().get(1), Color.RED, "gif 2");
+		assertFrameColor(result.frames().get(2), Color.GREEN, "gif 3");
+		assertFrameColor(result.frames().get(3), Color.BLUE, "png");
+		assertEquals(100, result.extractedDelayMs());
+
+		File small = tempDir.resolve("3.png").toFile();
+		writeSolidColorPng(small, 4, 4, Color.BLUE);
+		File alsoSmall = tempDir.resolve("4.png").toFile();
+		writeSolidColorPng(alsoSmall, 4, 4, Color.BLUE);
+		List<File> mismatched = List.of(gif, png, small, alsoSmall);
+		IOException ex = assertThrows(IOException.class,
+				() -> FrameLoader.load(mismatched, Quantization.DEFAULT, false, true, null));
+		assertTrue(ex.getMessage().contains("Inconsistent frame dimensions"));
+		// Frames past the first mismatch are numbered as in a load without patches
+		IOException plain = assertThrows(IOException.class,
+				() -> FrameLoader.load(mismatched, Quantization.DEFAULT, false, false, null));
+		assertEquals(plain.getMessage(), ex.getMessage());
+		assertTrue(ex.getMessage().contains("Frame 6 (4.png)"), ex.getMessage());
+	}
+
+	private static void writeGifBlock(GifWriter writer, int x, int y, int w, int h, byte[] pixels, byte[] localTable,
+									  int disposal, int delayCenti, int transparentIndex, boolean interlace)
+			throws IOException
+	{
+		LzwEncoder lzw = new LzwEncoder();
+		int length = lzw.encode(pixels, 0, w, h, w, interlace);
+		writer.writeGraphicControl(disposal, delayCenti, transparentIndex);
+		writer.writeImage(x, y, w, h, localTable, interlace, lzw.buffer(), length);
+	}
+
+	// --- Palette PNG decoding ---
+
+	@Test
+	void palettePngsDecodeLikeImageIO(@TempDir Path tempDir) throws Exception
+	{
+		Random random = new Random(21);
+		for (int bits : new int[] {1, 2, 4, 8})
+		{
+			for (boolean alpha : new boolean[] {false, true})
+			{
+				// One entry short of the bit depth, so the palette gets padded
+				int entries = Math.max(2, (1 << bits) - 1);
+				byte[] r = new byte[entries];
+				byte[] g = new byte[entries];
+				byte[] b = new byte[entries];
+				byte[] a = new byte[entries];
+				random.nextBytes(r);
+				random.nextBytes(g);
+				random.nextBytes(b);
+				Arrays.fill(a, (byte) 0xFF);
+				a[entries - 1] = 0;
+				IndexColorModel icm = alpha
+					? new IndexColorModel(bits, entries, r, g, b, a)
+					: new IndexColorModel(bits, entries, r, g, b);
+				// An odd width leaves a partial byte and a partial long at the end of each row
+				BufferedImage img = bits == 8
+					? new BufferedImage(37, 13, BufferedImage.TYPE_BYTE_INDEXED, icm)
+					: new BufferedImage(37, 13, BufferedImage.TYPE_BYTE_BINARY, icm);
+				for (int y = 0; y < 13; y++)
+				{
+					for (int x = 0; x < 37; x++)
+					{
+						// Smooth runs and noise, so the writer picks every filter type
+						int index = y < 6 ? (x / 5 + y) % entries : random.nextInt(entries);
+						img.getRaster().setSample(x, y, 0, index);
+					}
+				}
+				File file = tempDir.resolve(bits + "-" + alpha + ".png").toFile();
+				ImageIO.write(img, "png", file);
+
+				String label = bits + " bits, alpha " + alpha;
+				BufferedImage direct = PngDecoder.readIndexed(file);
+				assertNotNull(direct, label);
+				assertEquals(BufferedImage.TYPE_BYTE_INDEXED, direct.getType(), label);
+				BufferedImage viaImageIO = ImageIO.read(file);
+				IndexColorModel expectedIcm = (IndexColorModel) viaImageIO.getColorModel();
+				BufferedImage expected = FrameLoader.ensureByteIndexed(viaImageIO, expectedIcm);
+				IndexColorModel actualIcm = (IndexColorModel) direct.getColorModel();
+				assertEquals(expectedIcm.getMapSize(), actualIcm.getMapSize(), label);
+				assertEquals(expectedIcm.getTransparentPixel(), actualIcm.getTransparentPixel(), label);
+				for (int i = 0; i < expectedIcm.getMapSize(); i++)
+				{
+					assertEquals(expectedIcm.getRGB(i), actualIcm.getRGB(i), label + " entry " + i);
+				}
+				for (int y = 0; y < 13; y++)
+				{
+					for (int x = 0; x < 37; x++)
+					{
+						assertEquals(expected.getRaster().getSample(x, y, 0), direct.getRaster().getSample(x, y, 0),
+							label + " at " + x + "," + y);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void truecolorAndInterlacedPngsAreLeftToImageIO(@TempDir Path tempDir) throws Exception
+	{
+		File truecolor = tempDir.resolve("rgb.png").toFile();
+		ImageIO.write(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB), "png", truecolor);
+		assertNull(PngDecoder.readIndexed(truecolor));
+
+		IndexColorModel icm = new IndexColorModel(1, 2, new byte[] {0, -1}, new byte[2], new byte[2]);
+		BufferedImage img = new BufferedImage(9, 9, BufferedImage.TYPE_BYTE_BINARY, icm);
+		File interlaced = tempDir.resolve("interlaced.png").toFile();
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(interlaced))
+		{
+			writer.setOutput(out);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+			writer.write(null, new IIOImage(img, null, null), param);
+		}
+		finally
+		{
+			writer.dispose();
+		}
+		assertNull(PngDecoder.readIndexed(interlaced));
+		// Still loads through ImageIO
+		assertEquals(1, FrameLoader.load(List.of(interlaced)).frames().size());
+	}
+
+	@Test
+	void packedSubimagesCopyToByteIndexed()
+	{
+		IndexColorModel icm = new IndexColorModel(4, 16, new byte[16], new byte[16], new byte[16]);
+		BufferedImage img = new BufferedImage(50, 20, BufferedImage.TYPE_BYTE_BINARY, icm);
+		Random random = new Random(4);
+		for (int y = 0; y < 20; y++)
+		{
+			for (int x = 0; x < 50; x++)
+			{
+				img.getRaster().setSample(x, y, 0, random.nextInt(16));
+			}
+		}
+		// Even and odd x offsets, the odd one starting mid-byte
+		for (int x0 : new int[] {0, 2, 3})
+		{
+			BufferedImage sub = img.getSubimage(x0, 5, 41, 11);
+			BufferedImage copy = FrameLoader.ensureByteIndexed(sub, icm);
+			assertEquals(BufferedImage.TYPE_BYTE_INDEXED, copy.getType());
+			for (int y = 0; y < 11; y++)
+			{
+				for (int x = 0; x < 41; x++)
+				{
+					assertEquals(sub.getRaster().getSample(x, y, 0), copy.getRaster().getSample(x, y, 0));
+				}
+			}
+		}
+	}
+
 	// --- BMP/JPEG loading ---
 
 	@Test
@@ -384,6 +1041,66 @@ class FrameLoaderTest
 		assertTrue(result.warnings().get(0).contains("truecolor"));
 	}
 
+	@Test
+	void sharedPaletteGivesEveryFrameOneColorModel(@TempDir Path tempDir) throws Exception
+	{
+		// Three frames of 200 colors each, 600 in all, the last with a transparent pixel
+		List<File> files = new ArrayList<>();
+		for (int f = 0; f < 3; f++)
+		{
+			BufferedImage img = new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB);
+			for (int i = 0; i < 200; i++)
+			{
+				img.setRGB(i % 20, i / 20, 0xFF000000 | (f * 80) << 16 | i);
+			}
+			if (f == 2) img.setRGB(0, 0, 0);
+			File file = tempDir.resolve((f + 1) + ".png").toFile();
+			ImageIO.write(img, "png", file);
+			files.add(file);
+		}
+
+		FrameLoader.LoadResult result = FrameLoader.load(files,
+				Quantization.DEFAULT.withMethod(Quantization.Method.WU), true, null);
+		assertEquals(3, result.frames().size());
+		IndexColorModel shared = (IndexColorModel) result.frames().get(0).image().getColorModel();
+		assertTrue(shared.getMapSize() <= 256);
+		for (FrameLoader.FrameData frame : result.frames())
+		{
+			assertSame(shared, frame.image().getColorModel());
+			assertEquals(shared.getMapSize() - 1, frame.transparentIndex());
+		}
+		assertSame(shared, GifEncoder.findSharedPalette(result.frames()));
+		assertEquals(0, result.frames().get(2).image().getRGB(0, 0) >>> 24);
+		assertEquals(0xFF, result.frames().get(0).image().getRGB(0, 0) >>> 24);
+	}
+
+	@Test
+	void sharedPaletteKeepsExactColorsWhenTheyFit() throws IOException
+	{
+		List<BufferedImage> images = new ArrayList<>();
+		for (int f = 0; f < 4; f++)
+		{
+			BufferedImage img = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+			for (int i = 0; i < 64; i++)
+			{
+				img.setRGB(i % 8, i / 8, (f * 64 + i) * 0x010203);
+			}
+			images.add(img);
+		}
+
+		List<FrameLoader.QuantizeResult> results = FrameLoader.quantizeShared(images,
+				new Quantization(Quantization.Method.OCTREE, Quantization.Dither.ORDERED));
+		for (int f = 0; f < 4; f++)
+		{
+			assertEquals(-1, results.get(f).transparentIndex());
+			assertEquals(256, ((IndexColorModel) results.get(f).image().getColorModel()).getMapSize());
+			for (int i = 0; i < 64; i++)
+			{
+				assertEquals(images.get(f).getRGB(i % 8, i / 8), results.get(f).image().getRGB(i % 8, i / 8));
+			}
+		}
+	}
+
 	@Test
 	void loadJpegWithQuantization(@TempDir Path tempDir) throws Exception
 	{
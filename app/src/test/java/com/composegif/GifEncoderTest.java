@@ -3,18 +3,31 @@ package com.composegif;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -203,6 +216,28 @@ class GifEncoderTest
 		}
 	}
 
+	@Test
+	void nearestScalingReplicatesEachPixel()
+	{
+		// 4x of 300x260 is large enough to be filled row-parallel
+		for (int[] size : new int[][]{{7, 5}, {300, 260}})
+		{
+			BufferedImage src = createNoiseFrame(size[0], size[1], 64, 3).image();
+			BufferedImage scaled = GifEncoder.scaleIndexedNearest(src, 4);
+			assertEquals(size[0] * 4, scaled.getWidth());
+			assertEquals(size[1] * 4, scaled.getHeight());
+			assertSame(src.getColorModel(), scaled.getColorModel());
+			for (int y = 0; y < scaled.getHeight(); y++)
+			{
+				for (int x = 0; x < scaled.getWidth(); x++)
+				{
+					assertEquals(src.getRaster().getSample(x / 4, y / 4, 0), scaled.getRaster().getSample(x, y, 0),
+							"pixel " + x + "," + y);
+				}
+			}
+		}
+	}
+
 	@Test
 	void bilinearScalingProducesValidGif(@TempDir Path tempDir) throws Exception
 	{
@@ -232,6 +267,956 @@ class GifEncoderTest
 		}
 	}
 
+	@Test
+	void outputMatchesImageIoWriterByteForByte(@TempDir Path tempDir) throws Exception
+	{
+		// Distinct palettes (first frame's table becomes global), transparency, and
+		// a noisy 256-color frame large enough to force LZW table resets
+		IndexColorModel transparentIcm = new IndexColorModel(8, 3,
+				new byte[]{(byte) 200, 10, 0}, new byte[]{40, (byte) 220, 0}, new byte[]{90, 30, 0}, 2);
+		BufferedImage withTransparency = new BufferedImage(7, 5, BufferedImage.TYPE_BYTE_INDEXED, transparentIcm);
+		for (int i = 0; i < 35; i++)
+		{
+			withTransparency.getRaster().setSample(i % 7, i / 7, 0, i % 3);
+		}
+
+		List<FrameLoader.FrameData> frames = List.of(
+				new FrameLoader.FrameData(withTransparency, 2),
+				createNoiseFrame(7, 5, 256, 1),
+				createSolidFrame(7, 5, 0, 0, 255)
+		);
+		assertMatchesImageIo(frames, 70, tempDir);
+		assertMatchesImageIo(List.of(createNoiseFrame(300, 200, 256, 7), createNoiseFrame(300, 200, 5, 3)),
+				100, tempDir);
+	}
+
+	@Test
+	void sharedPaletteOutputMatchesImageIoWriterByteForByte(@TempDir Path tempDir) throws Exception
+	{
+		byte[] r = {(byte) 255, 0, 0};
+		byte[] g = {0, (byte) 255, 0};
+		byte[] b = {0, 0, (byte) 255};
+		IndexColorModel sharedIcm = new IndexColorModel(8, 3, r, g, b);
+
+		List<FrameLoader.FrameData> frames = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+		{
+			BufferedImage img = new BufferedImage(9, 9, BufferedImage.TYPE_BYTE_INDEXED, sharedIcm);
+			img.getRaster().setSample(i, i, 0, 1 + i % 2);
+			frames.add(new FrameLoader.FrameData(img, -1));
+		}
+		assertMatchesImageIo(frames, 30, tempDir);
+	}
+
+	@Test
+	void noisyFramesDecodeToSourcePixels(@TempDir Path tempDir) throws Exception
+	{
+		FrameLoader.FrameData noise = createNoiseFrame(257, 131, 256, 42);
+		File output = tempDir.resolve("noise.gif").toFile();
+		GifEncoder.encode(List.of(noise), output, 1,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, null);
+
+		BufferedImage readBack = ImageIO.read(output);
+		for (int y = 0; y < 131; y++)
+		{
+			for (int x = 0; x < 257; x++)
+			{
+				assertEquals(noise.image().getRGB(x, y), readBack.getRGB(x, y), "pixel " + x + "," + y);
+			}
+		}
+	}
+
+	@Test
+	void parallelModeWritesSameBytesAsSequential(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = new ArrayList<>();
+		for (int i = 0; i < 40; i++)
+		{
+			frames.add(createNoiseFrame(48, 32, 2 + i * 6, i));
+		}
+
+		File sequential = tempDir.resolve("sequential.gif").toFile();
+		File parallel = tempDir.resolve("parallel.gif").toFile();
+		List<Integer> progress = new ArrayList<>();
+		GifEncoder.encode(frames, sequential, 2,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 50, null);
+		GifEncoder.encode(frames, parallel, 2,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 50,
+				GifEncoder.Options.DEFAULT.withParallel(true),
+				(current, total) -> progress.add(current));
+
+		assertArrayEquals(Files.readAllBytes(sequential.toPath()), Files.readAllBytes(parallel.toPath()));
+		assertEquals(40, progress.size());
+		for (int i = 0; i < progress.size(); i++)
+		{
+			assertEquals(i + 1, (int) progress.get(i), "progress must be reported in frame order");
+		}
+	}
+
+	@Test
+	void deltaFramesRenderSameAsFullFrames(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = createSpriteFrames(40, 30, 12);
+		for (GifEncoder.Options options : List.of(
+				GifEncoder.Options.DEFAULT.withDeltaFrames(true),
+				GifEncoder.Options.DEFAULT.withDeltaFrames(true).withParallel(true)))
+		{
+			assertRendersSource(frames, 2, options, tempDir);
+		}
+	}
+
+	@Test
+	void deltaFramesCropToChangedRegion(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = createSpriteFrames(64, 64, 8);
+		File full = tempDir.resolve("full.gif").toFile();
+		File delta = tempDir.resolve("delta.gif").toFile();
+		GifEncoder.encode(frames, full, 1,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, null);
+		GifEncoder.encode(frames, delta, 1,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100,
+				GifEncoder.Options.DEFAULT.withDeltaFrames(true), null);
+
+		assertTrue(delta.length() < full.length() / 2,
+				"delta " + delta.length() + " bytes vs full " + full.length());
+
+		ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+		try (ImageInputStream iis = ImageIO.createImageInputStream(delta))
+		{
+			reader.setInput(iis);
+			assertEquals(64, reader.getWidth(0));
+			for (int i = 1; i < frames.size(); i++)
+			{
+				assertTrue(reader.getWidth(i) * reader.getHeight(i) < 64 * 64 / 4, "frame " + i + " not cropped");
+			}
+		}
+		finally
+		{
+			reader.dispose();
+		}
+	}
+
+	@Test
+	void maskedFramesRenderSameAsFullFrames(@TempDir Path tempDir) throws Exception
+	{
+		GifEncoder.Options masked = GifEncoder.Options.DEFAULT.withMaskUnchanged(true);
+		// Frames with their own transparent index, and opaque frames needing a free slot
+		assertRendersSource(createSpriteFrames(40, 30, 12), 1, masked, tempDir);
+		assertRendersSource(createScatterFrames(32, 24, 10, 40), 2, masked, tempDir);
+		assertRendersSource(createScatterFrames(32, 24, 6, 256), 1, masked.withParallel(true), tempDir);
+
+		// Every pixel changes and all 256 indices are repainted, so there is no free slot
+		// and frames must fall back to unmasked rectangles
+		List<FrameLoader.FrameData> saturated = new ArrayList<>();
+		byte[] gray = new byte[256];
+		for (int i = 0; i < 256; i++) gray[i] = (byte) i;
+		IndexColorModel icm = new IndexColorModel(8, 256, gray, gray, gray);
+		for (int f = 0; f < 3; f++)
+		{
+			BufferedImage img = new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_INDEXED, icm);
+			for (int i = 0; i < 256; i++)
+			{
+				img.getRaster().setSample(i % 16, i / 16, 0, (i + f) % 256);
+			}
+			saturated.add(new FrameLoader.FrameData(img, -1));
+		}
+		assertRendersSource(saturated, 1, masked, tempDir);
+	}
+
+	@Test
+	void maskingShrinksScatteredChanges(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = createScatterFrames(96, 96, 10, 32);
+		File delta = tempDir.resolve("delta.gif").toFile();
+		File masked = tempDir.resolve("masked.gif").toFile();
+		GifEncoder.encode(frames, delta, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100,
+				GifEncoder.Options.DEFAULT.withDeltaFrames(true), null);
+		GifEncoder.encode(frames, masked, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100,
+				GifEncoder.Options.DEFAULT.withMaskUnchanged(true), null);
+
+		assertTrue(masked.length() < delta.length() * 2 / 3,
+				"masked " + masked.length() + " bytes vs delta " + delta.length());
+	}
+
+	@Test
+	void identicalConsecutiveFramesMergeIntoLongerDelays(@TempDir Path tempDir) throws Exception
+	{
+		FrameLoader.FrameData red = createSolidFrame(4, 4, 255, 0, 0);
+		FrameLoader.FrameData green = createSolidFrame(4, 4, 0, 255, 0);
+		// Same picture as red through a different palette layout
+		IndexColorModel swapped = new IndexColorModel(8, 2,
+				new byte[]{0, (byte) 255}, new byte[]{0, 0}, new byte[]{0, 0});
+		BufferedImage redAgain = new BufferedImage(4, 4, BufferedImage.TYPE_BYTE_INDEXED, swapped);
+		redAgain.getRaster().setDataElements(0, 0, 4, 4, new byte[]{1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1});
+
+		List<FrameLoader.FrameData> frames = List.of(red, red, new FrameLoader.FrameData(redAgain, -1),
+				green, green, red);
+		for (GifEncoder.Options options : List.of(
+				GifEncoder.Options.DEFAULT.withMergeDuplicates(true),
+				GifEncoder.Options.DEFAULT.withMergeDuplicates(true).withMaskUnchanged(true).withParallel(true)))
+		{
+			File output = tempDir.resolve("merged.gif").toFile();
+			List<Integer> progress = new ArrayList<>();
+			GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 50,
+					options, (current, total) -> progress.add(current));
+
+			assertEquals(List.of(3, 5, 6), progress);
+			ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+			try (ImageInputStream iis = ImageIO.createImageInputStream(output))
+			{
+				reader.setInput(iis);
+				assertEquals(3, reader.getNumImages(true));
+				int[] expectedDelays = {15, 10, 5};
+				for (int i = 0; i < 3; i++)
+				{
+					IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i)
+							.getAsTree("javax_imageio_gif_image_1.0");
+					assertEquals(String.valueOf(expectedDelays[i]),
+							getOrCreateChild(root, "GraphicControlExtension").getAttribute("delayTime"));
+				}
+			}
+			finally
+			{
+				reader.dispose();
+			}
+
+			List<int[]> rendered = renderComposited(output);
+			assertEquals(0xFFFF0000, rendered.get(0)[0]);
+			assertEquals(0xFF00FF00, rendered.get(1)[15]);
+			assertEquals(0xFFFF0000, rendered.get(2)[5]);
+		}
+	}
+
+	@Test
+	void perFrameDelaysWritten(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = List.of(
+				createSolidFrame(2, 2, 255, 0, 0),
+				createSolidFrame(2, 2, 0, 255, 0),
+				createSolidFrame(2, 2, 0, 0, 255)
+		);
+
+		File output = tempDir.resolve("delays.gif").toFile();
+		GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR,
+				List.of(30, 70, 1200), GifEncoder.Options.DEFAULT, null);
+
+		ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+		try (ImageInputStream iis = ImageIO.createImageInputStream(output))
+		{
+			reader.setInput(iis);
+			String[] expected = {"3", "7", "120"};
+			for (int i = 0; i < 3; i++)
+			{
+				IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i)
+						.getAsTree("javax_imageio_gif_image_1.0");
+				assertEquals(expected[i], getOrCreateChild(root, "GraphicControlExtension").getAttribute("delayTime"));
+			}
+		}
+		finally
+		{
+			reader.dispose();
+		}
+		assertThrows(IllegalArgumentException.class, () -> GifEncoder.encode(frames, output, 1,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, List.of(30), GifEncoder.Options.DEFAULT, null));
+	}
+
+	@Test
+	void mergedDelaySplitsAtGifMaximum(@TempDir Path tempDir) throws Exception
+	{
+		FrameLoader.FrameData still = createSolidFrame(2, 2, 0, 0, 255);
+		List<FrameLoader.FrameData> frames = List.of(still, still, still);
+
+		File output = tempDir.resolve("long.gif").toFile();
+		GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 300_000,
+				GifEncoder.Options.DEFAULT.withMergeDuplicates(true), null);
+
+		ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+		try (ImageInputStream iis = ImageIO.createImageInputStream(output))
+		{
+			reader.setInput(iis);
+			// 600s fits in 65535cs, 900s does not
+			assertEquals(2, reader.getNumImages(true));
+		}
+		finally
+		{
+			reader.dispose();
+		}
+	}
+
+	@Test
+	void differingPalettesShareSynthesizedGlobalTable(@TempDir Path tempDir) throws Exception
+	{
+		// Odd frames reorder the palette, so no frame's table can serve the others as is
+		List<FrameLoader.FrameData> frames = createSpriteFrames(40, 30, 6);
+		GifEncoder.Options global = GifEncoder.Options.DEFAULT.withGlobalPalette(true);
+		assertRendersSource(frames, 1, global, tempDir);
+		assertRendersSource(frames, 2, global.withMaskUnchanged(true).withParallel(true), tempDir);
+
+		File plain = tempDir.resolve("plain.gif").toFile();
+		File merged = tempDir.resolve("merged.gif").toFile();
+		GifEncoder.encode(frames, plain, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, null);
+		GifEncoder.encode(frames, merged, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, global,
+				null);
+		assertEquals(3, countLocalColorTables(plain));
+		assertEquals(0, countLocalColorTables(merged));
+		assertTrue(merged.length() < plain.length());
+	}
+
+	@Test
+	void globalPaletteKeepsInterpolatedColors(@TempDir Path tempDir) throws Exception
+	{
+		// Smooth scaling may pick any palette entry, so the union covers whole palettes
+		List<FrameLoader.FrameData> frames = List.of(
+				createNoiseFrame(12, 10, 20, 1), createNoiseFrame(12, 10, 20, 2), createNoiseFrame(12, 10, 20, 3));
+		File plain = tempDir.resolve("plain.gif").toFile();
+		File global = tempDir.resolve("global.gif").toFile();
+		GifEncoder.encode(frames, plain, 3, RenderingHints.VALUE_INTERPOLATION_BILINEAR, 100, null);
+		GifEncoder.encode(frames, global, 3, RenderingHints.VALUE_INTERPOLATION_BILINEAR, 100,
+				GifEncoder.Options.DEFAULT.withGlobalPalette(true), null);
+
+		assertEquals(0, countLocalColorTables(global));
+		List<int[]> expected = renderComposited(plain);
+		List<int[]> actual = renderComposited(global);
+		for (int i = 0; i < expected.size(); i++)
+		{
+			assertArrayEquals(expected.get(i), actual.get(i), "frame " + i);
+		}
+	}
+
+	@Test
+	void tooManyColorsKeepLocalTables(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = List.of(
+				createNoiseFrame(20, 20, 200, 1), createNoiseFrame(20, 20, 200, 2));
+		GifEncoder.Options global = GifEncoder.Options.DEFAULT.withGlobalPalette(true);
+		assertRendersSource(frames, 1, global, tempDir);
+
+		File output = tempDir.resolve("local.gif").toFile();
+		GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, global,
+				null);
+		assertEquals(1, countLocalColorTables(output));
+	}
+
+	@Test
+	void streamedFramesMatchListEncoding(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = createSpriteFrames(40, 30, 60);
+		GifEncoder.Options options = GifEncoder.Options.DEFAULT.withDeltaFrames(true);
+		File listed = tempDir.resolve("listed.gif").toFile();
+		File streamed = tempDir.resolve("streamed.gif").toFile();
+		GifEncoder.encode(frames, listed, 2, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, options,
+				null);
+
+		int[] pulled = {0};
+		int[] progress = {0};
+		int[] maxAhead = {0};
+		List<Integer> totals = new ArrayList<>();
+		GifEncoder.FrameSource source = new GifEncoder.FrameSource()
+		{
+			@Override
+			public int size()
+			{
+				return UNKNOWN_SIZE;
+			}
+
+			@Override
+			public Entry next()
+			{
+				if (pulled[0] == frames.size()) return null;
+				maxAhead[0] = Math.max(maxAhead[0], ++pulled[0] - progress[0]);
+				return new Entry(frames.get(pulled[0] - 1), 100);
+			}
+		};
+		GifEncoder.encode(source, streamed, 2, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, options,
+				(current, total) ->
+				{
+					progress[0] = current;
+					totals.add(total);
+				});
+
+		assertArrayEquals(Files.readAllBytes(listed.toPath()), Files.readAllBytes(streamed.toPath()));
+		assertEquals(frames.size(), progress[0]);
+		assertTrue(totals.stream().allMatch(t -> t == GifEncoder.FrameSource.UNKNOWN_SIZE));
+		// Only the frames being prepared, planned and compressed are held at once
+		assertTrue(maxAhead[0] <= 4, "read " + maxAhead[0] + " frames ahead of the writer");
+	}
+
+	@Test
+	void emptyStreamRejected(@TempDir Path tempDir)
+	{
+		File output = tempDir.resolve("empty.gif").toFile();
+		GifEncoder.FrameSource empty = GifEncoder.FrameSource.of(List.of(), List.of());
+		assertThrows(IOException.class, () -> GifEncoder.encode(empty, output, 1,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, GifEncoder.Options.DEFAULT, null));
+		assertFalse(output.exists());
+	}
+
+	@Test
+	void interruptStopsEncodeWithinAFrame()
+	{
+		List<FrameLoader.FrameData> frames = createSpriteFrames(40, 30, 60);
+		int[] pulled = {0};
+		GifEncoder.FrameSource source = new GifEncoder.FrameSource()
+		{
+			@Override
+			public int size()
+			{
+				return frames.size();
+			}
+
+			@Override
+			public Entry next()
+			{
+				if (++pulled[0] == 3) Thread.currentThread().interrupt();
+				return pulled[0] > frames.size() ? null : new Entry(frames.get(pulled[0] - 1), 100);
+			}
+		};
+		try
+		{
+			// Nothing reaches the stream before the writer's final flush, so only the frame check can stop it
+			assertThrows(InterruptedIOException.class, () -> GifEncoder.encode(source, new ByteArrayOutputStream(),
+					2, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, GifEncoder.Options.DEFAULT, null));
+		}
+		finally
+		{
+			Thread.interrupted();
+		}
+		assertTrue(pulled[0] <= 4, "pulled " + pulled[0] + " frames after the interrupt");
+	}
+
+	@Test
+	void memoryTargetsMatchFileOutput(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = createSpriteFrames(40, 30, 8);
+		List<Integer> delays = Collections.nCopies(frames.size(), 100);
+		GifEncoder.Options options = GifEncoder.Options.DEFAULT.withGlobalPalette(true).withParallel(true);
+		File file = tempDir.resolve("file.gif").toFile();
+		GifEncoder.encode(frames, file, 2, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, delays, options,
+				null);
+		byte[] expected = Files.readAllBytes(file.toPath());
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		GifEncoder.encode(GifEncoder.FrameSource.of(frames, delays), stream, 2,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, options, null);
+		assertArrayEquals(expected, stream.toByteArray());
+
+		ByteArrayOutputStream channelTarget = new ByteArrayOutputStream();
+		GifEncoder.encode(GifEncoder.FrameSource.of(frames, delays), Channels.newChannel(channelTarget), 2,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, options, null);
+		assertArrayEquals(expected, channelTarget.toByteArray());
+
+		// A hint far below the output size makes the buffer grow several times
+		ByteBuffer buffer = GifEncoder.encodeToBuffer(GifEncoder.FrameSource.of(frames, delays), 16, 2,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, options, null);
+		assertEquals(0, buffer.position());
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		assertArrayEquals(expected, bytes);
+	}
+
+	@Test
+	void lossyFramesStayWithinDistance(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = createGrainFrames(64, 48, 4);
+		File exact = tempDir.resolve("exact.gif").toFile();
+		GifEncoder.encode(frames, exact, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, null);
+
+		int maxDistance = 24;
+		GifEncoder.Options lossy = GifEncoder.Options.DEFAULT.withLossy(maxDistance);
+		for (GifEncoder.Options options : List.of(lossy, lossy.withMaskUnchanged(true).withParallel(true)))
+		{
+			File output = tempDir.resolve("lossy.gif").toFile();
+			GifEncoder.encode(frames, output, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, options,
+					null);
+			assertTrue(output.length() < exact.length() * 3 / 4,
+					"lossy " + output.length() + " bytes vs exact " + exact.length());
+
+			List<int[]> rendered = renderComposited(output);
+			for (int i = 0; i < frames.size(); i++)
+			{
+				BufferedImage source = frames.get(i).image();
+				for (int y = 0; y < 48; y++)
+				{
+					for (int x = 0; x < 64; x++)
+					{
+						int expected = normalize(source.getRGB(x, y));
+						int actual = rendered.get(i)[y * 64 + x];
+						String where = "frame " + i + " pixel " + x + "," + y;
+						if (expected == 0)
+						{
+							assertEquals(0, actual, where);
+							continue;
+						}
+						assertNotEquals(0, actual, where);
+						int dr = ((expected >> 16) & 0xFF) - ((actual >> 16) & 0xFF);
+						int dg = ((expected >> 8) & 0xFF) - ((actual >> 8) & 0xFF);
+						int db = (expected & 0xFF) - (actual & 0xFF);
+						assertTrue(dr * dr + dg * dg + db * db <= maxDistance * maxDistance, where);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void colorReductionKeepsMostUsedColors()
+	{
+		// Index 0 is transparent; 1..3 are used most, 4..9 once each
+		byte[] ramp = new byte[10];
+		for (int i = 0; i < 10; i++) ramp[i] = (byte) (i * 20);
+		IndexColorModel icm = new IndexColorModel(8, 10, ramp, ramp, ramp, 0);
+		byte[] pixels = {0, 1, 1, 1, 2, 2, 2, 3, 3, 3, 4, 5, 6, 7, 8, 9};
+
+		IndexColorModel reduced = GifEncoder.reduceColors(pixels, icm, 3);
+		assertEquals(4, reduced.getMapSize());
+		assertEquals(3, reduced.getTransparentPixel());
+		byte[] expected = {3, 0, 0, 0, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 2};
+		assertArrayEquals(expected, pixels);
+		assertEquals(60, reduced.getRed(2));
+
+		byte[] few = {1, 2, 3};
+		assertSame(icm, GifEncoder.reduceColors(few, icm, 3));
+	}
+
+	@Test
+	void scaledOutputsMatchSeparateExports(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = new ArrayList<>(createSpriteFrames(40, 30, 8));
+		frames.add(4, frames.get(3));
+		frames.add(4, frames.get(3));
+		List<Integer> delays = Collections.nCopies(frames.size(), 100);
+		GifEncoder.Options options = GifEncoder.Options.DEFAULT.withMaskUnchanged(true).withMergeDuplicates(true)
+				.withGlobalPalette(true).withParallel(true);
+		Object nearest = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+
+		List<GifEncoder.ScaledOutput> outputs = new ArrayList<>();
+		for (int scale : new int[]{4, 1, 2, 3})
+		{
+			outputs.add(new GifEncoder.ScaledOutput(scale, tempDir.resolve("multi" + scale + ".gif").toFile()));
+		}
+		List<Integer> progress = new ArrayList<>();
+		GifEncoder.encodeScales(GifEncoder.FrameSource.of(frames, delays), outputs, nearest, options,
+				(current, total) -> progress.add(current));
+		assertEquals(frames.size(), (int) progress.get(progress.size() - 1));
+
+		for (GifEncoder.ScaledOutput output : outputs)
+		{
+			File single = tempDir.resolve("single" + output.scale() + ".gif").toFile();
+			GifEncoder.encode(frames, single, output.scale(), nearest, delays, options, null);
+			List<int[]> expected = renderComposited(single);
+			List<int[]> actual = renderComposited(output.file());
+			assertEquals(expected.size(), actual.size(), "frames at " + output.scale() + "x");
+			for (int i = 0; i < expected.size(); i++)
+			{
+				assertArrayEquals(expected.get(i), actual.get(i), "frame " + i + " at " + output.scale() + "x");
+			}
+		}
+
+		// Interpolated scales are prepared independently and match byte for byte
+		Object bilinear = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+		File one = tempDir.resolve("bilinear1.gif").toFile();
+		File two = tempDir.resolve("bilinear2.gif").toFile();
+		GifEncoder.encodeScales(GifEncoder.FrameSource.of(frames, delays),
+				List.of(new GifEncoder.ScaledOutput(2, two), new GifEncoder.ScaledOutput(1, one)), bilinear,
+				options, null);
+		File separate = tempDir.resolve("bilinear-single.gif").toFile();
+		GifEncoder.encode(frames, separate, 2, bilinear, delays, options, null);
+		assertArrayEquals(Files.readAllBytes(separate.toPath()), Files.readAllBytes(two.toPath()));
+	}
+
+	@Test
+	void reorderedPalettesRenderSourceWithSmallerOutput(@TempDir Path tempDir) throws Exception
+	{
+		// One 256-entry palette of which each frame uses eight scattered entries
+		byte[] r = new byte[256];
+		byte[] g = new byte[256];
+		byte[] b = new byte[256];
+		for (int i = 0; i < 256; i++)
+		{
+			r[i] = (byte) i;
+			g[i] = (byte) (i * 7);
+			b[i] = (byte) (255 - i);
+		}
+		IndexColorModel icm = new IndexColorModel(8, 256, r, g, b);
+		Random random = new Random(11);
+		List<FrameLoader.FrameData> frames = new ArrayList<>();
+		for (int f = 0; f < 4; f++)
+		{
+			BufferedImage img = new BufferedImage(48, 32, BufferedImage.TYPE_BYTE_INDEXED, icm);
+			for (int y = 0; y < 32; y++)
+			{
+				for (int x = 0; x < 48; x++)
+				{
+					img.getRaster().setSample(x, y, 0, random.nextInt(8) * 32 + f);
+				}
+			}
+			frames.add(new FrameLoader.FrameData(img, -1));
+		}
+
+		GifEncoder.Options global = GifEncoder.Options.DEFAULT.withGlobalPalette(true);
+		File plain = tempDir.resolve("plain.gif").toFile();
+		File reordered = tempDir.resolve("reordered.gif").toFile();
+		GifEncoder.encode(frames, plain, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, global, null);
+		GifEncoder.encode(frames, reordered, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100,
+				global.withReorderPalette(true), null);
+		assertTrue(reordered.length() < plain.length(), reordered.length() + " vs " + plain.length());
+		assertEquals(0, countLocalColorTables(reordered));
+
+		// Shared, synthesized and per-frame palettes, with and without masking
+		assertRendersSource(frames, 2, global.withReorderPalette(true).withMaskUnchanged(true), tempDir);
+		List<FrameLoader.FrameData> sprites = createSpriteFrames(40, 30, 6);
+		assertRendersSource(sprites, 2, global.withReorderPalette(true).withMaskUnchanged(true), tempDir);
+		assertRendersSource(sprites, 1, GifEncoder.Options.DEFAULT.withReorderPalette(true).withDeltaFrames(true),
+				tempDir);
+	}
+
+	private static void assertMatchesImageIo(List<FrameLoader.FrameData> frames, int delayMs, Path tempDir)
+			throws Exception
+	{
+		File actual = tempDir.resolve("native.gif").toFile();
+		File expected = tempDir.resolve("imageio.gif").toFile();
+		GifEncoder.encode(frames, actual, 1, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, delayMs, null);
+		encodeWithImageIo(frames, expected, delayMs);
+		assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+	}
+
+	/**
+	 * The ImageIO-based export path that GifWriter replaced, kept as the compatibility reference.
+	 */
+	private static void encodeWithImageIo(List<FrameLoader.FrameData> frames, File output, int delayMs)
+			throws Exception
+	{
+		int delayCentiseconds = Math.max(2, Math.round(delayMs / 10.0f));
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(output))
+		{
+			writer.setOutput(ios);
+			BufferedImage first = frames.get(0).image();
+
+			IIOMetadata streamMeta = writer.getDefaultStreamMetadata(null);
+			String streamFormat = streamMeta.getNativeMetadataFormatName();
+			IIOMetadataNode streamRoot = (IIOMetadataNode) streamMeta.getAsTree(streamFormat);
+			IIOMetadataNode lsd = getOrCreateChild(streamRoot, "LogicalScreenDescriptor");
+			lsd.setAttribute("logicalScreenWidth", String.valueOf(first.getWidth()));
+			lsd.setAttribute("logicalScreenHeight", String.valueOf(first.getHeight()));
+			lsd.setAttribute("colorResolution", "8");
+			lsd.setAttribute("pixelAspectRatio", "0");
+			IndexColorModel shared = GifEncoder.findSharedPalette(frames);
+			if (shared != null)
+			{
+				IIOMetadataNode gct = getOrCreateChild(streamRoot, "GlobalColorTable");
+				int gifSize = 2;
+				while (gifSize < shared.getMapSize()) gifSize *= 2;
+				gct.setAttribute("sizeOfGlobalColorTable", String.valueOf(gifSize));
+				gct.setAttribute("backgroundColorIndex", "0");
+				gct.setAttribute("sortFlag", "FALSE");
+				for (int i = 0; i < gifSize; i++)
+				{
+					int rgb = i < shared.getMapSize() ? shared.getRGB(i) : 0;
+					IIOMetadataNode entry = new IIOMetadataNode("ColorTableEntry");
+					entry.setAttribute("index", String.valueOf(i));
+					entry.setAttribute("red", String.valueOf((rgb >> 16) & 0xFF));
+					entry.setAttribute("green", String.valueOf((rgb >> 8) & 0xFF));
+					entry.setAttribute("blue", String.valueOf(rgb & 0xFF));
+					gct.appendChild(entry);
+				}
+			}
+			streamMeta.setFromTree(streamFormat, streamRoot);
+			writer.prepareWriteSequence(streamMeta);
+
+			for (int i = 0; i < frames.size(); i++)
+			{
+				BufferedImage frame = frames.get(i).image();
+				int transparentIndex = ((IndexColorModel) frame.getColorModel()).getTransparentPixel();
+				IIOMetadata imageMeta = writer.getDefaultImageMetadata(new ImageTypeSpecifier(frame), null);
+				String imageFormat = imageMeta.getNativeMetadataFormatName();
+				IIOMetadataNode root = (IIOMetadataNode) imageMeta.getAsTree(imageFormat);
+				IIOMetadataNode gce = getOrCreateChild(root, "GraphicControlExtension");
+				gce.setAttribute("disposalMethod", "restoreToBackgroundColor");
+				gce.setAttribute("userInputFlag", "FALSE");
+				gce.setAttribute("delayTime", String.valueOf(delayCentiseconds));
+				gce.setAttribute("transparentColorFlag", transparentIndex >= 0 ? "TRUE" : "FALSE");
+				gce.setAttribute("transparentColorIndex", String.valueOf(Math.max(transparentIndex, 0)));
+				if (i == 0)
+				{
+					IIOMetadataNode netscape = new IIOMetadataNode("ApplicationExtension");
+					netscape.setAttribute("applicationID", "NETSCAPE");
+					netscape.setAttribute("authenticationCode", "2.0");
+					netscape.setUserObject(new byte[]{1, 0, 0});
+					getOrCreateChild(root, "ApplicationExtensions").appendChild(netscape);
+				}
+				imageMeta.setFromTree(imageFormat, root);
+				writer.writeToSequence(new IIOImage(frame, null, imageMeta), null);
+			}
+			writer.endWriteSequence();
+		}
+		finally
+		{
+			writer.dispose();
+		}
+	}
+
+	private static IIOMetadataNode getOrCreateChild(IIOMetadataNode parent, String name)
+	{
+		for (int i = 0; i < parent.getLength(); i++)
+		{
+			if (parent.item(i).getNodeName().equals(name))
+			{
+				return (IIOMetadataNode) parent.item(i);
+			}
+		}
+		IIOMetadataNode child = new IIOMetadataNode(name);
+		parent.appendChild(child);
+		return child;
+	}
+
+	private static void assertRendersSource(List<FrameLoader.FrameData> frames, int scale,
+											GifEncoder.Options options, Path tempDir) throws Exception
+	{
+		File output = tempDir.resolve("rendered.gif").toFile();
+		GifEncoder.encode(frames, output, scale,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, 100, options, null);
+
+		List<int[]> rendered = renderComposited(output);
+		assertEquals(frames.size(), rendered.size());
+		for (int i = 0; i < frames.size(); i++)
+		{
+			BufferedImage source = frames.get(i).image();
+			int width = source.getWidth() * scale;
+			int[] canvas = rendered.get(i);
+			for (int y = 0; y < source.getHeight() * scale; y++)
+			{
+				for (int x = 0; x < width; x++)
+				{
+					assertEquals(normalize(source.getRGB(x / scale, y / scale)), canvas[y * width + x],
+							"frame " + i + " pixel " + x + "," + y);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes a GIF the way a viewer displays it: each image is drawn at its offset onto
+	 * a persistent canvas, which is snapshotted and then disposed per the frame's GCE.
+	 */
+	private static List<int[]> renderComposited(File gif) throws Exception
+	{
+		List<int[]> rendered = new ArrayList<>();
+		ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+		try (ImageInputStream iis = ImageIO.createImageInputStream(gif))
+		{
+			reader.setInput(iis);
+			IIOMetadataNode screen = (IIOMetadataNode) reader.getStreamMetadata()
+					.getAsTree("javax_imageio_gif_stream_1.0");
+			IIOMetadataNode lsd = getOrCreateChild(screen, "LogicalScreenDescriptor");
+			int width = Integer.parseInt(lsd.getAttribute("logicalScreenWidth"));
+			int height = Integer.parseInt(lsd.getAttribute("logicalScreenHeight"));
+			int[] canvas = new int[width * height];
+
+			int count = reader.getNumImages(true);
+			for (int i = 0; i < count; i++)
+			{
+				BufferedImage image = reader.read(i);
+				IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i)
+						.getAsTree("javax_imageio_gif_image_1.0");
+				IIOMetadataNode descriptor = getOrCreateChild(root, "ImageDescriptor");
+				int left = Integer.parseInt(descriptor.getAttribute("imageLeftPosition"));
+				int top = Integer.parseInt(descriptor.getAttribute("imageTopPosition"));
+				for (int y = 0; y < image.getHeight(); y++)
+				{
+					for (int x = 0; x < image.getWidth(); x++)
+					{
+						int argb = image.getRGB(x, y);
+						if ((argb >>> 24) != 0) canvas[(top + y) * width + left + x] = argb;
+					}
+				}
+				rendered.add(canvas.clone());
+
+				String disposal = getOrCreateChild(root, "GraphicControlExtension").getAttribute("disposalMethod");
+				if (disposal.equals("restoreToBackgroundColor"))
+				{
+					for (int y = 0; y < image.getHeight(); y++)
+					{
+						Arrays.fill(canvas, (top + y) * width + left, (top + y) * width + left + image.getWidth(), 0);
+					}
+				}
+			}
+		}
+		finally
+		{
+			reader.dispose();
+		}
+		return rendered;
+	}
+
+	private static int countLocalColorTables(File gif) throws Exception
+	{
+		ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+		try (ImageInputStream iis = ImageIO.createImageInputStream(gif))
+		{
+			reader.setInput(iis);
+			int count = 0;
+			for (int i = 0; i < reader.getNumImages(true); i++)
+			{
+				IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i)
+						.getAsTree("javax_imageio_gif_image_1.0");
+				if (root.getElementsByTagName("LocalColorTable").getLength() > 0) count++;
+			}
+			return count;
+		}
+		finally
+		{
+			reader.dispose();
+		}
+	}
+
+	private static int normalize(int argb)
+	{
+		return (argb >>> 24) == 0 ? 0 : argb | 0xFF000000;
+	}
+
+	/**
+	 * A sprite moving over a static noisy background, with a transparent hole that opens
+	 * and closes so some frames need the previous rectangle cleared. Every other frame
+	 * gets a reshuffled palette so pixels must be compared by color, not index.
+	 */
+	private static List<FrameLoader.FrameData> createSpriteFrames(int w, int h, int count)
+	{
+		Random random = new Random(5);
+		int[] background = new int[w * h];
+		for (int i = 0; i < background.length; i++)
+		{
+			background[i] = 1 + random.nextInt(12);
+		}
+
+		List<FrameLoader.FrameData> frames = new ArrayList<>();
+		for (int f = 0; f < count; f++)
+		{
+			// Colors 1..12 background, 13 sprite, 0 transparent; odd frames reverse the order
+			boolean reversed = f % 2 == 1;
+			byte[] r = new byte[14];
+			byte[] g = new byte[14];
+			byte[] b = new byte[14];
+			for (int c = 1; c < 14; c++)
+			{
+				int slot = reversed ? 14 - c : c;
+				r[slot] = (byte) (c * 18);
+				g[slot] = (byte) (255 - c * 18);
+				b[slot] = (byte) (c * 7);
+			}
+			IndexColorModel icm = new IndexColorModel(8, 14, r, g, b, 0);
+			BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
+			for (int y = 0; y < h; y++)
+			{
+				for (int x = 0; x < w; x++)
+				{
+					int color = background[y * w + x];
+					boolean sprite = x >= 2 + f * 2 && x < 8 + f * 2 && y >= 3 && y < 9;
+					boolean hole = f % 3 == 2 && x >= 20 && x < 26 && y >= 10 && y < 15;
+					if (sprite) color = 13;
+					int index = hole ? 0 : reversed ? 14 - color : color;
+					img.getRaster().setSample(x, y, 0, index);
+				}
+			}
+			frames.add(new FrameLoader.FrameData(img, 0));
+		}
+		return frames;
+	}
+
+	/**
+	 * Opaque noise in which each frame recolors a few percent of pixels at random, with
+	 * every index of the palette in use on the first frame.
+	 */
+	private static List<FrameLoader.FrameData> createScatterFrames(int w, int h, int count, int colors)
+	{
+		Random random = new Random(9);
+		byte[] r = new byte[colors];
+		byte[] g = new byte[colors];
+		byte[] b = new byte[colors];
+		for (int i = 0; i < colors; i++)
+		{
+			r[i] = (byte) i;
+			g[i] = (byte) (i * 3);
+			b[i] = (byte) (255 - i);
+		}
+		IndexColorModel icm = new IndexColorModel(8, colors, r, g, b);
+
+		byte[] pixels = new byte[w * h];
+		for (int i = 0; i < pixels.length; i++)
+		{
+			pixels[i] = (byte) (i < colors ? i : random.nextInt(colors));
+		}
+		List<FrameLoader.FrameData> frames = new ArrayList<>();
+		for (int f = 0; f < count; f++)
+		{
+			if (f > 0)
+			{
+				for (int n = 0; n < pixels.length / 30; n++)
+				{
+					pixels[random.nextInt(pixels.length)] = (byte) random.nextInt(colors);
+				}
+			}
+			BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
+			img.getRaster().setDataElements(0, 0, w, h, pixels);
+			frames.add(new FrameLoader.FrameData(img, -1));
+		}
+		return frames;
+	}
+
+	/**
+	 * Film grain over a horizontal gradient, with a few transparent specks: a 128-step
+	 * gray ramp where each pixel jitters by a few steps from frame to frame.
+	 */
+	private static List<FrameLoader.FrameData> createGrainFrames(int w, int h, int count)
+	{
+		Random random = new Random(11);
+		byte[] ramp = new byte[129];
+		for (int i = 1; i < ramp.length; i++) ramp[i] = (byte) ((i - 1) * 2);
+		IndexColorModel icm = new IndexColorModel(8, ramp.length, ramp, ramp, ramp, 0);
+
+		List<FrameLoader.FrameData> frames = new ArrayList<>();
+		for (int f = 0; f < count; f++)
+		{
+			BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
+			for (int y = 0; y < h; y++)
+			{
+				for (int x = 0; x < w; x++)
+				{
+					int step = x * 120 / w + random.nextInt(8);
+					img.getRaster().setSample(x, y, 0, random.nextInt(50) == 0 ? 0 : 1 + step);
+				}
+			}
+			frames.add(new FrameLoader.FrameData(img, 0));
+		}
+		return frames;
+	}
+
+	private static FrameLoader.FrameData createNoiseFrame(int w, int h, int colors, long seed)
+	{
+		Random random = new Random(seed);
+		byte[] r = new byte[colors];
+		byte[] g = new byte[colors];
+		byte[] b = new byte[colors];
+		for (int i = 0; i < colors; i++)
+		{
+			r[i] = (byte) random.nextInt(256);
+			g[i] = (byte) random.nextInt(256);
+			b[i] = (byte) i;
+		}
+		IndexColorModel icm = new IndexColorModel(8, colors, r, g, b);
+		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
+		for (int y = 0; y < h; y++)
+		{
+			for (int x = 0; x < w; x++)
+			{
+				// Mix runs and noise so both long and short LZW strings occur
+				int index = (x / 4 + y) % 3 == 0 ? 0 : random.nextInt(colors);
+				img.getRaster().setSample(x, y, 0, index);
+			}
+		}
+		return new FrameLoader.FrameData(img, -1);
+	}
+
 	private static FrameLoader.FrameData createSolidFrame(int w, int h, int red, int green, int blue)
 	{
 		byte[] r = {(byte) red, 0};
@@ -0,0 +1,86 @@
+package com.composegif;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SizeEstimatorTest
+{
+	private static final Object NEAREST = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+
+	@Test
+	void fewFramesAreMeasuredExactly() throws Exception
+	{
+		List<FrameLoader.FrameData> frames = createMovingFrames(24, 16, 6);
+		List<Integer> delays = Collections.nCopies(frames.size(), 100);
+		GifEncoder.Options options = GifEncoder.Options.DEFAULT.withDeltaFrames(true);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GifEncoder.encode(GifEncoder.FrameSource.of(frames, delays), out, 2, NEAREST, options, null);
+
+		assertEquals(out.size(), SizeEstimator.estimate(frames, delays, 2, NEAREST, options, 16));
+	}
+
+	@Test
+	void sampledEstimateIsClose() throws Exception
+	{
+		List<FrameLoader.FrameData> frames = createMovingFrames(24, 16, 60);
+		List<Integer> delays = Collections.nCopies(frames.size(), 100);
+		GifEncoder.Options options = GifEncoder.Options.DEFAULT.withDeltaFrames(true);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GifEncoder.encode(GifEncoder.FrameSource.of(frames, delays), out, 2, NEAREST, options, null);
+		long estimate = SizeEstimator.estimate(frames, delays, 2, NEAREST, options, 16);
+
+		assertTrue(Math.abs(estimate - out.size()) < out.size() / 2,
+				"estimate " + estimate + " vs actual " + out.size());
+	}
+
+	@Test
+	void interruptCancelsEstimate()
+	{
+		List<FrameLoader.FrameData> frames = createMovingFrames(24, 16, 6);
+		List<Integer> delays = Collections.nCopies(frames.size(), 100);
+		Thread.currentThread().interrupt();
+		try
+		{
+			assertThrows(InterruptedIOException.class,
+					() -> SizeEstimator.estimate(frames, delays, 1, NEAREST, GifEncoder.Options.DEFAULT, 16));
+		}
+		finally
+		{
+			Thread.interrupted();
+		}
+	}
+
+	/** A small block moving over a flat background. */
+	private static List<FrameLoader.FrameData> createMovingFrames(int w, int h, int count)
+	{
+		IndexColorModel icm = new IndexColorModel(8, 2,
+				new byte[]{0, (byte) 255}, new byte[]{0, (byte) 128}, new byte[]{(byte) 64, 0});
+		List<FrameLoader.FrameData> frames = new ArrayList<>();
+		for (int f = 0; f < count; f++)
+		{
+			BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
+			int left = f % (w - 4);
+			for (int y = 4; y < 8; y++)
+			{
+				for (int x = left; x < left + 4; x++)
+				{
+					img.getRaster().setSample(x, y, 0, 1);
+				}
+			}
+			frames.add(new FrameLoader.FrameData(img, -1));
+		}
+		return frames;
+	}
+}
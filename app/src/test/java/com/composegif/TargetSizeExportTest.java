@@ -0,0 +1,99 @@
+package com.composegif;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TargetSizeExportTest
+{
+	private static final Object NEAREST = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+
+	@Test
+	void generousBudgetKeepsFullQuality(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = createNoisyFrames(32, 24, 4);
+		File output = tempDir.resolve("out.gif").toFile();
+		TargetSizeExport.Setting setting = TargetSizeExport.encode(frames, output, 3, NEAREST, delays(frames),
+				GifEncoder.Options.DEFAULT, 10_000_000, null);
+
+		assertEquals(3, setting.scale());
+		assertEquals(0, setting.options().lossy());
+		assertEquals(0, setting.options().maxColors());
+		assertEquals(output.length(), setting.size());
+	}
+
+	@Test
+	void tightBudgetTradesQualityToFit(@TempDir Path tempDir) throws Exception
+	{
+		List<FrameLoader.FrameData> frames = createNoisyFrames(32, 24, 4);
+		File full = tempDir.resolve("full.gif").toFile();
+		GifEncoder.encode(frames, full, 2, NEAREST, delays(frames),
+				GifEncoder.Options.DEFAULT.withMaskUnchanged(true), null);
+		long budget = full.length() * 2 / 3;
+
+		File output = tempDir.resolve("out.gif").toFile();
+		TargetSizeExport.Setting setting = TargetSizeExport.encode(frames, output, 2, NEAREST, delays(frames),
+				GifEncoder.Options.DEFAULT, budget, null);
+
+		assertTrue(output.length() <= budget, output.length() + " bytes over budget " + budget);
+		assertEquals(output.length(), setting.size());
+		assertTrue(setting.scale() < 2 || setting.options().lossy() > 0 || setting.options().maxColors() > 0);
+	}
+
+	@Test
+	void impossibleBudgetFails(@TempDir Path tempDir)
+	{
+		List<FrameLoader.FrameData> frames = createNoisyFrames(32, 24, 4);
+		File output = tempDir.resolve("out.gif").toFile();
+		assertThrows(IOException.class, () -> TargetSizeExport.encode(frames, output, 2, NEAREST, delays(frames),
+				GifEncoder.Options.DEFAULT, 100, null));
+		assertFalse(output.exists());
+	}
+
+	private static List<Integer> delays(List<FrameLoader.FrameData> frames)
+	{
+		return Collections.nCopies(frames.size(), 100);
+	}
+
+	/** Independent noise over a 200-color ramp, which only shrinks by giving up fidelity. */
+	private static List<FrameLoader.FrameData> createNoisyFrames(int w, int h, int count)
+	{
+		Random random = new Random(8);
+		byte[] r = new byte[200];
+		byte[] g = new byte[200];
+		byte[] b = new byte[200];
+		for (int i = 0; i < 200; i++)
+		{
+			r[i] = (byte) i;
+			g[i] = (byte) (i / 2);
+			b[i] = (byte) (255 - i);
+		}
+		IndexColorModel icm = new IndexColorModel(8, 200, r, g, b);
+		List<FrameLoader.FrameData> frames = new ArrayList<>();
+		for (int f = 0; f < count; f++)
+		{
+			BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, icm);
+			for (int y = 0; y < h; y++)
+			{
+				for (int x = 0; x < w; x++)
+				{
+					img.getRaster().setSample(x, y, 0, random.nextInt(200));
+				}
+			}
+			frames.add(new FrameLoader.FrameData(img, -1));
+		}
+		return frames;
+	}
+}